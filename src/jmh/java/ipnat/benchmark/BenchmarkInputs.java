@@ -0,0 +1,73 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.benchmark;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ipnat.skel.LSystemsTree;
+
+/**
+ * Synthetic inputs for benchmarks: Canvases tiled with the fractal trees of
+ * {@link LSystemsTree#createTree(String, int, int, double, int)}.
+ *
+ * @author Tiago Ferreira
+ */
+class BenchmarkInputs {
+
+	private BenchmarkInputs() {
+	}
+
+	/**
+	 * Creates a square canvas tiled with fractal trees.
+	 *
+	 * @param size
+	 *            the width and height of the canvas
+	 * @param recursions
+	 *            the recursion depth of each tree
+	 * @param depth
+	 *            the number of slices. With stacks, trees are drawn on every
+	 *            other slice so that each slice holds disconnected arbors
+	 * @return the 8-bit image
+	 */
+	static ImagePlus trees(final int size, final int recursions, final int depth) {
+
+		// Each level of recursion adds a segment of recursions*10 pixels
+		final int extent = 5 * recursions * (recursions + 1) + 20;
+		final ImageProcessor tree = new LSystemsTree()
+				.createTree("", 2 * extent, extent, -90, recursions).getProcessor();
+
+		final ImagePlus imp = IJ.createImage("Trees " + size + "x" + size + "x" + depth + " R" + recursions,
+				"8-bit black", size, size, depth);
+		final ImageStack stack = imp.getStack();
+		for (int z = 1; z <= depth; z += 2) {
+			final ImageProcessor ip = stack.getProcessor(z);
+			for (int y = 0; y < size; y += tree.getHeight()) {
+				for (int x = 0; x < size; x += tree.getWidth())
+					ip.insert(tree, x, y);
+			}
+		}
+		return imp;
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.benchmark;
+
+import java.awt.image.IndexColorModel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import ipnat.ColorMaps;
+
+/**
+ * Construction of {@link ColorMaps} lookup tables.
+ *
+ * @author Tiago Ferreira
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true" })
+public class ColorMapsBenchmark {
+
+	@Param({ "-1", "0" })
+	public int backgroundGray;
+
+	@Param({ "false", "true" })
+	public boolean inverted;
+
+	@Benchmark
+	public IndexColorModel viridis() {
+		return ColorMaps.viridisColorMap(backgroundGray, inverted);
+	}
+
+	@Benchmark
+	public IndexColorModel plasma() {
+		return ColorMaps.plasmaColorMap(backgroundGray, inverted);
+	}
+
+}
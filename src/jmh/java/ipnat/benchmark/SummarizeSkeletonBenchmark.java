@@ -0,0 +1,83 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import ipnat.skel.SkeletonCache;
+import ipnat.skel.SummarizeSkeleton;
+import sc.fiji.skeletonize3D.Skeletonize3D_;
+
+/**
+ * The analysis performed by {@link SummarizeSkeleton#run(ij.process.ImageProcessor)}
+ * without displaying the results table.
+ *
+ * @author Tiago Ferreira
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true" })
+public class SummarizeSkeletonBenchmark {
+
+	@Param({ "512", "2048" })
+	public int size;
+
+	@Param({ "6", "9" })
+	public int recursions;
+
+	@Param({ "1", "16" })
+	public int depth;
+
+	private ImagePlus imp;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		// Time the analysis itself rather than cache hits
+		SkeletonCache.setEnabled(false);
+		imp = BenchmarkInputs.trees(size, recursions, depth);
+		final Skeletonize3D_ thin = new Skeletonize3D_();
+		thin.setup("", imp);
+		thin.run(null);
+	}
+
+	@Benchmark
+	public ResultsTable summarize() {
+		final ResultsTable rt = new ResultsTable();
+		SummarizeSkeleton.summarize(imp, rt);
+		return rt;
+	}
+
+}
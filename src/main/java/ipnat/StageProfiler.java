@@ -0,0 +1,263 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import ij.measure.ResultsTable;
+
+/**
+ * Records wall time, CPU time and allocated bytes of named processing stages.
+ * Stages with the same name are accumulated, so stages that are repeated
+ * (e.g., once per pruning iteration) should be named after their iteration,
+ * and stages that run concurrently should not share a name (their wall times
+ * would be summed). CPU time and allocations are those of the thread that
+ * opened the stage only: Work delegated to other threads (e.g., a thread
+ * pool) is only accounted for if those threads record their own stages. A
+ * disabled profiler does not query the JVM and has no measurable overhead.
+ *
+ * <pre>
+ * try (StageProfiler.Stage stage = profiler.start("Thinning")) {
+ * 	thin.run(null);
+ * }
+ * </pre>
+ *
+ * @author Tiago Ferreira
+ */
+public class StageProfiler {
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final boolean CPU_TIME_SUPPORTED;
+	private static final boolean ALLOCATION_SUPPORTED;
+
+	static {
+		CPU_TIME_SUPPORTED = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+		boolean allocation;
+		try {
+			allocation = THREADS instanceof com.sun.management.ThreadMXBean
+					&& ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+					&& ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+		} catch (final Throwable ignored) { // e.g., non-HotSpot JVMs
+			allocation = false;
+		}
+		ALLOCATION_SUPPORTED = allocation;
+	}
+
+	private final boolean enabled;
+	private final Stage noOpStage;
+	private final Map<String, long[]> stages = new LinkedHashMap<>(); // {count, wall, cpu, allocated}
+
+	/**
+	 * Instantiates a new profiler.
+	 *
+	 * @param enabled
+	 *            whether stages should be recorded
+	 */
+	public StageProfiler(final boolean enabled) {
+		this.enabled = enabled;
+		noOpStage = new Stage(null);
+	}
+
+	/** @return whether stages are being recorded */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Opens a stage. The stage must be closed by the same thread.
+	 *
+	 * @param name
+	 *            the stage name
+	 * @return the open stage
+	 */
+	public Stage start(final String name) {
+		return (enabled) ? new Stage(name) : noOpStage;
+	}
+
+	private synchronized void record(final String name, final long wall, final long cpu, final long allocated) {
+		final long[] totals = stages.computeIfAbsent(name, k -> new long[4]);
+		totals[0]++;
+		totals[1] += wall;
+		totals[2] += cpu;
+		totals[3] += allocated;
+	}
+
+	private static long cpuTime() {
+		return (CPU_TIME_SUPPORTED) ? THREADS.getCurrentThreadCpuTime() : 0L;
+	}
+
+	private static long allocatedBytes() {
+		return (ALLOCATION_SUPPORTED)
+				? ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId())
+				: 0L;
+	}
+
+	/** @return the recorded stages, in the order they were first opened */
+	public synchronized List<Record> getRecords() {
+		final List<Record> records = new ArrayList<>(stages.size());
+		for (final Map.Entry<String, long[]> entry : stages.entrySet()) {
+			final long[] t = entry.getValue();
+			records.add(new Record(entry.getKey(), (int) t[0], t[1], (CPU_TIME_SUPPORTED) ? t[2] : -1,
+					(ALLOCATION_SUPPORTED) ? t[3] : -1));
+		}
+		return Collections.unmodifiableList(records);
+	}
+
+	/**
+	 * Formats the recorded stages as a single-line JSON object, e.g., for
+	 * log aggregation.
+	 *
+	 * @param label
+	 *            an identifier of the profiled run (e.g., the image title)
+	 * @return the JSON string. Unavailable measurements are reported as -1
+	 */
+	public String toJson(final String label) {
+		final StringBuilder sb = new StringBuilder("{\"label\":\"").append(escape(label)).append("\",\"stages\":[");
+		final List<Record> records = getRecords();
+		for (int i = 0; i < records.size(); i++) {
+			final Record r = records.get(i);
+			if (i > 0)
+				sb.append(',');
+			sb.append(String.format(Locale.US,
+					"{\"name\":\"%s\",\"count\":%d,\"wall_ms\":%.3f,\"cpu_ms\":%.3f,\"allocated_bytes\":%d}",
+					escape(r.getName()), r.getCount(), r.getWallMillis(), r.getCpuMillis(), r.getAllocatedBytes()));
+		}
+		return sb.append("]}").toString();
+	}
+
+	private static String escape(final String s) {
+		return (s == null) ? "" : s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * Appends wall time, CPU time and allocation columns of each recorded stage
+	 * to the specified rows of a table.
+	 *
+	 * @param rt
+	 *            the table
+	 * @param firstRow
+	 *            the index of the first row to be annotated. All rows from this
+	 *            row onwards are annotated
+	 */
+	public void addColumns(final ResultsTable rt, final int firstRow) {
+		for (final Record r : getRecords()) {
+			for (int row = Math.max(0, firstRow); row < rt.size(); row++) {
+				rt.setValue(r.getName() + " wall (ms)", row, r.getWallMillis());
+				rt.setValue(r.getName() + " CPU (ms)", row, r.getCpuMillis());
+				rt.setValue(r.getName() + " alloc. (MB)", row,
+						(r.getAllocatedBytes() < 0) ? Double.NaN : r.getAllocatedBytes() / (1024d * 1024d));
+			}
+		}
+	}
+
+	/** A stage being measured. Closing it records its measurements. */
+	public final class Stage implements AutoCloseable {
+
+		private final String name;
+		private final long wall0, cpu0, allocated0;
+
+		private Stage(final String name) {
+			this.name = name;
+			if (name == null) {
+				wall0 = cpu0 = allocated0 = 0L;
+			} else {
+				allocated0 = allocatedBytes();
+				cpu0 = cpuTime();
+				wall0 = System.nanoTime();
+			}
+		}
+
+		@Override
+		public void close() {
+			if (name == null)
+				return;
+			final long wall = System.nanoTime() - wall0;
+			final long cpu = cpuTime() - cpu0;
+			final long allocated = allocatedBytes() - allocated0;
+			record(name, wall, cpu, allocated);
+		}
+	}
+
+	/** Immutable measurements of a stage. */
+	public static class Record {
+
+		private final String name;
+		private final int count;
+		private final long wallNanos, cpuNanos, allocatedBytes;
+
+		Record(final String name, final int count, final long wallNanos, final long cpuNanos,
+				final long allocatedBytes) {
+			this.name = name;
+			this.count = count;
+			this.wallNanos = wallNanos;
+			this.cpuNanos = cpuNanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		/** @return the stage name */
+		public String getName() {
+			return name;
+		}
+
+		/** @return the number of times the stage was executed */
+		public int getCount() {
+			return count;
+		}
+
+		/** @return the accumulated wall time, in nanoseconds */
+		public long getWallNanos() {
+			return wallNanos;
+		}
+
+		/**
+		 * @return the accumulated CPU time of the thread(s) that opened the
+		 *         stage, in nanoseconds (-1 if unavailable)
+		 */
+		public long getCpuNanos() {
+			return cpuNanos;
+		}
+
+		/**
+		 * @return the accumulated bytes allocated by the thread(s) that opened
+		 *         the stage (-1 if unavailable)
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		public double getWallMillis() {
+			return wallNanos / 1e6;
+		}
+
+		public double getCpuMillis() {
+			return (cpuNanos < 0) ? -1 : cpuNanos / 1e6;
+		}
+	}
+
+}
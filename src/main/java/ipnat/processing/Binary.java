@@ -22,9 +22,10 @@
 package ipnat.processing;
 
 
+import java.util.stream.IntStream;
+
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.process.ByteProcessor;
 
 /**
  * Static methods for operating on 2D and 3D binary images.
@@ -34,10 +35,40 @@ import ij.process.ByteProcessor;
  */
 public class Binary {
 
+	/**
+	 * Removes isolated pixels, i.e., foreground pixels without foreground
+	 * neighbors, from a binary image. 8-connectivity is used for 2D images and
+	 * 26-connectivity for stacks. Slices are processed in parallel using a
+	 * bit-packed (64 pixels per word) copy of the image.
+	 *
+	 * @param imp
+	 *            the 8-bit binary image (background = 0) to be processed in
+	 *            place
+	 */
 	public static void removeIsolatedPixels(final ImagePlus imp) {
 		final ImageStack stack = imp.getStack();
-		for (int i = 1; i <= stack.getSize(); i++)
-			((ByteProcessor) stack.getProcessor(i)).erode(8, 0);
+		final int width = stack.getWidth();
+
+		// Pack all slices first, so that slices can be modified concurrently
+		final BinaryVolume volume = BinaryVolume.fromStack(stack);
+		final int wordsPerRow = volume.getWordsPerRow();
+
+		IntStream.range(0, volume.getDepth()).parallel().forEach(z -> {
+			final byte[] pixels = (byte[]) stack.getPixels(z + 1);
+			for (int y = 0; y < volume.getHeight(); y++) {
+				for (int k = 0; k < wordsPerRow; k++) {
+					final long current = volume.getWord(z, y, k);
+					if (current == 0L)
+						continue;
+					long isolated = current & ~volume.getNeighborMask(z, y, k);
+					while (isolated != 0L) {
+						final int bit = Long.numberOfTrailingZeros(isolated);
+						isolated &= isolated - 1;
+						pixels[y * width + (k << 6) + bit] = 0;
+					}
+				}
+			}
+		});
 	}
 
 }
@@ -0,0 +1,331 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.processing;
+
+import java.util.stream.IntStream;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+
+/**
+ * A 2D/3D binary image stored as packed bits: Each row of each slice is held
+ * in {@code ceil(width/64)} 64-bit words, so that a volume takes 1/8 of the
+ * memory of its 8-bit counterpart. Bit {@code i} of word {@code k} holds the
+ * voxel at {@code x = 64k + i}. Neighborhood queries operate on whole words.
+ * <p>
+ * Volumes hold the binary data kept alongside an analysis: snapshots of
+ * skeletons being pruned, cached skeletons, and the copies used to filter
+ * isolated pixels. Images processed by {@code Skeletonize3D_} and
+ * {@code AnalyzeSkeleton_} (e.g., the working copy of
+ * {@code StrahlerAnalyzer}) remain 8-bit, as do label volumes.
+ * </p>
+ *
+ * @author Tiago Ferreira
+ */
+public class BinaryVolume {
+
+	private final int width;
+	private final int height;
+	private final int depth;
+	private final int wordsPerRow;
+	private final long[][] slices;
+
+	/**
+	 * Creates an empty volume.
+	 *
+	 * @param width
+	 *            the width of the volume
+	 * @param height
+	 *            the height of the volume
+	 * @param depth
+	 *            the number of slices of the volume
+	 */
+	public BinaryVolume(final int width, final int height, final int depth) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		wordsPerRow = (width + 63) >>> 6;
+		slices = new long[depth][height * wordsPerRow];
+	}
+
+	/**
+	 * Packs the specified image. Non-zero voxels are considered foreground.
+	 *
+	 * @param imp
+	 *            the 8-bit image
+	 * @return the packed volume
+	 */
+	public static BinaryVolume fromImagePlus(final ImagePlus imp) {
+		return fromStack(imp.getStack());
+	}
+
+	/**
+	 * Packs the specified stack. Non-zero voxels are considered foreground.
+	 * Slices are packed in parallel.
+	 *
+	 * @param stack
+	 *            the 8-bit stack
+	 * @return the packed volume
+	 */
+	public static BinaryVolume fromStack(final ImageStack stack) {
+		final BinaryVolume volume = new BinaryVolume(stack.getWidth(), stack.getHeight(), stack.getSize());
+		IntStream.range(0, volume.depth).parallel()
+				.forEach(z -> volume.setSlice(z, (byte[]) stack.getPixels(z + 1)));
+		return volume;
+	}
+
+	/**
+	 * Replaces the contents of a slice.
+	 *
+	 * @param z
+	 *            the 0-based slice index
+	 * @param pixels
+	 *            the 8-bit pixels of the slice. Non-zero values are considered
+	 *            foreground
+	 */
+	public void setSlice(final int z, final byte[] pixels) {
+		final long[] words = slices[z];
+		for (int y = 0; y < height; y++) {
+			final int rowOffset = y * width;
+			final int wordOffset = y * wordsPerRow;
+			for (int k = 0; k < wordsPerRow; k++) {
+				long word = 0L;
+				final int xStart = k << 6;
+				final int xEnd = Math.min(width, xStart + 64);
+				for (int x = xStart; x < xEnd; x++) {
+					if (pixels[rowOffset + x] != 0)
+						word |= 1L << (x - xStart);
+				}
+				words[wordOffset + k] = word;
+			}
+		}
+	}
+
+	/**
+	 * Unpacks a slice.
+	 *
+	 * @param z
+	 *            the 0-based slice index
+	 * @param pixels
+	 *            the 8-bit array to be populated: foreground is set to 255,
+	 *            background to 0
+	 */
+	public void getSlice(final int z, final byte[] pixels) {
+		final long[] words = slices[z];
+		for (int y = 0; y < height; y++) {
+			final int rowOffset = y * width;
+			final int wordOffset = y * wordsPerRow;
+			for (int x = 0; x < width; x++) {
+				pixels[rowOffset + x] = ((words[wordOffset + (x >>> 6)] >>> (x & 63)) & 1L) != 0 ? (byte) 255 : 0;
+			}
+		}
+	}
+
+	/**
+	 * Unpacks this volume into a new 8-bit image (foreground = 255).
+	 *
+	 * @param title
+	 *            the image title
+	 * @param cal
+	 *            the image calibration. Ignored if {@code null}
+	 * @return the 8-bit image
+	 */
+	public ImagePlus toImagePlus(final String title, final Calibration cal) {
+		final ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++)
+			stack.addSlice("", toByteProcessor(z));
+		final ImagePlus imp = new ImagePlus(title, stack);
+		if (cal != null)
+			imp.setCalibration(cal);
+		return imp;
+	}
+
+	/**
+	 * Unpacks a slice into a new processor (foreground = 255).
+	 *
+	 * @param z
+	 *            the 0-based slice index
+	 * @return the 8-bit processor
+	 */
+	public ByteProcessor toByteProcessor(final int z) {
+		final ByteProcessor bp = new ByteProcessor(width, height);
+		getSlice(z, (byte[]) bp.getPixels());
+		return bp;
+	}
+
+	/**
+	 * Writes this volume into an existing 8-bit stack of the same dimensions.
+	 *
+	 * @param stack
+	 *            the stack to be overwritten
+	 */
+	public void copyTo(final ImageStack stack) {
+		IntStream.range(0, depth).parallel().forEach(z -> getSlice(z, (byte[]) stack.getPixels(z + 1)));
+	}
+
+	/** @return a deep copy of this volume */
+	public BinaryVolume duplicate() {
+		final BinaryVolume copy = new BinaryVolume(width, height, depth);
+		for (int z = 0; z < depth; z++)
+			System.arraycopy(slices[z], 0, copy.slices[z], 0, slices[z].length);
+		return copy;
+	}
+
+	public boolean get(final int x, final int y, final int z) {
+		return ((slices[z][y * wordsPerRow + (x >>> 6)] >>> (x & 63)) & 1L) != 0;
+	}
+
+	public void set(final int x, final int y, final int z) {
+		slices[z][y * wordsPerRow + (x >>> 6)] |= 1L << (x & 63);
+	}
+
+	public void clear(final int x, final int y, final int z) {
+		slices[z][y * wordsPerRow + (x >>> 6)] &= ~(1L << (x & 63));
+	}
+
+	public void set(final int x, final int y, final int z, final boolean value) {
+		if (value)
+			set(x, y, z);
+		else
+			clear(x, y, z);
+	}
+
+	/**
+	 * Returns a word of packed voxels.
+	 *
+	 * @param z
+	 *            the 0-based slice index
+	 * @param y
+	 *            the row
+	 * @param k
+	 *            the word index within the row, i.e., voxels {@code 64k} to
+	 *            {@code 64k+63}
+	 * @return the packed word
+	 */
+	public long getWord(final int z, final int y, final int k) {
+		return slices[z][y * wordsPerRow + k];
+	}
+
+	/**
+	 * Returns, for each voxel of a word, whether any of its neighbors is
+	 * foreground. 26-connectivity is used for stacks, 8-connectivity for single
+	 * images. Out-of-bounds neighbors are considered background.
+	 *
+	 * @param z
+	 *            the 0-based slice index
+	 * @param y
+	 *            the row
+	 * @param k
+	 *            the word index within the row
+	 * @return the neighborhood mask: bit {@code i} is set if the voxel at
+	 *         {@code x = 64k + i} has at least one foreground neighbor
+	 */
+	public long getNeighborMask(final int z, final int y, final int k) {
+		long neighbors = 0L;
+		final int zEnd = Math.min(depth - 1, z + 1);
+		final int yEnd = Math.min(height - 1, y + 1);
+		for (int zz = Math.max(0, z - 1); zz <= zEnd; zz++) {
+			final long[] slice = slices[zz];
+			for (int yy = Math.max(0, y - 1); yy <= yEnd; yy++) {
+				final int offset = yy * wordsPerRow;
+				final long row = slice[offset + k];
+				final long prev = (k > 0) ? slice[offset + k - 1] : 0L;
+				final long next = (k < wordsPerRow - 1) ? slice[offset + k + 1] : 0L;
+				neighbors |= (row << 1) | (prev >>> 63) | (row >>> 1) | (next << 63);
+				if (zz != z || yy != y)
+					neighbors |= row;
+			}
+		}
+		return neighbors;
+	}
+
+	/**
+	 * Counts the foreground neighbors of a voxel (26-connectivity for stacks,
+	 * 8-connectivity for single images).
+	 *
+	 * @param x
+	 *            the x coordinate
+	 * @param y
+	 *            the y coordinate
+	 * @param z
+	 *            the 0-based slice index
+	 * @return the number of foreground neighbors
+	 */
+	public int countNeighbors(final int x, final int y, final int z) {
+		int count = 0;
+		for (int zz = Math.max(0, z - 1); zz <= Math.min(depth - 1, z + 1); zz++) {
+			for (int yy = Math.max(0, y - 1); yy <= Math.min(height - 1, y + 1); yy++) {
+				for (int xx = Math.max(0, x - 1); xx <= Math.min(width - 1, x + 1); xx++) {
+					if ((xx != x || yy != y || zz != z) && get(xx, yy, zz))
+						count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the voxels that are foreground in this volume but not in the
+	 * specified one.
+	 *
+	 * @param other
+	 *            a volume of the same dimensions
+	 * @return the volume of voxels present only in this volume
+	 */
+	public BinaryVolume andNot(final BinaryVolume other) {
+		final BinaryVolume result = new BinaryVolume(width, height, depth);
+		IntStream.range(0, depth).parallel().forEach(z -> {
+			final long[] a = slices[z], b = other.slices[z], r = result.slices[z];
+			for (int i = 0; i < a.length; i++)
+				r[i] = a[i] & ~b[i];
+		});
+		return result;
+	}
+
+	/** @return the number of foreground voxels */
+	public long count() {
+		long count = 0;
+		for (final long[] slice : slices)
+			for (final long word : slice)
+				count += Long.bitCount(word);
+		return count;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getWordsPerRow() {
+		return wordsPerRow;
+	}
+
+}
@@ -0,0 +1,413 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.processing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+
+/**
+ * Connected-component labeling of 2D/3D binary images (8-connectivity for
+ * single images, 26-connectivity for stacks). Non-zero voxels are considered
+ * foreground.
+ * <p>
+ * The image is split into slabs of slices (bands of rows, for 2D images) that
+ * are labeled in parallel by a raster scan with union-find. Labels touching
+ * across slab seams are then merged, and all labels are replaced in parallel
+ * by consecutive component labels (1 to {@link #getCount()}, in raster order
+ * of the first voxel of each component). Bounding boxes and voxel counts of
+ * components are computed during the scan.
+ * </p>
+ *
+ * @author Tiago Ferreira
+ */
+public class ConnectedComponents {
+
+	private final int width, height, depth;
+	private final int[][] labels;
+	private final int count;
+	private final int[] bounds; // {x0, y0, z0, x1, y1, z1} per component, end-exclusive
+	private final long[] sizes;
+
+	private ConnectedComponents(final int width, final int height, final int[][] labels, final int count,
+			final int[] bounds, final long[] sizes) {
+		this.width = width;
+		this.height = height;
+		this.depth = labels.length;
+		this.labels = labels;
+		this.count = count;
+		this.bounds = bounds;
+		this.sizes = sizes;
+	}
+
+	/**
+	 * Labels the components of the specified image using all available
+	 * threads.
+	 *
+	 * @param stack
+	 *            the 8-bit image to be labeled
+	 * @return the labeling
+	 */
+	public static ConnectedComponents label(final ImageStack stack) {
+		return label(stack, Prefs.getThreads());
+	}
+
+	/**
+	 * Labels the components of the specified image.
+	 *
+	 * @param stack
+	 *            the 8-bit image to be labeled
+	 * @param nThreads
+	 *            the number of slabs labeled concurrently
+	 * @return the labeling
+	 */
+	public static ConnectedComponents label(final ImageStack stack, final int nThreads) {
+		final int width = stack.getWidth(), height = stack.getHeight(), depth = stack.getSize();
+		final boolean rows = depth == 1; // 2D images are split into bands of rows
+		final int nPlanes = (rows) ? height : depth;
+		final int nSlabs = Math.max(1, Math.min(nPlanes, 4 * Math.max(1, nThreads)));
+		final int[][] labels = new int[depth][width * height];
+
+		// Pass 1: provisional labels of each slab
+		final Slab[] slabs = new Slab[nSlabs];
+		for (int s = 0; s < nSlabs; s++)
+			slabs[s] = new Slab(stack, labels, rows, (int) ((long) s * nPlanes / nSlabs),
+					(int) ((long) (s + 1) * nPlanes / nSlabs));
+		run(slabs, nThreads, Slab::scan);
+
+		// Merge labels across seams
+		final int[] offset = new int[nSlabs + 1];
+		for (int s = 0; s < nSlabs; s++)
+			offset[s + 1] = offset[s] + slabs[s].nLabels;
+		final int[] parent = new int[offset[nSlabs] + 1];
+		for (int s = 0; s < nSlabs; s++)
+			for (int l = 1; l <= slabs[s].nLabels; l++)
+				parent[offset[s] + l] = offset[s] + slabs[s].parent[l];
+		for (int s = 1; s < nSlabs; s++)
+			mergeSeam(stack, labels, rows, slabs[s].start, offset[s - 1], offset[s], parent);
+
+		// Consecutive labels, in raster order, and component properties
+		final int[] compact = new int[parent.length];
+		int count = 0;
+		for (int g = 1; g < parent.length; g++) {
+			final int root = find(parent, g);
+			if (compact[root] == 0)
+				compact[root] = ++count;
+			compact[g] = compact[root];
+		}
+		final int[] bounds = new int[6 * count];
+		for (int c = 0; c < count; c++) {
+			bounds[6 * c] = bounds[6 * c + 1] = bounds[6 * c + 2] = Integer.MAX_VALUE;
+		}
+		final long[] sizes = new long[count];
+		for (int s = 0; s < nSlabs; s++) {
+			final Slab slab = slabs[s];
+			for (int l = 1; l <= slab.nLabels; l++) {
+				final int c = compact[offset[s] + l] - 1;
+				final int b = 6 * c;
+				final int[] lb = slab.bounds;
+				bounds[b] = Math.min(bounds[b], lb[6 * l]);
+				bounds[b + 1] = Math.min(bounds[b + 1], lb[6 * l + 1]);
+				bounds[b + 2] = Math.min(bounds[b + 2], lb[6 * l + 2]);
+				bounds[b + 3] = Math.max(bounds[b + 3], lb[6 * l + 3]);
+				bounds[b + 4] = Math.max(bounds[b + 4], lb[6 * l + 4]);
+				bounds[b + 5] = Math.max(bounds[b + 5], lb[6 * l + 5]);
+				sizes[c] += slab.sizes[l];
+			}
+		}
+
+		// Pass 2: final labels
+		for (int s = 0; s < nSlabs; s++)
+			slabs[s].setLookup(compact, offset[s]);
+		run(slabs, nThreads, Slab::relabel);
+
+		return new ConnectedComponents(width, height, labels, count, bounds, sizes);
+	}
+
+	private interface SlabTask {
+		void run(Slab slab);
+	}
+
+	private static void run(final Slab[] slabs, final int nThreads, final SlabTask task) {
+		if (nThreads < 2 || slabs.length == 1) {
+			for (final Slab slab : slabs)
+				task.run(slab);
+			return;
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		try {
+			final List<Future<?>> futures = new ArrayList<>(slabs.length);
+			for (final Slab slab : slabs)
+				futures.add(executor.submit(() -> task.run(slab)));
+			for (final Future<?> future : futures)
+				future.get();
+		} catch (final InterruptedException | ExecutionException exc) {
+			throw new IllegalStateException("Components could not be labeled", exc);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/* Unites labels of the first plane (row) of a slab with those of the last plane of the previous slab */
+	private static void mergeSeam(final ImageStack stack, final int[][] labels, final boolean rows, final int start,
+			final int prevOffset, final int offset, final int[] parent) {
+		final int width = stack.getWidth(), height = stack.getHeight();
+		if (rows) {
+			final int[] l = labels[0];
+			final int y = start;
+			for (int x = 0; x < width; x++) {
+				final int a = l[y * width + x];
+				if (a == 0)
+					continue;
+				for (int xx = Math.max(0, x - 1); xx <= Math.min(width - 1, x + 1); xx++) {
+					final int b = l[(y - 1) * width + xx];
+					if (b != 0)
+						union(parent, offset + a, prevOffset + b);
+				}
+			}
+			return;
+		}
+		final int[] cur = labels[start], prev = labels[start - 1];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final int a = cur[y * width + x];
+				if (a == 0)
+					continue;
+				for (int yy = Math.max(0, y - 1); yy <= Math.min(height - 1, y + 1); yy++) {
+					for (int xx = Math.max(0, x - 1); xx <= Math.min(width - 1, x + 1); xx++) {
+						final int b = prev[yy * width + xx];
+						if (b != 0)
+							union(parent, offset + a, prevOffset + b);
+					}
+				}
+			}
+		}
+	}
+
+	private static int find(final int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(final int[] parent, final int a, final int b) {
+		final int ra = find(parent, a), rb = find(parent, b);
+		if (ra < rb)
+			parent[rb] = ra;
+		else if (rb < ra)
+			parent[ra] = rb;
+	}
+
+	/** A range of slices (or rows, for 2D images) labeled by a single task */
+	private static class Slab {
+
+		private final ImageStack stack;
+		private final int[][] labels;
+		private final boolean rows;
+		private final int start, end;
+		private int[] parent = new int[64];
+		private int[] bounds = new int[6 * 64];
+		private long[] sizes = new long[64];
+		private int nLabels;
+		private int[] lookup;
+
+		Slab(final ImageStack stack, final int[][] labels, final boolean rows, final int start, final int end) {
+			this.stack = stack;
+			this.labels = labels;
+			this.rows = rows;
+			this.start = start;
+			this.end = end;
+		}
+
+		void scan() {
+			final int width = stack.getWidth(), height = stack.getHeight();
+			final int z0 = (rows) ? 0 : start, z1 = (rows) ? 1 : end;
+			final int y0 = (rows) ? start : 0, y1 = (rows) ? end : height;
+			final int[] neighbors = new int[13];
+			for (int z = z0; z < z1; z++) {
+				final byte[] pixels = (byte[]) stack.getPixels(z + 1);
+				final int[] l = labels[z];
+				final int[] prev = (z > z0) ? labels[z - 1] : null;
+				for (int y = y0; y < y1; y++) {
+					for (int x = 0; x < width; x++) {
+						final int i = y * width + x;
+						if (pixels[i] == 0)
+							continue;
+
+						// Neighbors already visited within this slab
+						int n = 0;
+						if (x > 0)
+							neighbors[n++] = l[i - 1];
+						if (y > y0) {
+							for (int xx = Math.max(0, x - 1); xx <= Math.min(width - 1, x + 1); xx++)
+								neighbors[n++] = l[i - width + xx - x];
+						}
+						if (prev != null) {
+							for (int yy = Math.max(0, y - 1); yy <= Math.min(height - 1, y + 1); yy++)
+								for (int xx = Math.max(0, x - 1); xx <= Math.min(width - 1, x + 1); xx++)
+									neighbors[n++] = prev[yy * width + xx];
+						}
+
+						int label = 0;
+						for (int k = 0; k < n; k++) {
+							if (neighbors[k] == 0)
+								continue;
+							if (label == 0)
+								label = neighbors[k];
+							else
+								union(parent, label, neighbors[k]);
+						}
+						if (label == 0)
+							label = newLabel();
+						l[i] = label;
+						addVoxel(label, x, y, z);
+					}
+				}
+			}
+			for (int k = 1; k <= nLabels; k++)
+				parent[k] = find(parent, k);
+		}
+
+		private int newLabel() {
+			if (++nLabels >= parent.length) {
+				parent = Arrays.copyOf(parent, 2 * parent.length);
+				bounds = Arrays.copyOf(bounds, 6 * parent.length);
+				sizes = Arrays.copyOf(sizes, parent.length);
+			}
+			parent[nLabels] = nLabels;
+			final int b = 6 * nLabels;
+			bounds[b] = bounds[b + 1] = bounds[b + 2] = Integer.MAX_VALUE;
+			bounds[b + 3] = bounds[b + 4] = bounds[b + 5] = 0;
+			return nLabels;
+		}
+
+		private void addVoxel(final int label, final int x, final int y, final int z) {
+			final int b = 6 * label;
+			bounds[b] = Math.min(bounds[b], x);
+			bounds[b + 1] = Math.min(bounds[b + 1], y);
+			bounds[b + 2] = Math.min(bounds[b + 2], z);
+			bounds[b + 3] = Math.max(bounds[b + 3], x + 1);
+			bounds[b + 4] = Math.max(bounds[b + 4], y + 1);
+			bounds[b + 5] = Math.max(bounds[b + 5], z + 1);
+			sizes[label]++;
+		}
+
+		void setLookup(final int[] compact, final int offset) {
+			lookup = new int[nLabels + 1];
+			for (int l = 1; l <= nLabels; l++)
+				lookup[l] = compact[offset + l];
+		}
+
+		void relabel() {
+			final int width = stack.getWidth(), height = stack.getHeight();
+			final int z0 = (rows) ? 0 : start, z1 = (rows) ? 1 : end;
+			final int from = (rows) ? start * width : 0, to = (rows) ? end * width : width * height;
+			for (int z = z0; z < z1; z++) {
+				final int[] l = labels[z];
+				for (int i = from; i < to; i++)
+					l[i] = lookup[l[i]];
+			}
+		}
+
+	}
+
+	/** @return the number of components */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @param x
+	 *            the x coordinate
+	 * @param y
+	 *            the y coordinate
+	 * @param z
+	 *            the 0-based slice index
+	 * @return the component label of the voxel (1-based), or zero for
+	 *         background
+	 */
+	public int getLabel(final int x, final int y, final int z) {
+		return labels[z][y * width + x];
+	}
+
+	/**
+	 * @param z
+	 *            the 0-based slice index
+	 * @return the labels of the slice (not a copy)
+	 */
+	public int[] getLabels(final int z) {
+		return labels[z];
+	}
+
+	/**
+	 * @param label
+	 *            the component label (1-based)
+	 * @return the bounding box of the component as
+	 *         {@code {x0, y0, z0, x1, y1, z1}}, with end-exclusive upper bounds
+	 */
+	public int[] getBounds(final int label) {
+		return Arrays.copyOfRange(bounds, 6 * (label - 1), 6 * label);
+	}
+
+	/**
+	 * @param label
+	 *            the component label (1-based)
+	 * @return the number of voxels of the component
+	 */
+	public long getSize(final int label) {
+		return sizes[label - 1];
+	}
+
+	/**
+	 * @return the label volume as a 16-bit image (or 32-bit, if there are
+	 *         more than 65535 components)
+	 */
+	public ImagePlus toImagePlus(final String title) {
+		final ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+			final int[] l = labels[z];
+			if (count <= 65535) {
+				final short[] pixels = new short[l.length];
+				for (int i = 0; i < l.length; i++)
+					pixels[i] = (short) l[i];
+				stack.addSlice("", pixels);
+			} else {
+				final float[] pixels = new float[l.length];
+				for (int i = 0; i < l.length; i++)
+					pixels[i] = l[i];
+				stack.addSlice("", pixels);
+			}
+		}
+		return new ImagePlus(title, stack);
+	}
+
+}
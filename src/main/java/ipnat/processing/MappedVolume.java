@@ -0,0 +1,287 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.gui.Roi;
+import ij.io.FileInfo;
+import ij.io.RoiDecoder;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * An 8-bit volume backed by a memory-mapped file (uncompressed TIFF or raw
+ * data). Planes are paged in by the operating system on demand: Nothing is
+ * read when the volume is opened and {@link #getPlane(int)} returns views of
+ * the mapped file without copying any data. Mappings remain valid after the
+ * file is closed.
+ *
+ * @author Tiago Ferreira
+ */
+public class MappedVolume implements PlaneSource {
+
+	/* Maximum size of a single mapping (MappedByteBuffers are int-indexed) */
+	private static final long MAX_CHUNK_SIZE = 1L << 30;
+
+	private final String title;
+	private final int width, height, depth;
+	private final Calibration cal;
+	private final Roi roi;
+	private final MappedByteBuffer[] chunks;
+	private final int[] planeChunk;
+	private final int[] planeOffset;
+
+	private MappedVolume(final File file, final int width, final int height, final long[] offsets,
+			final Calibration cal, final Roi roi) throws IOException {
+		title = file.getName();
+		this.width = width;
+		this.height = height;
+		depth = offsets.length;
+		this.cal = cal;
+		this.roi = roi;
+		planeChunk = new int[depth];
+		planeOffset = new int[depth];
+		final long planeSize = (long) width * height;
+		if (planeSize > MAX_CHUNK_SIZE)
+			throw new IOException("Planes larger than " + MAX_CHUNK_SIZE + " bytes are not supported");
+
+		// Map runs of contiguous planes into as few buffers as possible
+		final List<MappedByteBuffer> buffers = new ArrayList<>();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			final long fileSize = channel.size();
+			long chunkStart = -1, chunkEnd = -1;
+			for (int z = 0; z <= depth; z++) {
+				if (z < depth && offsets[z] + planeSize > fileSize)
+					throw new IOException(file.getName() + " is truncated: plane " + (z + 1) + " is missing");
+				if (z == depth || offsets[z] != chunkEnd || chunkEnd + planeSize - chunkStart > MAX_CHUNK_SIZE) {
+					if (chunkStart >= 0)
+						buffers.add(channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkEnd - chunkStart));
+					if (z == depth)
+						break;
+					chunkStart = chunkEnd = offsets[z];
+				}
+				planeChunk[z] = buffers.size();
+				planeOffset[z] = (int) (chunkEnd - chunkStart);
+				chunkEnd += planeSize;
+			}
+		}
+		chunks = buffers.toArray(new MappedByteBuffer[buffers.size()]);
+	}
+
+	/**
+	 * Maps a headerless 8-bit file.
+	 *
+	 * @param file
+	 *            the raw file
+	 * @param width
+	 *            the width of each plane
+	 * @param height
+	 *            the height of each plane
+	 * @param depth
+	 *            the number of planes
+	 * @param headerSize
+	 *            the number of bytes preceding the first plane
+	 * @return the mapped volume
+	 * @throws IOException
+	 *             if the file could not be mapped or is too small
+	 */
+	public static MappedVolume openRaw(final File file, final int width, final int height, final int depth,
+			final long headerSize) throws IOException {
+		final long[] offsets = new long[depth];
+		for (int z = 0; z < depth; z++)
+			offsets[z] = headerSize + z * (long) width * height;
+		return new MappedVolume(file, width, height, offsets, new Calibration(), null);
+	}
+
+	/**
+	 * Maps an uncompressed 8-bit TIFF file. Both ImageJ stacks (contiguous
+	 * planes) and multi-page TIFFs with uncompressed, contiguous strips are
+	 * supported.
+	 *
+	 * @param file
+	 *            the TIFF file
+	 * @return the mapped volume
+	 * @throws IOException
+	 *             if the file could not be decoded or mapped, or if it is
+	 *             compressed, not 8-bit grayscale (e.g., indexed color), or
+	 *             stores inverted pixel values (white is zero)
+	 */
+	public static MappedVolume openTiff(final File file) throws IOException {
+		final TiffDecoder decoder = new TiffDecoder(file.getAbsoluteFile().getParent() + File.separator,
+				file.getName());
+		final FileInfo[] info = decoder.getTiffInfo();
+		if (info == null || info.length == 0)
+			throw new IOException(file.getName() + " is not a valid TIFF file");
+		final FileInfo fi = info[0];
+		final long planeSize = (long) fi.width * fi.height;
+		final long[] offsets;
+		if (info.length == 1 && fi.nImages > 1) {
+			checkMappable(fi, fi, file);
+			offsets = new long[fi.nImages];
+			for (int z = 0; z < offsets.length; z++)
+				offsets[z] = fi.getOffset() + z * (planeSize + fi.gapBetweenImages);
+		} else {
+			offsets = new long[info.length];
+			for (int z = 0; z < offsets.length; z++) {
+				checkMappable(fi, info[z], file);
+				offsets[z] = info[z].getOffset();
+			}
+		}
+		final Calibration cal = new Calibration();
+		cal.pixelWidth = fi.pixelWidth;
+		cal.pixelHeight = fi.pixelHeight;
+		cal.pixelDepth = fi.pixelDepth;
+		if (fi.unit != null)
+			cal.setUnit(fi.unit);
+		if (fi.description != null) {
+			// ImageJ stores the voxel depth in the image description
+			for (final String line : fi.description.split("\n")) {
+				if (line.startsWith("spacing=")) {
+					try {
+						cal.pixelDepth = Double.parseDouble(line.substring(8));
+					} catch (final NumberFormatException ignored) {
+						// keep default
+					}
+				} else if (line.startsWith("unit=")) {
+					cal.setUnit(line.substring(5));
+				}
+			}
+		}
+		final Roi roi = (fi.roi == null) ? null : RoiDecoder.openFromByteArray(fi.roi);
+		return new MappedVolume(file, fi.width, fi.height, offsets, cal, roi);
+	}
+
+	private static void checkMappable(final FileInfo first, final FileInfo fi, final File file) throws IOException {
+		if (fi.fileType != FileInfo.GRAY8)
+			throw new IOException(file.getName() + " is not an 8-bit grayscale image");
+		if (fi.whiteIsZero)
+			throw new IOException(file.getName() + " has inverted (white is zero) pixel values");
+		if (fi.compression > FileInfo.COMPRESSION_NONE)
+			throw new IOException(file.getName() + " is compressed");
+		if (fi.width != first.width || fi.height != first.height)
+			throw new IOException(file.getName() + " has pages of different dimensions");
+		if (fi.stripOffsets != null && fi.stripLengths != null) {
+			long expected = fi.stripOffsets[0];
+			for (int i = 0; i < fi.stripOffsets.length; i++) {
+				if (fi.stripOffsets[i] != expected)
+					throw new IOException(file.getName() + " has non-contiguous strips");
+				expected += fi.stripLengths[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns a read-only view of a plane. No data is copied.
+	 *
+	 * @param z
+	 *            the 0-based plane index
+	 * @return the plane, {@code width*height} bytes long
+	 */
+	public ByteBuffer getPlane(final int z) {
+		final ByteBuffer view = chunks[planeChunk[z]].duplicate();
+		view.position(planeOffset[z]);
+		view.limit(planeOffset[z] + width * height);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	@Override
+	public void readPlane(final int z, final byte[] buffer) {
+		getPlane(z).get(buffer, 0, width * height);
+	}
+
+	/**
+	 * Wraps this volume in a virtual stack, so that it can be used by commands
+	 * that require an {@link ImagePlus}. Planes are read from the mapping as
+	 * they are accessed.
+	 *
+	 * @return the image backed by this volume
+	 */
+	public ImagePlus toImagePlus() {
+		final VirtualStack stack = new VirtualStack(width, height, null, null) {
+
+			@Override
+			public ImageProcessor getProcessor(final int n) {
+				final byte[] pixels = new byte[width * height];
+				readPlane(n - 1, pixels);
+				return new ByteProcessor(width, height, pixels);
+			}
+
+			@Override
+			public int getSize() {
+				return depth;
+			}
+
+			@Override
+			public String getSliceLabel(final int n) {
+				return null;
+			}
+		};
+		final ImagePlus imp = new ImagePlus(title, stack);
+		imp.setCalibration(cal);
+		if (roi != null)
+			imp.setRoi(roi);
+		return imp;
+	}
+
+	/** @return the ROI stored in the TIFF file, or {@code null} */
+	public Roi getRoi() {
+		return roi;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getDepth() {
+		return depth;
+	}
+
+	@Override
+	public String getTitle() {
+		return title;
+	}
+
+	@Override
+	public Calibration getCalibration() {
+		return cal;
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.processing;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/**
+ * A read-only 8-bit volume accessed one plane (slice) at a time, so that
+ * volumes do not need to be fully loaded to be analyzed. Implementations must
+ * allow concurrent reads of distinct planes.
+ *
+ * @author Tiago Ferreira
+ */
+public interface PlaneSource {
+
+	/** @return the width of each plane */
+	int getWidth();
+
+	/** @return the height of each plane */
+	int getHeight();
+
+	/** @return the number of planes */
+	int getDepth();
+
+	/** @return the title of the volume */
+	String getTitle();
+
+	/** @return the spatial calibration of the volume */
+	Calibration getCalibration();
+
+	/**
+	 * Copies a plane into the specified buffer.
+	 *
+	 * @param z
+	 *            the 0-based plane index
+	 * @param buffer
+	 *            the array ({@code width*height} long) to be populated
+	 */
+	void readPlane(int z, byte[] buffer);
+
+	/**
+	 * Wraps an 8-bit image. Planes of virtual stacks are read from disk on
+	 * demand.
+	 *
+	 * @param imp
+	 *            the 8-bit image
+	 * @return the plane source
+	 * @throws IllegalArgumentException
+	 *             if image is not 8-bit
+	 */
+	static PlaneSource of(final ImagePlus imp) throws IllegalArgumentException {
+		if (imp.getBitDepth() != 8)
+			throw new IllegalArgumentException("An 8-bit image is required");
+		final ImageStack stack = imp.getStack();
+		final String title = imp.getTitle();
+		final Calibration cal = imp.getCalibration();
+		return new PlaneSource() {
+
+			@Override
+			public int getWidth() {
+				return stack.getWidth();
+			}
+
+			@Override
+			public int getHeight() {
+				return stack.getHeight();
+			}
+
+			@Override
+			public int getDepth() {
+				return stack.getSize();
+			}
+
+			@Override
+			public String getTitle() {
+				return title;
+			}
+
+			@Override
+			public Calibration getCalibration() {
+				return cal;
+			}
+
+			@Override
+			public void readPlane(final int z, final byte[] buffer) {
+				System.arraycopy(stack.getPixels(z + 1), 0, buffer, 0, buffer.length);
+			}
+		};
+	}
+
+}
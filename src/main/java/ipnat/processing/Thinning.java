@@ -0,0 +1,374 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.processing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+
+/**
+ * Multi-threaded 2D/3D thinning. Implements the same algorithm as
+ * {@link sc.fiji.skeletonize3D.Skeletonize3D_} (Lee et al., CVGIP: Graphical
+ * Models and Image Processing, 56(6):462-478, 1994): Border voxels are
+ * removed in six directional sub-iterations (N, S, E, W, U, B) until no
+ * further voxels can be deleted. A border voxel is deleted if it is not an
+ * end-point and its deletion preserves both the Euler characteristic and the
+ * number of connected components of its 26-neighborhood.
+ * <p>
+ * In each sub-iteration, deletion candidates are detected concurrently
+ * across slabs of slices (bands of rows, for 2D images). Candidates are then
+ * re-checked for simplicity in two phases (even, then odd slabs) so that
+ * concurrently re-checked voxels never share a neighborhood. Each deletion is
+ * thus validated against the current state of its neighborhood. Slabs have a
+ * fixed size, so the output is the same for any number of threads.
+ * </p>
+ * <p>
+ * Results are topologically equivalent to those of {@code Skeletonize3D_},
+ * but may differ from them at a few voxels: Candidates are re-checked slab by
+ * slab rather than in a single raster pass, and re-checks also require Euler
+ * invariance, so that the last voxel of a small object (whose neighbors were
+ * all deleted in the same sub-iteration) is never removed.
+ * </p>
+ *
+ * @author Tiago Ferreira
+ */
+public class Thinning {
+
+	/* Directional sub-iterations: offsets of the neighbor that must be background */
+	private static final int[][] BORDERS = { { 0, -1, 0 }, { 0, 1, 0 }, { 1, 0, 0 }, { -1, 0, 0 }, { 0, 0, 1 },
+			{ 0, 0, -1 } };
+
+	/*
+	 * Number of slices (3D) or rows (2D) per slab. Independent of the number
+	 * of threads, so that results are reproducible
+	 */
+	private static final int SLAB_SLICES = 4;
+	private static final int SLAB_ROWS = 16;
+
+	/* Center of the 27-voxel neighborhood, indexed as 9*(dz+1) + 3*(dy+1) + (dx+1) */
+	private static final int CENTER = 13;
+
+	/*
+	 * Contribution of each octant (2x2x2 cube holding the center voxel) to
+	 * the change of the Euler characteristic caused by the deletion of the
+	 * center voxel. Indexed by octant configuration: bit 0 is the center, bit
+	 * b (1-7) is the voxel offset from the center by (b & 1) along x,
+	 * (b >> 1 & 1) along z and (b >> 2 & 1) along y. Values are those of the
+	 * look-up table of Lee et al.
+	 */
+	private static final int[] EULER_LUT = new int[256];
+
+	/* Neighborhood indices of the 7 non-center voxels of each octant, by bit */
+	private static final int[][] OCTANTS = new int[8][8];
+
+	/* 26-adjacency between the non-center voxels of the neighborhood */
+	private static final int[][] ADJACENT = new int[27][];
+
+	static {
+		for (int n = 1; n < 256; n += 2)
+			EULER_LUT[n] = localEuler(n) - localEuler(n & ~1);
+		int octant = 0;
+		for (int sz = -1; sz <= 1; sz += 2)
+			for (int sy = -1; sy <= 1; sy += 2)
+				for (int sx = -1; sx <= 1; sx += 2) {
+					for (int b = 1; b < 8; b++)
+						OCTANTS[octant][b] = index(sx * (b & 1), sy * (b >> 2 & 1), sz * (b >> 1 & 1));
+					octant++;
+				}
+		for (int i = 0; i < 27; i++) {
+			if (i == CENTER)
+				continue;
+			final int[] adjacent = new int[26];
+			int n = 0;
+			for (int j = 0; j < 27; j++) {
+				if (j != i && j != CENTER && Math.abs(j % 3 - i % 3) <= 1 && Math.abs(j / 3 % 3 - i / 3 % 3) <= 1
+						&& Math.abs(j / 9 - i / 9) <= 1)
+					adjacent[n++] = j;
+			}
+			ADJACENT[i] = Arrays.copyOf(adjacent, n);
+		}
+	}
+
+	/*
+	 * Euler characteristic (26-connectivity) of a 2x2x2 configuration,
+	 * scaled by 8: The cube and its faces, edges and voxels are shared by 1,
+	 * 2, 4 and 8 cubes, respectively
+	 */
+	private static int localEuler(final int config) {
+		if (config == 0)
+			return 0;
+		int faces = 0, edges = 0;
+		for (int axis = 0; axis < 3; axis++) {
+			for (int v = 0; v < 2; v++) {
+				int face = 0, edge0 = 0, edge1 = 0;
+				for (int b = 0; b < 8; b++) {
+					if ((b >> axis & 1) == v)
+						face |= 1 << b;
+					if ((b >> (axis + 1) % 3 & 1) == v) {
+						if ((b >> (axis + 2) % 3 & 1) == 0)
+							edge0 |= 1 << b;
+						else
+							edge1 |= 1 << b;
+					}
+				}
+				if ((config & face) != 0)
+					faces++;
+				if ((config & edge0) != 0)
+					edges++;
+				if ((config & edge1) != 0)
+					edges++;
+			}
+		}
+		return 8 - 4 * faces + 2 * edges - Integer.bitCount(config);
+	}
+
+	private static int index(final int dx, final int dy, final int dz) {
+		return 9 * (dz + 1) + 3 * (dy + 1) + dx + 1;
+	}
+
+	private final byte[][] slices;
+	private final int width, height, depth;
+	private final boolean rows;
+
+	private Thinning(final ImageStack stack) {
+		width = stack.getWidth();
+		height = stack.getHeight();
+		depth = stack.getSize();
+		rows = depth == 1;
+		slices = new byte[depth][];
+		for (int z = 0; z < depth; z++)
+			slices[z] = (byte[]) stack.getPixels(z + 1);
+	}
+
+	/**
+	 * Skeletonizes an image in place using all available threads.
+	 *
+	 * @param imp
+	 *            the 8-bit image to be skeletonized. Non-zero voxels are
+	 *            considered foreground. Skeleton voxels are set to 255
+	 */
+	public static void skeletonize(final ImagePlus imp) {
+		skeletonize(imp.getStack(), Prefs.getThreads());
+	}
+
+	/**
+	 * Skeletonizes a stack in place.
+	 *
+	 * @param stack
+	 *            the 8-bit stack to be skeletonized. Non-zero voxels are
+	 *            considered foreground. Skeleton voxels are set to 255
+	 * @param nThreads
+	 *            the number of threads. It does not affect the output
+	 */
+	public static void skeletonize(final ImageStack stack, final int nThreads) {
+		new Thinning(stack).thin(Math.max(1, nThreads));
+	}
+
+	private void thin(final int nThreads) {
+		final int nPlanes = (rows) ? height : depth;
+		final int slabSize = (rows) ? SLAB_ROWS : SLAB_SLICES;
+		final int nSlabs = (nPlanes + slabSize - 1) / slabSize;
+		final List<Slab> even = new ArrayList<>(), odd = new ArrayList<>();
+		for (int s = 0; s < nSlabs; s++) {
+			final Slab slab = new Slab(s * slabSize, Math.min(nPlanes, (s + 1) * slabSize));
+			((s % 2 == 0) ? even : odd).add(slab);
+		}
+		final List<Slab> all = new ArrayList<>(even);
+		all.addAll(odd);
+
+		final ExecutorService executor = (nThreads > 1 && nSlabs > 1) ? Executors.newFixedThreadPool(nThreads)
+				: null;
+		try {
+			int unchangedBorders = 0;
+			while (unchangedBorders < 6) {
+				unchangedBorders = 0;
+				for (final int[] border : BORDERS) {
+					run(executor, all, slab -> slab.findCandidates(border));
+					final boolean changedEven = run(executor, even, Slab::deleteCandidates);
+					final boolean changedOdd = run(executor, odd, Slab::deleteCandidates);
+					if (!changedEven && !changedOdd)
+						unchangedBorders++;
+				}
+			}
+		} finally {
+			if (executor != null)
+				executor.shutdown();
+		}
+
+		for (final byte[] pixels : slices)
+			for (int i = 0; i < pixels.length; i++)
+				if (pixels[i] != 0)
+					pixels[i] = (byte) 255;
+	}
+
+	private interface SlabTask {
+		boolean run(Slab slab);
+	}
+
+	/* Runs a task on each slab. Returns true if any of the tasks returned true */
+	private static boolean run(final ExecutorService executor, final List<Slab> slabs, final SlabTask task) {
+		boolean result = false;
+		if (executor == null) {
+			for (final Slab slab : slabs)
+				result |= task.run(slab);
+			return result;
+		}
+		final List<Future<Boolean>> futures = new ArrayList<>(slabs.size());
+		for (final Slab slab : slabs) {
+			final Callable<Boolean> callable = () -> task.run(slab);
+			futures.add(executor.submit(callable));
+		}
+		try {
+			for (final Future<Boolean> future : futures)
+				result |= future.get();
+		} catch (final InterruptedException | ExecutionException exc) {
+			executor.shutdownNow();
+			throw new IllegalStateException("Image could not be skeletonized", exc);
+		}
+		return result;
+	}
+
+	private boolean get(final int x, final int y, final int z) {
+		return x >= 0 && x < width && y >= 0 && y < height && z >= 0 && z < depth && slices[z][y * width + x] != 0;
+	}
+
+	/* Retrieves the 27-voxel neighborhood of a voxel. Returns the number of foreground voxels */
+	private int getNeighborhood(final int x, final int y, final int z, final boolean[] neighborhood) {
+		int count = 0;
+		for (int dz = -1; dz <= 1; dz++)
+			for (int dy = -1; dy <= 1; dy++)
+				for (int dx = -1; dx <= 1; dx++) {
+					final boolean value = get(x + dx, y + dy, z + dz);
+					neighborhood[index(dx, dy, dz)] = value;
+					if (value)
+						count++;
+				}
+		return count;
+	}
+
+	private static boolean isEulerInvariant(final boolean[] neighborhood) {
+		int euler = 0;
+		for (final int[] octant : OCTANTS) {
+			int config = 1;
+			for (int b = 1; b < 8; b++)
+				if (neighborhood[octant[b]])
+					config |= 1 << b;
+			euler += EULER_LUT[config];
+		}
+		return euler == 0;
+	}
+
+	/* Whether the foreground of the neighborhood (excluding its center) has at most one 26-connected component */
+	private static boolean isSimplePoint(final boolean[] neighborhood, final int[] queue) {
+		final boolean[] visited = new boolean[27];
+		int nComponents = 0;
+		for (int i = 0; i < 27; i++) {
+			if (i == CENTER || !neighborhood[i] || visited[i])
+				continue;
+			if (++nComponents > 1)
+				return false;
+			int size = 0;
+			queue[size++] = i;
+			visited[i] = true;
+			while (size > 0) {
+				final int current = queue[--size];
+				for (final int j : ADJACENT[current]) {
+					if (neighborhood[j] && !visited[j]) {
+						visited[j] = true;
+						queue[size++] = j;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/** A range of slices (or rows, for 2D images) processed by a single task */
+	private class Slab {
+
+		private final int start, end;
+		private final boolean[] neighborhood = new boolean[27];
+		private final int[] queue = new int[27];
+		private int[] candidates = new int[256]; // {x, y, z} triplets
+		private int nCandidates;
+
+		Slab(final int start, final int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		boolean findCandidates(final int[] border) {
+			nCandidates = 0;
+			final int z0 = (rows) ? 0 : start, z1 = (rows) ? 1 : end;
+			final int y0 = (rows) ? start : 0, y1 = (rows) ? end : height;
+			for (int z = z0; z < z1; z++) {
+				final byte[] pixels = slices[z];
+				for (int y = y0; y < y1; y++) {
+					for (int x = 0; x < width; x++) {
+						if (pixels[y * width + x] == 0 || get(x + border[0], y + border[1], z + border[2]))
+							continue;
+						final int count = getNeighborhood(x, y, z, neighborhood);
+						if (count == 2) // end-point
+							continue;
+						if (!isEulerInvariant(neighborhood) || !isSimplePoint(neighborhood, queue))
+							continue;
+						if (3 * nCandidates + 3 > candidates.length)
+							candidates = Arrays.copyOf(candidates, 2 * candidates.length);
+						candidates[3 * nCandidates] = x;
+						candidates[3 * nCandidates + 1] = y;
+						candidates[3 * nCandidates + 2] = z;
+						nCandidates++;
+					}
+				}
+			}
+			return nCandidates > 0;
+		}
+
+		/* Deletes candidates that remain simple points (in raster order) */
+		boolean deleteCandidates() {
+			boolean changed = false;
+			for (int c = 0; c < nCandidates; c++) {
+				final int x = candidates[3 * c], y = candidates[3 * c + 1], z = candidates[3 * c + 2];
+				final int i = y * width + x;
+				final byte value = slices[z][i];
+				slices[z][i] = 0;
+				getNeighborhood(x, y, z, neighborhood);
+				if (isEulerInvariant(neighborhood) && isSimplePoint(neighborhood, queue))
+					changed = true;
+				else
+					slices[z][i] = value;
+			}
+			return changed;
+		}
+
+	}
+
+}
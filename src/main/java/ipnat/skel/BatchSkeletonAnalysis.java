@@ -0,0 +1,465 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+import ipnat.IPNAT;
+import ipnat.Utils;
+import ipnat.processing.MappedVolume;
+
+/**
+ * This class implements the ImageJ {@code Batch Skeleton Analysis} plugin.
+ * It runs {@link StrahlerAnalyzer} or {@link SummarizeSkeleton} on all the
+ * images of a directory using a pool of worker threads (one image per task)
+ * and streams the results to a single CSV/TSV file as images are processed.
+ * Images already listed in the output file are skipped, so that an
+ * interrupted batch can be resumed: Incomplete rows left by an interrupted
+ * run are discarded and the affected images analyzed again. Results are only
+ * appended to files created by the same type of analysis.
+ *
+ * @author Tiago Ferreira
+ */
+public class BatchSkeletonAnalysis implements PlugIn {
+
+	/** Analysis choices */
+	public static final String[] ANALYSES = { "Strahler Analysis", "Summarize Skeleton" };
+
+	/* Heading of the column holding the path of each analyzed file */
+	private static final String FILE_HEADING = "File";
+
+	private String inputDir = "";
+	private String outputPath = "";
+	private String extensions = ".tif .tiff .png";
+	private int analysisChoice = 0;
+	private boolean recursive = true;
+	private int nThreads = Prefs.getThreads();
+
+	private final Object writeLock = new Object();
+	private BufferedWriter writer;
+	private String delimiter;
+	private List<String> headings;
+	private boolean headerPending;
+	private AtomicInteger nFailures;
+
+	/** Debug method */
+	public static void main(final String[] args) {
+		IJ.runPlugIn("ipnat.skel.BatchSkeletonAnalysis", "");
+	}
+
+	@Override
+	public void run(final String ignored) {
+
+		if (!Utils.validSkelDependencies() || !showDialog())
+			return;
+		final File dir = new File(inputDir);
+		final File output = new File(outputPath);
+		if (!dir.isDirectory()) {
+			Utils.error("Batch Skeleton Analysis", inputDir + " is not a valid directory.", null);
+			return;
+		}
+		try {
+			final long startTime = System.currentTimeMillis();
+			final int nProcessed = process(dir, output);
+			IJ.log("[" + IPNAT.getVersion() + "] Batch Skeleton Analysis: " + nProcessed + " image(s) analyzed in "
+					+ IJ.d2s((System.currentTimeMillis() - startTime) / 1000d, 1) + "s. " + nFailures.get()
+					+ " failure(s). Results saved to " + output.getAbsolutePath());
+		} catch (final IOException exc) {
+			Utils.error("Batch Skeleton Analysis", exc.getMessage(), null);
+		}
+
+	}
+
+	private boolean showDialog() {
+		final GenericDialog gd = new GenericDialog("Batch Skeleton Analysis :: " + IPNAT.getVersion());
+		gd.addDirectoryField("Input directory", inputDir, 30);
+		gd.addStringField("File extensions", extensions, 20);
+		gd.addCheckbox("Include subdirectories", recursive);
+		gd.addChoice("Analysis", ANALYSES, ANALYSES[analysisChoice]);
+		gd.addFileField("Output file (.csv or .tsv)", outputPath, 30);
+		gd.addNumericField("Parallel threads", nThreads, 0);
+		gd.addMessage("Images already listed in the output file are skipped.");
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		inputDir = gd.getNextString();
+		extensions = gd.getNextString();
+		recursive = gd.getNextBoolean();
+		analysisChoice = gd.getNextChoiceIndex();
+		outputPath = gd.getNextString();
+		nThreads = Math.max(1, (int) gd.getNextNumber());
+		return !outputPath.trim().isEmpty();
+	}
+
+	/**
+	 * Sets the options used by {@link #process(File, File)}.
+	 *
+	 * @param analysis
+	 *            the analysis to be performed: one of {@link #ANALYSES}
+	 * @param fileExtensions
+	 *            space-separated list of extensions of the files to be
+	 *            analyzed, e.g., {@code ".tif .png"}
+	 * @param includeSubdirectories
+	 *            whether subdirectories should be processed
+	 * @param threads
+	 *            the number of images to be analyzed concurrently
+	 */
+	public void setOptions(final String analysis, final String fileExtensions, final boolean includeSubdirectories,
+			final int threads) {
+		for (int i = 0; i < ANALYSES.length; i++) {
+			if (ANALYSES[i].equalsIgnoreCase(analysis))
+				analysisChoice = i;
+		}
+		extensions = fileExtensions;
+		recursive = includeSubdirectories;
+		nThreads = Math.max(1, threads);
+	}
+
+	/**
+	 * Analyzes all the images in the specified directory, appending results to
+	 * the specified file. No windows are displayed.
+	 *
+	 * @param dir
+	 *            the directory containing the images to be analyzed
+	 * @param output
+	 *            the output file. Values are tab-separated unless the file has
+	 *            a {@code .csv} extension. If the file already exists, images
+	 *            already listed in it are skipped
+	 * @return the number of images analyzed successfully
+	 * @throws IOException
+	 *             if directory could not be read, output file could not be
+	 *             written, or if output file exists but its columns do not
+	 *             match the chosen analysis
+	 */
+	public int process(final File dir, final File output) throws IOException {
+
+		delimiter = output.getName().toLowerCase(Locale.US).endsWith(".csv") ? "," : "\t";
+		headings = new ArrayList<>();
+		headings.add(FILE_HEADING);
+		headings.addAll(Arrays.asList((analysisChoice == 0) ? StrahlerResult.HEADINGS : SummarizeSkeleton.HEADINGS));
+		nFailures = new AtomicInteger();
+		final Set<String> done = readProcessedFiles(output);
+		final List<Path> files = listFiles(dir.toPath());
+		files.removeIf(path -> done.contains(relativePath(dir.toPath(), path)));
+		if (!done.isEmpty())
+			IJ.log("Batch Skeleton Analysis: Skipping " + done.size() + " image(s) listed in " + output.getName());
+
+		final AtomicInteger nProcessed = new AtomicInteger();
+		final AtomicInteger counter = new AtomicInteger();
+		writer = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(output, true), StandardCharsets.UTF_8));
+		final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		try {
+			for (final Path path : files) {
+				executor.submit(() -> {
+					final String relativePath = relativePath(dir.toPath(), path);
+					try {
+						if (analyze(path.toFile(), relativePath))
+							nProcessed.incrementAndGet();
+						else
+							nFailures.incrementAndGet();
+					} catch (final Throwable t) {
+						nFailures.incrementAndGet();
+						IJ.log(">>> Batch Skeleton Analysis: " + relativePath + " failed: " + t);
+					}
+					IJ.showProgress(counter.incrementAndGet(), files.size());
+				});
+			}
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException exc) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		} finally {
+			synchronized (writeLock) {
+				writer.close();
+			}
+			IJ.showProgress(0, 0);
+		}
+		return nProcessed.get();
+
+	}
+
+	/* Analyzes a single file and writes its rows. Returns false on failure */
+	private boolean analyze(final File file, final String relativePath) throws IOException {
+
+		// Uncompressed 8-bit TIFFs are memory-mapped rather than loaded
+		final MappedVolume volume = openMapped(file);
+		final ImagePlus imp = (volume == null) ? IJ.openImage(file.getAbsolutePath()) : null;
+		if (volume == null && (imp == null || imp.getBitDepth() != 8)) {
+			IJ.log(">>> Batch Skeleton Analysis: " + relativePath + " skipped: Not an 8-bit image");
+			if (imp != null)
+				imp.flush();
+			return false;
+		}
+		final ResultsTable rt = new ResultsTable();
+		rt.setPrecision(5);
+		rt.setNaNEmptyCells(true);
+		try {
+			if (analysisChoice == 0) {
+				final StrahlerAnalyzer analyzer = (volume == null) ? new StrahlerAnalyzer(imp)
+						: new StrahlerAnalyzer(volume);
+				analyzer.setRootRoi((volume == null) ? imp.getRoi() : volume.getRoi());
+				analyzer.setNumThreads(1); // images are already processed in parallel
+				analyzer.setCaching(false); // each image is analyzed only once
+				final StrahlerResult result = analyzer.analyze();
+				if (result.getHighestOrder() < 1) {
+					IJ.log(">>> Batch Skeleton Analysis: " + relativePath + " failed: " + result.getErrorMessage());
+					return false;
+				}
+				result.addRows(rt);
+			} else if (volume == null) {
+				SummarizeSkeleton.summarize(imp, rt, false);
+			} else {
+				SummarizeSkeleton.summarize(volume, rt);
+			}
+		} catch (final IllegalArgumentException exc) {
+			IJ.log(">>> Batch Skeleton Analysis: " + relativePath + " failed: " + exc.getMessage());
+			return false;
+		} finally {
+			if (imp != null)
+				imp.flush();
+		}
+		writeRows(rt, relativePath);
+		return true;
+	}
+
+	/* Returns null if file is not an uncompressed 8-bit TIFF */
+	private static MappedVolume openMapped(final File file) {
+		final String name = file.getName().toLowerCase(Locale.US);
+		if (!name.endsWith(".tif") && !name.endsWith(".tiff"))
+			return null;
+		try {
+			return MappedVolume.openTiff(file);
+		} catch (final IOException ignored) {
+			return null; // let IJ handle it
+		}
+	}
+
+	/* Appends table rows to the output file, writing the header if needed */
+	private void writeRows(final ResultsTable rt, final String relativePath) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		synchronized (writeLock) {
+			if (headerPending) {
+				sb.append(headings.stream().map(this::escape).collect(Collectors.joining(delimiter)));
+				sb.append("\n");
+				headerPending = false;
+			}
+			for (int row = 0; row < rt.size(); row++) {
+				sb.append(escape(relativePath));
+				for (int col = 1; col < headings.size(); col++) {
+					sb.append(delimiter);
+					final String heading = headings.get(col);
+					if (rt.columnExists(heading))
+						sb.append(escape(rt.getStringValue(heading, row)));
+				}
+				sb.append("\n");
+			}
+			writer.write(sb.toString());
+			writer.flush(); // Keep file consistent in case of a crash
+		}
+	}
+
+	/*
+	 * Retrieves the files listed in a pre-existing output file. A file is only
+	 * considered processed if all of its rows are present: Unterminated
+	 * records and incomplete rows (e.g., from an interrupted run) are removed
+	 * from the output file so that the affected images are analyzed again
+	 */
+	private Set<String> readProcessedFiles(final File output) throws IOException {
+		final Set<String> done = new HashSet<>();
+		headerPending = true;
+		if (!output.exists())
+			return done;
+		final String content = new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8);
+		final List<String> records = records(content);
+		if (records.isEmpty()) {
+			if (!content.isEmpty())
+				rewrite(output, records);
+			return done;
+		}
+		if (!fields(records.get(0)).equals(headings))
+			throw new IOException(output.getName() + " does not contain \"" + ANALYSES[analysisChoice]
+					+ "\" results. Please choose another output file.");
+		headerPending = false;
+
+		// Rows of each file are written at once, so they are contiguous
+		final List<String> kept = new ArrayList<>();
+		kept.add(records.get(0));
+		int start = 1;
+		while (start < records.size()) {
+			final String file = fields(records.get(start)).get(0);
+			int end = start + 1;
+			while (end < records.size() && fields(records.get(end)).get(0).equals(file))
+				end++;
+			final List<String> rows = records.subList(start, end);
+			if (isComplete(rows, end == records.size())) {
+				done.add(file);
+				kept.addAll(rows);
+			}
+			start = end;
+		}
+		if (kept.size() < records.size() || !content.endsWith("\n")) {
+			IJ.log("Batch Skeleton Analysis: Discarding incomplete rows from " + output.getName());
+			rewrite(output, kept);
+		}
+		return done;
+	}
+
+	/*
+	 * Whether the specified rows hold the complete results of a file. Summaries
+	 * have a single row per file. Strahler tables have one row per order and
+	 * since the highest order cannot be known without re-analyzing the image,
+	 * the last file in the output is assumed to have been interrupted
+	 */
+	private boolean isComplete(final List<String> rows, final boolean last) {
+		if (analysisChoice != 0)
+			return rows.size() == 1;
+		if (last)
+			return false;
+		final int orderColumn = headings.indexOf("Strahler Order");
+		try {
+			for (int i = 0; i < rows.size(); i++) {
+				final List<String> fields = fields(rows.get(i));
+				if (fields.size() != headings.size() || Double.parseDouble(fields.get(orderColumn)) != i + 1)
+					return false;
+			}
+		} catch (final NumberFormatException exc) {
+			return false;
+		}
+		return true;
+	}
+
+	/* Replaces the contents of the output file with the specified records */
+	private static void rewrite(final File output, final List<String> records) throws IOException {
+		final Path tmp = Files.createTempFile(output.getAbsoluteFile().toPath().getParent(), ".", ".tmp");
+		final StringBuilder sb = new StringBuilder();
+		for (final String record : records)
+			sb.append(record).append("\n");
+		Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/*
+	 * Splits text into newline-terminated records (newlines within quoted
+	 * values do not terminate records). Unterminated records and empty lines
+	 * are ignored
+	 */
+	private static List<String> records(final String content) {
+		final List<String> records = new ArrayList<>();
+		boolean quoted = false;
+		int start = 0;
+		for (int i = 0; i < content.length(); i++) {
+			final char c = content.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (c == '\n' && !quoted) {
+				if (i > start)
+					records.add(content.substring(start, i));
+				start = i + 1;
+			}
+		}
+		return records;
+	}
+
+	private List<Path> listFiles(final Path dir) throws IOException {
+		final String[] exts = extensions.toLowerCase(Locale.US).trim().split("[\\s,;]+");
+		try (Stream<Path> stream = (recursive) ? Files.walk(dir) : Files.list(dir)) {
+			return stream.filter(Files::isRegularFile).filter(path -> {
+				final String name = path.getFileName().toString().toLowerCase(Locale.US);
+				if (name.startsWith("."))
+					return false;
+				for (final String ext : exts) {
+					if (ext.isEmpty() || name.endsWith(ext))
+						return true;
+				}
+				return false;
+			}).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private static String relativePath(final Path dir, final Path file) {
+		return dir.relativize(file).toString().replace(File.separatorChar, '/');
+	}
+
+	/* Splits a record into its (unescaped) values */
+	private List<String> fields(final String record) {
+		final List<String> fields = new ArrayList<>();
+		final StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < record.length(); i++) {
+			final char c = record.charAt(i);
+			if (quoted) {
+				if (c != '"')
+					sb.append(c);
+				else if (i + 1 < record.length() && record.charAt(i + 1) == '"')
+					sb.append(record.charAt(++i));
+				else
+					quoted = false;
+			} else if (c == '"') {
+				quoted = true;
+			} else if (record.startsWith(delimiter, i)) {
+				fields.add(sb.toString());
+				sb.setLength(0);
+			} else {
+				sb.append(c);
+			}
+		}
+		fields.add(sb.toString());
+		return fields;
+	}
+
+	private String escape(final String value) {
+		if (value == null)
+			return "";
+		if (value.contains(delimiter) || value.contains("\"") || value.contains("\n"))
+			return "\"" + value.replace("\"", "\"\"") + "\"";
+		return value;
+	}
+
+}
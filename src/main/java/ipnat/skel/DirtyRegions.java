@@ -0,0 +1,190 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ipnat.processing.Binary;
+import ipnat.processing.BinaryVolume;
+
+/**
+ * Keeps track of the regions of a skeleton modified by the pruning of
+ * end-point branches, so that only those regions need to be re-thinned.
+ * The image is divided into fixed-size blocks: A block is 'dirty' if any of
+ * its voxels was removed since the last {@link #snapshot()}.
+ *
+ * @author Tiago Ferreira
+ */
+class DirtyRegions {
+
+	/* Block dimensions (voxels) */
+	private static final int BLOCK_XY = 32;
+	private static final int BLOCK_Z = 8;
+
+	/* Neighborhood included around each block when it is re-thinned */
+	private static final int MARGIN = 4;
+
+	/* Fraction of dirty blocks above which a full pass is preferable */
+	private static final double MAX_COVERAGE = 0.3;
+
+	private final ImagePlus imp;
+	private final int width, height, depth;
+	private final int nBlocksX, nBlocksY, nBlocksZ, blockZ;
+	private final boolean[] dirty;
+	private BinaryVolume snapshot;
+	private int nDirty;
+
+	DirtyRegions(final ImagePlus imp) {
+		this.imp = imp;
+		width = imp.getWidth();
+		height = imp.getHeight();
+		depth = imp.getStackSize();
+		blockZ = (depth > 1) ? BLOCK_Z : 1;
+		nBlocksX = (width + BLOCK_XY - 1) / BLOCK_XY;
+		nBlocksY = (height + BLOCK_XY - 1) / BLOCK_XY;
+		nBlocksZ = (depth + blockZ - 1) / blockZ;
+		dirty = new boolean[nBlocksX * nBlocksY * nBlocksZ];
+	}
+
+	/** Records the current foreground so that removed voxels can be detected */
+	void snapshot() {
+		snapshot = BinaryVolume.fromImagePlus(imp);
+	}
+
+	/**
+	 * Flags the blocks containing voxels removed since the last snapshot.
+	 *
+	 * @return the number of dirty blocks
+	 */
+	int update() {
+		Arrays.fill(dirty, false);
+		nDirty = 0;
+		if (snapshot == null)
+			return 0;
+		final BinaryVolume removed = snapshot.andNot(BinaryVolume.fromImagePlus(imp));
+		final int wordsPerRow = removed.getWordsPerRow();
+		for (int z = 0; z < depth; z++) {
+			for (int y = 0; y < height; y++) {
+				for (int k = 0; k < wordsPerRow; k++) {
+					long word = removed.getWord(z, y, k);
+					while (word != 0L) {
+						final int bit = Long.numberOfTrailingZeros(word);
+						word &= word - 1;
+						flagNeighborhood((k << 6) + bit, y, z);
+					}
+				}
+			}
+		}
+		return nDirty;
+	}
+
+	/* Flags the block(s) containing the 3x3x3 neighborhood of a voxel */
+	private void flagNeighborhood(final int x, final int y, final int z) {
+		for (int dz = -1; dz <= 1; dz++) {
+			final int zz = z + dz;
+			if (zz < 0 || zz >= depth)
+				continue;
+			for (int dy = -1; dy <= 1; dy++) {
+				final int yy = y + dy;
+				if (yy < 0 || yy >= height)
+					continue;
+				for (int dx = -1; dx <= 1; dx++) {
+					final int xx = x + dx;
+					if (xx >= 0 && xx < width)
+						flag(xx, yy, zz);
+				}
+			}
+		}
+	}
+
+	private void flag(final int x, final int y, final int z) {
+		final int idx = ((z / blockZ) * nBlocksY + y / BLOCK_XY) * nBlocksX + x / BLOCK_XY;
+		if (!dirty[idx]) {
+			dirty[idx] = true;
+			nDirty++;
+		}
+	}
+
+	/** @return true if re-thinning dirty blocks is unlikely to pay off */
+	boolean requiresFullPass() {
+		return snapshot == null || nDirty > MAX_COVERAGE * dirty.length;
+	}
+
+	/**
+	 * Re-thins the dirty blocks. Each block is thinned together with its
+	 * neighborhood but only the block itself is written back to the image.
+	 *
+	 * @param removeIsolatedPixels
+	 *            whether isolated pixels should be removed from re-thinned
+	 *            blocks
+	 * @param parallel
+	 *            whether blocks should be thinned by
+	 *            {@link ipnat.processing.Thinning} (single-threaded, since
+	 *            blocks are small) rather than
+	 *            {@link sc.fiji.skeletonize3D.Skeletonize3D_}
+	 */
+	void rethin(final boolean removeIsolatedPixels, final boolean parallel) {
+		final ImageStack stack = imp.getStack();
+		for (final int[] b : dirtyBounds()) {
+			final int x0 = Math.max(0, b[0] - MARGIN), y0 = Math.max(0, b[1] - MARGIN);
+			final int z0 = Math.max(0, b[2] - ((depth > 1) ? MARGIN : 0));
+			final int x1 = Math.min(width, b[3] + MARGIN), y1 = Math.min(height, b[4] + MARGIN);
+			final int z1 = Math.min(depth, b[5] + ((depth > 1) ? MARGIN : 0));
+			final ImagePlus crop = new ImagePlus("", stack.crop(x0, y0, z0, x1 - x0, y1 - y0, z1 - z0));
+			SkeletonCache.thin(crop, parallel, 1);
+			if (removeIsolatedPixels)
+				Binary.removeIsolatedPixels(crop);
+			final ImageStack cropStack = crop.getStack();
+			final int cropWidth = x1 - x0;
+			for (int z = b[2]; z < b[5]; z++) {
+				final byte[] dst = (byte[]) stack.getPixels(z + 1);
+				final byte[] src = (byte[]) cropStack.getPixels(z - z0 + 1);
+				for (int y = b[1]; y < b[4]; y++) {
+					System.arraycopy(src, (y - y0) * cropWidth + (b[0] - x0), dst, y * width + b[0], b[3] - b[0]);
+				}
+			}
+			crop.flush();
+		}
+	}
+
+	/* Bounds {x0, y0, z0, x1, y1, z1} (end-exclusive) of dirty blocks */
+	private List<int[]> dirtyBounds() {
+		final List<int[]> bounds = new ArrayList<>(nDirty);
+		for (int bz = 0; bz < nBlocksZ; bz++) {
+			for (int by = 0; by < nBlocksY; by++) {
+				for (int bx = 0; bx < nBlocksX; bx++) {
+					if (!dirty[(bz * nBlocksY + by) * nBlocksX + bx])
+						continue;
+					bounds.add(new int[] { bx * BLOCK_XY, by * BLOCK_XY, bz * blockZ,
+							Math.min(width, (bx + 1) * BLOCK_XY), Math.min(height, (by + 1) * BLOCK_XY),
+							Math.min(depth, (bz + 1) * blockZ) });
+				}
+			}
+		}
+		return bounds;
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+
+/**
+ * Streams the slices of a Strahler iteration stack to a temporary directory,
+ * so that iteration images are not retained in memory. Slices are exposed as
+ * a disk-backed {@link VirtualStack}. Files are deleted when the JVM exits.
+ *
+ * @author Tiago Ferreira
+ */
+class IterationStackWriter {
+
+	private final File dir;
+	private final VirtualStack stack;
+
+	IterationStackWriter(final int width, final int height) throws IOException {
+		dir = Files.createTempDirectory("ipnat-strahler").toFile();
+		dir.deleteOnExit();
+		stack = new VirtualStack(width, height, null, dir.getAbsolutePath() + File.separator);
+	}
+
+	/**
+	 * Saves a slice to disk and appends it to the virtual stack.
+	 *
+	 * @param label
+	 *            the slice label (also used as file name)
+	 * @param ip
+	 *            the slice contents
+	 * @throws IOException
+	 *             if slice could not be saved
+	 */
+	void addSlice(final String label, final ImageProcessor ip) throws IOException {
+		final String fileName = String.format("%03d", stack.getSize() + 1) + " " + label + ".tif";
+		final File file = new File(dir, fileName);
+		if (!new FileSaver(new ImagePlus(label, ip)).saveAsTiff(file.getAbsolutePath()))
+			throw new IOException("Could not save " + file.getAbsolutePath());
+		file.deleteOnExit();
+		stack.addSlice(fileName);
+	}
+
+	/** @return the number of slices written so far */
+	int getSize() {
+		return stack.getSize();
+	}
+
+	/** @return the disk-backed stack */
+	VirtualStack getStack() {
+		return stack;
+	}
+
+}
@@ -21,6 +21,8 @@
  */
 package ipnat.skel;
 
+import java.util.ArrayDeque;
+
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -81,13 +83,20 @@ public class LSystemsTree implements PlugIn {
 	private void drawTree(final ImageProcessor ip, final int x1, final int y1, final double angle,
 			final int recursions) {
 		// See http://codehackersblog.blogspot.com/2015/06/l-systems-tree-fractal-in-java.html
-		if (recursions < 0)
-			return;
-		final int x2 = x1 + (int) (Math.cos(Math.toRadians(angle)) * recursions * 10);
-		final int y2 = y1 + (int) (Math.sin(Math.toRadians(angle)) * recursions * 10);
-		ip.drawLine(x1, y1, x2, y2);
-		drawTree(ip, x2, y2, angle - 20, recursions - 1);
-		drawTree(ip, x2, y2, angle + 20, recursions - 1);
+		// Branches are drawn iteratively: {x1, y1, angle, recursions}
+		final ArrayDeque<double[]> branches = new ArrayDeque<>();
+		branches.push(new double[] { x1, y1, angle, recursions });
+		while (!branches.isEmpty()) {
+			final double[] b = branches.pop();
+			final int r = (int) b[3];
+			if (r < 0)
+				continue;
+			final int x2 = (int) b[0] + (int) (Math.cos(Math.toRadians(b[2])) * r * 10);
+			final int y2 = (int) b[1] + (int) (Math.sin(Math.toRadians(b[2])) * r * 10);
+			ip.drawLine((int) b[0], (int) b[1], x2, y2);
+			branches.push(new double[] { x2, y2, b[2] + 20, r - 1 });
+			branches.push(new double[] { x2, y2, b[2] - 20, r - 1 });
+		}
 	}
 
 }
@@ -0,0 +1,210 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+import sc.fiji.analyzeSkeleton.Edge;
+import sc.fiji.analyzeSkeleton.Graph;
+import sc.fiji.analyzeSkeleton.Point;
+import sc.fiji.analyzeSkeleton.Vertex;
+
+/**
+ * Resolves the loops of skeleton graph(s) in a single pass, as an alternative
+ * to the (image-based) cycle pruning of {@link AnalyzeSkeleton_}, which is
+ * repeated every time a skeleton is analyzed. The branches kept are those of
+ * a maximum spanning forest, weighted according to the loop-pruning method:
+ * <ul>
+ * <li>{@link AnalyzeSkeleton_#SHORTEST_BRANCH}: branch length</li>
+ * <li>{@link AnalyzeSkeleton_#LOWEST_INTENSITY_BRANCH}: average intensity of
+ * the branch</li>
+ * <li>{@link AnalyzeSkeleton_#LOWEST_INTENSITY_VOXEL}: lowest intensity of the
+ * branch</li>
+ * </ul>
+ * so that, in each loop, the shortest (or dimmest) branch is cut. Loops around
+ * a single vertex are always cut. Cut branches are split into two terminal
+ * branches, as if the cut voxel had been removed from the image. With
+ * {@link AnalyzeSkeleton_#NONE} loops are left unresolved.
+ *
+ * @author Tiago Ferreira
+ */
+public class LoopResolver {
+
+	private final int pruneChoice;
+	private final ImageStack grayscale;
+
+	/**
+	 * Instantiates a new LoopResolver.
+	 *
+	 * @param pruneChoice
+	 *            the loop-pruning method, e.g.,
+	 *            {@link AnalyzeSkeleton_#SHORTEST_BRANCH}
+	 * @param grayscaleImp
+	 *            the original grayscale image, required by intensity-based
+	 *            methods. If {@code null}, intensity-based methods fall back to
+	 *            {@link AnalyzeSkeleton_#SHORTEST_BRANCH}
+	 */
+	public LoopResolver(final int pruneChoice, final ImagePlus grayscaleImp) {
+		final boolean intensityBased = pruneChoice == AnalyzeSkeleton_.LOWEST_INTENSITY_BRANCH
+				|| pruneChoice == AnalyzeSkeleton_.LOWEST_INTENSITY_VOXEL;
+		this.grayscale = (intensityBased && grayscaleImp != null) ? grayscaleImp.getStack() : null;
+		this.pruneChoice = (intensityBased && grayscale == null) ? AnalyzeSkeleton_.SHORTEST_BRANCH : pruneChoice;
+	}
+
+	/**
+	 * Determines the branches to be cut so that no loops remain.
+	 *
+	 * @param graphs
+	 *            the graphs of the skeleton (as retrieved without loop pruning)
+	 * @return the cut branches. Empty if the skeleton has no loops or if the
+	 *         pruning method is {@link AnalyzeSkeleton_#NONE}
+	 */
+	public List<Cut> resolve(final Graph[] graphs) {
+		final List<Cut> cuts = new ArrayList<>();
+		if (graphs == null || pruneChoice == AnalyzeSkeleton_.NONE)
+			return cuts;
+		for (final Graph graph : graphs) {
+			if (graph != null && graph.getVertices() != null && graph.getEdges() != null)
+				resolve(graph, cuts);
+		}
+		return cuts;
+	}
+
+	private void resolve(final Graph graph, final List<Cut> cuts) {
+		final ArrayList<Vertex> vertices = graph.getVertices();
+		final Map<Vertex, Integer> index = new HashMap<>();
+		for (int i = 0; i < vertices.size(); i++)
+			index.put(vertices.get(i), i);
+		final int[] parent = new int[vertices.size()];
+		for (int i = 0; i < parent.length; i++)
+			parent[i] = i;
+
+		// Kruskal's algorithm: Strongest branches first
+		final List<Edge> edges = new ArrayList<>(graph.getEdges());
+		final Map<Edge, Double> weights = new HashMap<>();
+		for (final Edge e : edges)
+			weights.put(e, weight(e));
+		Collections.sort(edges, Comparator.comparingDouble((Edge e) -> weights.get(e)).reversed());
+		for (final Edge e : edges) {
+			final Integer i1 = index.get(e.getV1());
+			final Integer i2 = index.get(e.getV2());
+			if (i1 == null || i2 == null)
+				continue;
+			final int r1 = find(parent, i1), r2 = find(parent, i2);
+			if (r1 == r2)
+				cuts.add(new Cut(e, weights.get(e), cutPoint(e)));
+			else
+				parent[r1] = r2;
+		}
+	}
+
+	private double weight(final Edge e) {
+		if (pruneChoice == AnalyzeSkeleton_.SHORTEST_BRANCH)
+			return e.getLength();
+		final List<Point> slabs = e.getSlabs();
+		if (slabs == null || slabs.isEmpty())
+			return Double.MAX_VALUE; // No voxel could be removed
+		double sum = 0, min = Double.MAX_VALUE;
+		for (final Point p : slabs) {
+			final double v = grayscale.getVoxel(p.x, p.y, p.z);
+			sum += v;
+			min = Math.min(min, v);
+		}
+		return (pruneChoice == AnalyzeSkeleton_.LOWEST_INTENSITY_VOXEL) ? min : sum / slabs.size();
+	}
+
+	/* The voxel that would be removed from the image to cut the branch */
+	private Point cutPoint(final Edge e) {
+		final List<Point> slabs = e.getSlabs();
+		if (slabs == null || slabs.isEmpty())
+			return null;
+		if (pruneChoice != AnalyzeSkeleton_.LOWEST_INTENSITY_VOXEL)
+			return slabs.get(slabs.size() / 2);
+		Point lowest = slabs.get(0);
+		for (final Point p : slabs) {
+			if (grayscale.getVoxel(p.x, p.y, p.z) < grayscale.getVoxel(lowest.x, lowest.y, lowest.z))
+				lowest = p;
+		}
+		return lowest;
+	}
+
+	private static int find(final int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/** A branch cut to resolve a loop. */
+	public static class Cut {
+
+		private final Edge edge;
+		private final double weight;
+		private final Point cutPoint;
+
+		private Cut(final Edge edge, final double weight, final Point cutPoint) {
+			this.edge = edge;
+			this.weight = weight;
+			this.cutPoint = cutPoint;
+		}
+
+		/** @return the cut branch */
+		public Edge getEdge() {
+			return edge;
+		}
+
+		/**
+		 * @return the value (length or intensity, depending on the pruning
+		 *         method) that made this branch the weakest of its loop
+		 */
+		public double getWeight() {
+			return weight;
+		}
+
+		/**
+		 * @return the voxel to be removed to cut the branch in the image, or
+		 *         {@code null} if the branch has no slab voxels
+		 */
+		public Point getCutPoint() {
+			return cutPoint;
+		}
+
+		@Override
+		public String toString() {
+			final Point p1 = edge.getV1().getPoints().get(0);
+			final Point p2 = edge.getV2().getPoints().get(0);
+			return String.format("Cut branch %s-%s (length: %.3f, weight: %.3f)", p1, p2, edge.getLength(),
+					weight);
+		}
+
+	}
+
+}
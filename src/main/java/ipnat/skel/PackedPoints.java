@@ -0,0 +1,154 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import sc.fiji.analyzeSkeleton.Point;
+
+/**
+ * A list of voxel coordinates packed into a primitive array: Each point is
+ * encoded in a single {@code long} holding 21 bits per coordinate, so that
+ * large point lists (e.g., end-points and junction voxels of dense skeletons)
+ * do not require one object per point. Points can be filtered, painted and
+ * cleared in bulk.
+ *
+ * @author Tiago Ferreira
+ */
+class PackedPoints {
+
+	private static final int BITS = 21;
+	private static final long MASK = (1L << BITS) - 1;
+
+	/** The largest coordinate that can be stored */
+	static final int MAX_COORDINATE = (int) MASK;
+
+	/** Decides whether a point is kept by {@link PackedPoints#retainAll(Filter)} */
+	interface Filter {
+		boolean accept(int x, int y, int z);
+	}
+
+	private long[] points;
+	private int size;
+
+	PackedPoints() {
+		this(16);
+	}
+
+	PackedPoints(final int capacity) {
+		points = new long[Math.max(1, capacity)];
+	}
+
+	/**
+	 * Packs a list of points.
+	 *
+	 * @param list
+	 *            the points to be packed. May be {@code null}
+	 * @return the packed points (empty if list is {@code null})
+	 */
+	static PackedPoints of(final List<Point> list) {
+		if (list == null)
+			return new PackedPoints();
+		final PackedPoints packed = new PackedPoints(list.size());
+		for (final Point p : list)
+			packed.add(p.x, p.y, p.z);
+		return packed;
+	}
+
+	void add(final int x, final int y, final int z) {
+		if (x < 0 || y < 0 || z < 0 || x > MAX_COORDINATE || y > MAX_COORDINATE || z > MAX_COORDINATE)
+			throw new IllegalArgumentException("Coordinates out of range: " + x + ", " + y + ", " + z);
+		if (size == points.length)
+			points = Arrays.copyOf(points, 2 * size);
+		points[size++] = ((long) z << (2 * BITS)) | ((long) y << BITS) | x;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int getX(final int i) {
+		return (int) (points[i] & MASK);
+	}
+
+	int getY(final int i) {
+		return (int) ((points[i] >>> BITS) & MASK);
+	}
+
+	int getZ(final int i) {
+		return (int) (points[i] >>> (2 * BITS));
+	}
+
+	/**
+	 * Removes, in a single pass, all points not accepted by the filter.
+	 *
+	 * @param filter
+	 *            the filter deciding which points are kept
+	 * @return the number of removed points
+	 */
+	int retainAll(final Filter filter) {
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			final long p = points[i];
+			if (filter.accept(getX(i), getY(i), getZ(i)))
+				points[kept++] = p;
+		}
+		final int removed = size - kept;
+		size = kept;
+		return removed;
+	}
+
+	/**
+	 * Paints the XY positions of all points (i.e., their Z-projection).
+	 *
+	 * @param width
+	 *            the width of the canvas
+	 * @param height
+	 *            the height of the canvas
+	 * @param value
+	 *            the painting value
+	 * @return the painted canvas
+	 */
+	ByteProcessor paint(final int width, final int height, final int value) {
+		final ByteProcessor ipp = new ByteProcessor(width, height);
+		final byte[] pixels = (byte[]) ipp.getPixels();
+		for (int i = 0; i < size; i++)
+			pixels[getY(i) * width + getX(i)] = (byte) value;
+		return ipp;
+	}
+
+	/**
+	 * Sets all points to zero.
+	 *
+	 * @param stack
+	 *            the 8-bit stack to be modified
+	 */
+	void clear(final ImageStack stack) {
+		final int width = stack.getWidth();
+		for (int i = 0; i < size; i++)
+			((byte[]) stack.getPixels(getZ(i) + 1))[getY(i) * width + getX(i)] = 0;
+	}
+
+}
@@ -0,0 +1,223 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.awt.Color;
+
+import ij.gui.Overlay;
+import ij.gui.PointRoi;
+import ij.measure.ResultsTable;
+
+/**
+ * Immutable outcome of a {@link ParticleClassifier} run: The category of each
+ * detected particle and the summary measurements of the classification.
+ *
+ * @author Tiago Ferreira
+ */
+public class ParticleClassification {
+
+	/** Particles associated with neither junctions nor end-points */
+	public static final int UNCLASSIFIED = 0;
+	/** Particles associated with a junction */
+	public static final int JUNCTION = 1;
+	/** Particles associated with an end-point */
+	public static final int TIP = 2;
+	/** Particles equally close to a junction and an end-point */
+	public static final int JUNCTION_AND_TIP = 3;
+
+	private static final String[] LABELS = { "Unc", "Junction", "Tip", "J+T" };
+	private static final Color[] COLORS = { Color.ORANGE, Color.MAGENTA, Color.GREEN, Color.CYAN };
+
+	private static final String[] HEADINGS = { "Part. image", "Skel. image", "Junction particles",
+			"Tip particles", "J+T particles", "Unc. particles", "Junctions w/ particles", "Tips w/ particles",
+			"Total skel. lenght", "Total end points", "Total junctions", "Unc. particles / Total skel. lenght)",
+			"Snap-to dist.", "Threshold" };
+
+	private final String particlesTitle;
+	private final String skeletonTitle;
+	private final String unit;
+	private final boolean threeD;
+	private final double[] xs, ys, zs;
+	private final int[] categories;
+	private final int[] counts;
+	private final double totalLength;
+	private final int nEndpoints;
+	private final int nJunctions;
+	private final double snapDistance;
+	private final double threshold;
+	private final String thresholdMethod;
+	private final String errorMsg;
+
+	ParticleClassification(final String particlesTitle, final String skeletonTitle, final String unit,
+			final boolean threeD, final double[] xs, final double[] ys, final double[] zs, final int[] categories,
+			final double totalLength, final int nEndpoints, final int nJunctions, final double snapDistance,
+			final double threshold, final String thresholdMethod, final String errorMsg) {
+		this.particlesTitle = particlesTitle;
+		this.skeletonTitle = skeletonTitle;
+		this.unit = unit;
+		this.threeD = threeD;
+		this.xs = xs;
+		this.ys = ys;
+		this.zs = zs;
+		this.categories = categories;
+		this.totalLength = totalLength;
+		this.nEndpoints = nEndpoints;
+		this.nJunctions = nJunctions;
+		this.snapDistance = snapDistance;
+		this.threshold = threshold;
+		this.thresholdMethod = thresholdMethod;
+		this.errorMsg = (errorMsg == null) ? "" : errorMsg;
+		counts = new int[LABELS.length];
+		for (final int category : categories)
+			counts[category]++;
+	}
+
+	/**
+	 * @return the reason why classification could not be completed, or an
+	 *         empty string if classification succeeded
+	 */
+	public String getErrorMsg() {
+		return errorMsg;
+	}
+
+	/** @return true if classification could not be completed */
+	public boolean failed() {
+		return !errorMsg.isEmpty();
+	}
+
+	/** @return the number of detected particles */
+	public int size() {
+		return categories.length;
+	}
+
+	/**
+	 * @param index
+	 *            the particle index
+	 * @return the category of the particle, i.e., one of {@link #UNCLASSIFIED},
+	 *         {@link #JUNCTION}, {@link #TIP} or {@link #JUNCTION_AND_TIP}
+	 */
+	public int getCategory(final int index) {
+		return categories[index];
+	}
+
+	/** @return the x coordinate (pixels) of the specified particle */
+	public double getX(final int index) {
+		return xs[index];
+	}
+
+	/** @return the y coordinate (pixels) of the specified particle */
+	public double getY(final int index) {
+		return ys[index];
+	}
+
+	/** @return the z coordinate (0-based slice) of the specified particle */
+	public double getZ(final int index) {
+		return zs[index];
+	}
+
+	/**
+	 * @param category
+	 *            one of {@link #UNCLASSIFIED}, {@link #JUNCTION}, {@link #TIP}
+	 *            or {@link #JUNCTION_AND_TIP}
+	 * @return the number of particles of the specified category
+	 */
+	public int getCount(final int category) {
+		return counts[category];
+	}
+
+	/** @return the total length of the skeleton */
+	public double getTotalLength() {
+		return totalLength;
+	}
+
+	/** @return the number of end-points of the skeleton */
+	public int getNumEndpoints() {
+		return nEndpoints;
+	}
+
+	/** @return the number of junctions of the skeleton */
+	public int getNumJunctions() {
+		return nJunctions;
+	}
+
+	/** @return the intensity threshold used for particle detection */
+	public double getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Adds one point ROI per particle to the specified overlay, named and
+	 * colored by category. With stacks, ROIs are associated with the slice of
+	 * their particle.
+	 *
+	 * @param overlay
+	 *            the overlay to be populated
+	 */
+	public void addToOverlay(final Overlay overlay) {
+		final int digits = Integer.toString(size()).length();
+		for (int i = 0; i < size(); i++) {
+			final PointRoi roi = new PointRoi(xs[i], ys[i]);
+			roi.setName(LABELS[categories[i]] + ":" + String.format("%0" + digits + "d", i));
+			roi.setStrokeColor(COLORS[categories[i]]);
+			roi.setPointType(PointRoi.DOT);
+			roi.setSize(2); // medium
+			if (threeD)
+				roi.setPosition((int) zs[i] + 1);
+			overlay.add(roi);
+		}
+	}
+
+	/** @return the headings of the summary measurements */
+	public static String[] getSummaryHeadings() {
+		return HEADINGS.clone();
+	}
+
+	/**
+	 * @return the summary measurements, in the order of
+	 *         {@link #getSummaryHeadings()}
+	 */
+	public Object[] getSummaryValues() {
+		return new Object[] { particlesTitle + " (" + unit + ")", skeletonTitle + " (" + unit + ")",
+				counts[JUNCTION], counts[TIP], counts[JUNCTION_AND_TIP], counts[UNCLASSIFIED],
+				counts[JUNCTION] + counts[JUNCTION_AND_TIP], counts[TIP] + counts[JUNCTION_AND_TIP], totalLength,
+				nEndpoints, nJunctions, counts[UNCLASSIFIED] / totalLength, snapDistance + unit,
+				String.format("%d (%s)", (int) threshold, thresholdMethod) };
+	}
+
+	/**
+	 * Appends the summary measurements to the specified table.
+	 *
+	 * @param rt
+	 *            the table to be populated
+	 */
+	public void addRow(final ResultsTable rt) {
+		final Object[] values = getSummaryValues();
+		rt.incrementCounter();
+		for (int i = 0; i < HEADINGS.length; i++) {
+			if (values[i] instanceof Number)
+				rt.addValue(HEADINGS[i], ((Number) values[i]).doubleValue());
+			else
+				rt.addValue(HEADINGS[i], String.valueOf(values[i]));
+		}
+	}
+
+}
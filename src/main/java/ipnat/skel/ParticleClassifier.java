@@ -0,0 +1,424 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.measure.Calibration;
+import ij.plugin.filter.MaximumFinder;
+import ij.process.AutoThresholder;
+import ij.process.AutoThresholder.Method;
+import ij.process.ImageProcessor;
+import sc.fiji.analyzeSkeleton.Point;
+import sc.fiji.analyzeSkeleton.SkeletonResult;
+
+/**
+ * Headless classification of particles according to skeleton features:
+ * Maxima are detected on the particles image (confined to a binary mask), and
+ * each maximum is associated with the closest junction and/or end-point of the
+ * mask-derived skeleton, if within a calibrated "snap to" distance. Input
+ * images are not modified.
+ * <p>
+ * The skeleton is analyzed while maxima are being detected, and particles
+ * are classified in parallel using {@link SkeletonFeatureIndex}es. Stacks are
+ * analyzed in 3D: maxima are detected in slabs of slices processed in
+ * parallel (so that only a few masked slices are held in memory at a time),
+ * and distances to 3D junction voxels and end-points are calibrated in all
+ * three dimensions.
+ * </p>
+ *
+ * @author Tiago Ferreira
+ */
+public class ParticleClassifier {
+
+	private final ImagePlus particlesImp;
+	private final ImagePlus maskImp;
+	private String thresholdMethod = "Default";
+	private double snapDistance = 3;
+	private int nThreads = Prefs.getThreads();
+	private boolean parallelThinning;
+	private int slabDepth = 16;
+	private final boolean threeD;
+
+	/**
+	 * Instantiates a new classifier.
+	 *
+	 * @param particlesImp
+	 *            the (grayscale) image from which particles are detected
+	 * @param maskImp
+	 *            the binary mask (background = 0) used to confine particle
+	 *            detection and to generate the skeleton. Must have the same
+	 *            dimensions as the particles image
+	 * @throws IllegalArgumentException
+	 *             if images differ in size or the mask is not binary
+	 */
+	public ParticleClassifier(final ImagePlus particlesImp, final ImagePlus maskImp) throws IllegalArgumentException {
+		if (particlesImp.getWidth() != maskImp.getWidth() || particlesImp.getHeight() != maskImp.getHeight())
+			throw new IllegalArgumentException("Chosen images are not the same size.");
+		if (particlesImp.getStackSize() != maskImp.getStackSize())
+			throw new IllegalArgumentException("Chosen images do not have the same number of slices.");
+		if (!maskImp.getProcessor().isBinary())
+			throw new IllegalArgumentException(maskImp.getTitle() + " is not a binary mask.");
+		this.particlesImp = particlesImp;
+		this.maskImp = maskImp;
+		threeD = particlesImp.getStackSize() > 1;
+	}
+
+	/**
+	 * @param thresholdMethod
+	 *            the AutoThreshold method (e.g., "Default", "Otsu") used to
+	 *            compute the prominence of detected maxima
+	 */
+	public void setThresholdMethod(final String thresholdMethod) {
+		this.thresholdMethod = thresholdMethod;
+	}
+
+	/**
+	 * @param snapDistance
+	 *            the maximum distance (in calibrated units) between a particle
+	 *            and a skeleton feature for both to be associated
+	 */
+	public void setSnapDistance(final double snapDistance) {
+		this.snapDistance = snapDistance;
+	}
+
+	/**
+	 * @param parallel
+	 *            whether the mask should be thinned by the multi-threaded
+	 *            {@link ipnat.processing.Thinning} rather than
+	 *            {@code Skeletonize3D_} (the default). Skeletons are
+	 *            topologically equivalent but may differ at a few voxels
+	 */
+	public void setParallelThinning(final boolean parallel) {
+		parallelThinning = parallel;
+	}
+
+	/**
+	 * @param nThreads
+	 *            the number of threads used for classification (and parallel
+	 *            thinning)
+	 */
+	public void setNumThreads(final int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * @param slabDepth
+	 *            the number of slices searched for maxima by each task (stacks
+	 *            only). Each task holds at most {@code slabDepth + 2} masked
+	 *            slices in memory
+	 */
+	public void setSlabDepth(final int slabDepth) {
+		this.slabDepth = Math.max(1, slabDepth);
+	}
+
+	/**
+	 * Runs the classification.
+	 *
+	 * @return the classification result. If classification could not be
+	 *         completed, the reason is given by
+	 *         {@link ParticleClassification#getErrorMsg()}
+	 */
+	public ParticleClassification classify() {
+
+		final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		try {
+
+			// Skeletonize a copy of the mask while particles are detected
+			final Future<SkeletonResult> skelFuture = executor.submit(this::analyzeSkeleton);
+
+			// Mask grayscale image and detect maxima
+			final double threshold;
+			final double[][] maxima;
+			if (threeD) {
+				threshold = getStackThreshold();
+				maxima = getMaxima3D(threshold, executor);
+			} else {
+				final ImageProcessor ip = particlesImp.getProcessor().duplicate();
+				mask(ip, maskImp.getProcessor());
+				threshold = getThreshold(ip, thresholdMethod);
+				maxima = toArrays(new MaximumFinder().getMaxima(ip, threshold, true));
+			}
+
+			final SkeletonResult sr = skelFuture.get();
+			final List<Point> endPoints = sr.getListOfEndPoints();
+			final List<Point> junctionVoxels = sr.getListOfJunctionVoxels();
+			final double totalLength = totalLength(sr);
+			final int nJunctions = sum(sr.getJunctions());
+			final int nEndpoints = (endPoints == null) ? 0 : endPoints.size();
+
+			String errorMsg = null;
+			if ((endPoints == null || endPoints.isEmpty()) && (junctionVoxels == null || junctionVoxels.isEmpty()))
+				errorMsg = maskImp.getTitle() + " does not seem a valid skeleton.";
+			else if (maxima[0].length == 0)
+				errorMsg = "Verify parameters: No particles detected.";
+			if (errorMsg != null)
+				return result(new double[0], new double[0], new double[0], new int[0], totalLength, nEndpoints,
+						nJunctions, threshold, errorMsg);
+
+			final int[] categories = classify(maxima[0], maxima[1], maxima[2], junctionVoxels, endPoints, executor);
+			return result(maxima[0], maxima[1], maxima[2], categories, totalLength, nEndpoints, nJunctions,
+					threshold, null);
+
+		} catch (InterruptedException | ExecutionException e) {
+			return result(new double[0], new double[0], new double[0], new int[0], 0, 0, 0, 0, e.getMessage());
+		} finally {
+			executor.shutdown();
+		}
+
+	}
+
+	/* Classifies particles in parallel, one chunk of particles per task */
+	private int[] classify(final double[] xs, final double[] ys, final double[] zs, final List<Point> junctionVoxels,
+			final List<Point> endPoints, final ExecutorService executor)
+			throws InterruptedException, ExecutionException {
+		final Calibration cal = particlesImp.getCalibration();
+		final SkeletonFeatureIndex jIndex = new SkeletonFeatureIndex(nonNull(junctionVoxels), cal, snapDistance);
+		final SkeletonFeatureIndex epIndex = new SkeletonFeatureIndex(nonNull(endPoints), cal, snapDistance);
+		double tolerance = Math.min(cal.pixelWidth, cal.pixelHeight) / 2;
+		if (threeD)
+			tolerance = Math.min(tolerance, cal.pixelDepth / 2);
+		final int n = xs.length;
+		final int[] categories = new int[n];
+		final int chunk = (n + nThreads - 1) / nThreads;
+		final List<Future<?>> futures = new ArrayList<>();
+		for (int start = 0; start < n; start += chunk) {
+			final int from = start, to = Math.min(n, start + chunk);
+			futures.add(executor.submit(() -> {
+				for (int i = from; i < to; i++) {
+					final double jDist = jIndex.nearestDistance(xs[i], ys[i], zs[i]);
+					final double epDist = epIndex.nearestDistance(xs[i], ys[i], zs[i]);
+					categories[i] = category(jDist, epDist, tolerance);
+				}
+			}));
+		}
+		for (final Future<?> future : futures)
+			future.get();
+		return categories;
+	}
+
+	/*
+	 * Distances beyond the snap-to distance are infinite. Particles are
+	 * associated with both feature types if equidistant within tolerance
+	 */
+	private static int category(final double jDist, final double epDist, final double tolerance) {
+		if (Double.isInfinite(jDist) && Double.isInfinite(epDist))
+			return ParticleClassification.UNCLASSIFIED;
+		if (Math.abs(jDist - epDist) <= tolerance)
+			return ParticleClassification.JUNCTION_AND_TIP;
+		return (epDist < jDist) ? ParticleClassification.TIP : ParticleClassification.JUNCTION;
+	}
+
+	private ParticleClassification result(final double[] xs, final double[] ys, final double[] zs,
+			final int[] categories, final double totalLength, final int nEndpoints, final int nJunctions,
+			final double threshold, final String errorMsg) {
+		return new ParticleClassification(particlesImp.getTitle(), maskImp.getTitle(),
+				particlesImp.getCalibration().getUnits(), threeD, xs, ys, zs, categories, totalLength,
+				nEndpoints, nJunctions, snapDistance, threshold, thresholdMethod, errorMsg);
+	}
+
+	/*
+	 * 3D maxima: maxima detected by MaximumFinder in each (masked) slice that
+	 * are also not exceeded by any of their neighbors in adjacent slices. Ties
+	 * are resolved in favor of the first slice. Slabs of slices are processed in
+	 * parallel, each with a one-slice halo.
+	 */
+	private double[][] getMaxima3D(final double threshold, final ExecutorService executor)
+			throws InterruptedException, ExecutionException {
+		final int depth = particlesImp.getStackSize();
+		final List<Future<List<double[]>>> futures = new ArrayList<>();
+		for (int start = 0; start < depth; start += slabDepth) {
+			final int z0 = start, z1 = Math.min(depth, start + slabDepth);
+			futures.add(executor.submit(() -> getMaxima3D(threshold, z0, z1)));
+		}
+		final List<double[]> points = new ArrayList<>();
+		for (final Future<List<double[]>> future : futures)
+			points.addAll(future.get());
+		final double[][] maxima = new double[3][points.size()];
+		for (int i = 0; i < points.size(); i++) {
+			maxima[0][i] = points.get(i)[0];
+			maxima[1][i] = points.get(i)[1];
+			maxima[2][i] = points.get(i)[2];
+		}
+		return maxima;
+	}
+
+	private List<double[]> getMaxima3D(final double threshold, final int z0, final int z1) {
+		final int depth = particlesImp.getStackSize();
+		final List<double[]> points = new ArrayList<>();
+		ImageProcessor previous = (z0 > 0) ? maskedSlice(z0 - 1) : null;
+		ImageProcessor current = maskedSlice(z0);
+		for (int z = z0; z < z1; z++) {
+			final ImageProcessor next = (z + 1 < depth) ? maskedSlice(z + 1) : null;
+			final Polygon maxima = new MaximumFinder().getMaxima(current, threshold, true);
+			for (int i = 0; maxima != null && i < maxima.npoints; i++) {
+				final int x = maxima.xpoints[i], y = maxima.ypoints[i];
+				final float value = current.getf(x, y);
+				if (!exceeds(previous, x, y, value, true) && !exceeds(next, x, y, value, false))
+					points.add(new double[] { x, y, z });
+			}
+			previous = current;
+			current = next;
+		}
+		return points;
+	}
+
+	/* Assesses if any of the 3x3 neighbors of (x,y) exceeds value */
+	private static boolean exceeds(final ImageProcessor ip, final int x, final int y, final float value,
+			final boolean orEquals) {
+		if (ip == null)
+			return false;
+		for (int yy = Math.max(0, y - 1); yy <= Math.min(ip.getHeight() - 1, y + 1); yy++) {
+			for (int xx = Math.max(0, x - 1); xx <= Math.min(ip.getWidth() - 1, x + 1); xx++) {
+				final float v = ip.getf(xx, yy);
+				if (v > value || (orEquals && v == value))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private ImageProcessor maskedSlice(final int z) {
+		final ImageProcessor ip = particlesImp.getStack().getProcessor(z + 1).duplicate();
+		mask(ip, maskImp.getStack().getProcessor(z + 1));
+		return ip;
+	}
+
+	/*
+	 * Lower threshold computed by the AutoThreshold method (dark background)
+	 * from the 256-bin histogram of the whole masked stack. Slices are read one
+	 * at a time.
+	 */
+	private double getStackThreshold() {
+		final ImageStack stack = particlesImp.getStack();
+		final ImageStack maskStack = maskImp.getStack();
+		final boolean eightBit = particlesImp.getBitDepth() == 8;
+		double min = 0, max = 255;
+		if (!eightBit) {
+			for (int z = 1; z <= stack.getSize(); z++) {
+				final ImageProcessor ip = stack.getProcessor(z);
+				final byte[] mask = (byte[]) maskStack.getPixels(z);
+				for (int i = 0; i < mask.length; i++) {
+					final double v = (mask[i] == 0) ? 0 : ip.getf(i);
+					min = Math.min(min, v);
+					max = Math.max(max, v);
+				}
+			}
+		}
+		final double scale = (eightBit || max <= min) ? 1 : 256 / (max - min);
+		final int[] histogram = new int[256];
+		for (int z = 1; z <= stack.getSize(); z++) {
+			final ImageProcessor ip = stack.getProcessor(z);
+			final byte[] mask = (byte[]) maskStack.getPixels(z);
+			for (int i = 0; i < mask.length; i++) {
+				final double v = (mask[i] == 0) ? 0 : ip.getf(i);
+				histogram[Math.min(255, (int) ((v - min) * scale))]++;
+			}
+		}
+		final int level = new AutoThresholder().getThreshold(Method.valueOf(thresholdMethod), histogram);
+		return min + (level + 1) / scale;
+	}
+
+	private static double[][] toArrays(final Polygon polygon) {
+		final int n = (polygon == null) ? 0 : polygon.npoints;
+		final double[][] arrays = new double[3][n];
+		for (int i = 0; i < n; i++) {
+			arrays[0][i] = polygon.xpoints[i];
+			arrays[1][i] = polygon.ypoints[i];
+		}
+		return arrays;
+	}
+
+	private SkeletonResult analyzeSkeleton() {
+		final ImagePlus skelImp = maskImp.duplicate();
+		skelImp.setCalibration(maskImp.getCalibration());
+		final long skeletonHash = SkeletonCache.skeletonize(skelImp, maskImp.getID(), true, parallelThinning,
+				nThreads);
+		return SkeletonCache.analyze(skelImp, maskImp.getID(), skeletonHash);
+	}
+
+	/* Sets to zero the pixels of ip that are background in mask */
+	private static void mask(final ImageProcessor ip, final ImageProcessor mask) {
+		final byte[] maskPixels = (byte[]) mask.getPixels();
+		final Object pixels = ip.getPixels();
+		if (pixels instanceof byte[]) {
+			final byte[] p = (byte[]) pixels;
+			for (int i = 0; i < p.length; i++)
+				if (maskPixels[i] == 0)
+					p[i] = 0;
+		} else if (pixels instanceof short[]) {
+			final short[] p = (short[]) pixels;
+			for (int i = 0; i < p.length; i++)
+				if (maskPixels[i] == 0)
+					p[i] = 0;
+		} else if (pixels instanceof float[]) {
+			final float[] p = (float[]) pixels;
+			for (int i = 0; i < p.length; i++)
+				if (maskPixels[i] == 0)
+					p[i] = 0f;
+		} else {
+			final int[] p = (int[]) pixels;
+			for (int i = 0; i < p.length; i++)
+				if (maskPixels[i] == 0)
+					p[i] = 0;
+		}
+	}
+
+	/* Lower threshold computed by the specified AutoThreshold method (dark background) */
+	private static double getThreshold(final ImageProcessor ip, final String method) {
+		ip.setAutoThreshold(method, true, ImageProcessor.NO_LUT_UPDATE);
+		final double value = ip.getMinThreshold();
+		ip.resetThreshold();
+		return value;
+	}
+
+	private static double totalLength(final SkeletonResult sr) {
+		final int[] nBranches = sr.getBranches();
+		final double[] avgLengths = sr.getAverageBranchLength();
+		double length = 0;
+		for (int i = 0; nBranches != null && i < nBranches.length; i++)
+			length += nBranches[i] * avgLengths[i];
+		return length;
+	}
+
+	private static int sum(final int[] array) {
+		int sum = 0;
+		if (array != null)
+			for (final int value : array)
+				sum += value;
+		return sum;
+	}
+
+	private static List<Point> nonNull(final List<Point> points) {
+		return (points == null) ? new ArrayList<>() : points;
+	}
+
+}
@@ -0,0 +1,318 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.apache.commons.math3.stat.StatUtils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.process.ByteProcessor;
+import ipnat.skel.StrahlerGraph.IterationSummary;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+import sc.fiji.analyzeSkeleton.Point;
+import sc.fiji.analyzeSkeleton.SkeletonResult;
+
+/**
+ * The 'root-protecting' regions of a Strahler analysis: One or more area ROIs
+ * of any shape. ROIs associated with a slice (see {@link Roi#getPosition()})
+ * delimit the root in that slice only; other ROIs are extended across all
+ * slices.
+ * <p>
+ * Roots are analyzed in crops of the skeleton: The bounding boxes of all ROIs
+ * (padded by one voxel) are merged whenever they overlap, and each merged box
+ * is analyzed separately, so that the analysis never involves a copy of the
+ * entire image.
+ * </p>
+ *
+ * @author Tiago Ferreira
+ */
+class RootRegions {
+
+	private final List<Roi> rois;
+	private final int width, height, depth;
+
+	/** The outcome of the analysis of root regions */
+	static class Analysis {
+
+		/** End-points of the root(s), excluding those where the root is cut by the ROI(s) */
+		final PackedPoints endpoints = new PackedPoints();
+
+		/** The Z-projection of the root(s), if requested */
+		ByteProcessor projection;
+
+		/** Properties of the root(s) */
+		IterationSummary summary;
+
+	}
+
+	/**
+	 * @param rois
+	 *            the root ROIs. Non-area ROIs are ignored
+	 * @param width
+	 *            the width of the analyzed image
+	 * @param height
+	 *            the height of the analyzed image
+	 * @param depth
+	 *            the number of slices of the analyzed image
+	 */
+	RootRegions(final List<Roi> rois, final int width, final int height, final int depth) {
+		this.rois = new ArrayList<>();
+		if (rois != null) {
+			for (final Roi roi : rois)
+				if (roi != null && roi.isArea())
+					this.rois.add(roi);
+		}
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+	}
+
+	/**
+	 * Creates regions of unknown image dimensions, suitable only for
+	 * {@link #contains(int, int, int)} queries.
+	 *
+	 * @param rois
+	 *            the root ROIs. Non-area ROIs are ignored
+	 */
+	RootRegions(final List<Roi> rois) {
+		this(rois, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param roi
+	 *            the ROI (may be {@code null})
+	 * @return the ROI as a (possibly empty) list
+	 */
+	static List<Roi> asList(final Roi roi) {
+		return (roi == null) ? Collections.emptyList() : Collections.singletonList(roi);
+	}
+
+	boolean isEmpty() {
+		return rois.isEmpty();
+	}
+
+	/* The 0-based slice of a ROI, or -1 if the ROI applies to all slices */
+	private static int slice(final Roi roi) {
+		final int position = (roi.getZPosition() > 0) ? roi.getZPosition() : roi.getPosition();
+		return position - 1;
+	}
+
+	/**
+	 * @return {@code true} if any of the ROIs is not associated with a slice,
+	 *         i.e., if it is extended across all slices
+	 */
+	boolean hasUnpositionedRois() {
+		for (final Roi roi : rois) {
+			if (slice(roi) < 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return {@code true} if the voxel is within any of the root ROIs
+	 */
+	boolean contains(final int x, final int y, final int z) {
+		for (final Roi roi : rois) {
+			final int slice = slice(roi);
+			if ((slice < 0 || slice == z) && roi.contains(x, y))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the union of all root ROIs (ignoring their slice positions), as
+	 *         required by {@link AnalyzeSkeleton_} and for display, or
+	 *         {@code null} if there are no ROIs
+	 */
+	Roi toRoi() {
+		if (rois.isEmpty())
+			return null;
+		if (rois.size() == 1)
+			return rois.get(0);
+		ShapeRoi union = new ShapeRoi(rois.get(0));
+		for (int i = 1; i < rois.size(); i++)
+			union = union.or(new ShapeRoi(rois.get(i)));
+		return union;
+	}
+
+	/**
+	 * Translates the root ROIs into the coordinates of a crop of the image.
+	 * ROIs not intersecting the crop are discarded.
+	 *
+	 * @return the translated ROIs
+	 */
+	List<Roi> crop(final int x0, final int y0, final int z0, final int w, final int h, final int d) {
+		final List<Roi> cropped = new ArrayList<>();
+		final Rectangle box = new Rectangle(x0, y0, w, h);
+		for (final Roi roi : rois) {
+			final int slice = slice(roi);
+			if (!roi.getBounds().intersects(box) || (slice >= 0 && (slice < z0 || slice >= z0 + d)))
+				continue;
+			final Roi translated = (Roi) roi.clone();
+			translated.setLocation(roi.getXBase() - x0, roi.getYBase() - y0);
+			translated.setPosition((slice < 0) ? 0 : slice - z0 + 1);
+			cropped.add(translated);
+		}
+		return cropped;
+	}
+
+	/* Merges the padded bounding boxes {x0, y0, z0, x1, y1, z1} (end-exclusive) of all ROIs */
+	private List<int[]> boxes() {
+		final List<int[]> boxes = new ArrayList<>();
+		for (final Roi roi : rois) {
+			final Rectangle r = roi.getBounds();
+			final int slice = slice(roi);
+			final int[] box = { Math.max(0, r.x - 1), Math.max(0, r.y - 1),
+					(slice < 0) ? 0 : Math.max(0, slice - 1), Math.min(width, r.x + r.width + 1),
+					Math.min(height, r.y + r.height + 1), (slice < 0) ? depth : Math.min(depth, slice + 2) };
+			if (box[0] < box[3] && box[1] < box[4] && box[2] < box[5])
+				boxes.add(box);
+		}
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (int i = 0; i < boxes.size() && !merged; i++) {
+				for (int j = i + 1; j < boxes.size() && !merged; j++) {
+					final int[] a = boxes.get(i), b = boxes.get(j);
+					if (a[0] < b[3] && b[0] < a[3] && a[1] < b[4] && b[1] < a[4] && a[2] < b[5] && b[2] < a[5]) {
+						for (int k = 0; k < 3; k++) {
+							a[k] = Math.min(a[k], b[k]);
+							a[k + 3] = Math.max(a[k + 3], b[k + 3]);
+						}
+						boxes.remove(j);
+						merged = true;
+					}
+				}
+			}
+		}
+		return boxes;
+	}
+
+	/**
+	 * Analyzes the skeleton within the root regions. We assume the regions
+	 * contain only end-point branches, slab voxels and no junction points.
+	 * End-points at which the skeleton leaves the regions are thus excluded.
+	 *
+	 * @param skeleton
+	 *            the skeletonized image
+	 * @param pruneChoice
+	 *            the loop elimination method
+	 * @param grayscaleImp
+	 *            the grayscale image for intensity-based loop elimination
+	 *            (may be {@code null})
+	 * @param project
+	 *            whether the (full-size) Z-projection of the root(s) should be
+	 *            created, e.g., for the iteration stack
+	 * @return the analysis of the root regions
+	 */
+	Analysis analyze(final ImagePlus skeleton, final int pruneChoice, final ImagePlus grayscaleImp,
+			final boolean project) {
+		final ImageStack stack = skeleton.getStack();
+		final Analysis analysis = new Analysis();
+		if (project)
+			analysis.projection = new ByteProcessor(width, height);
+		final byte[] projection = (project) ? (byte[]) analysis.projection.getPixels() : null;
+		int nTrees = 0, nBranches = 0, nJunctions = 0, nTriples = 0, nQuadruples = 0;
+		final List<Double> avgLengths = new ArrayList<>();
+
+		for (final int[] box : boxes()) {
+			final int x0 = box[0], y0 = box[1], z0 = box[2];
+			final int w = box[3] - x0, h = box[4] - y0, d = box[5] - z0;
+
+			// Copy the root voxels within the box
+			final ImageStack crop = new ImageStack(w, h);
+			for (int z = z0; z < box[5]; z++) {
+				final byte[] src = (byte[]) stack.getPixels(z + 1);
+				final byte[] dst = new byte[w * h];
+				for (int y = 0; y < h; y++) {
+					for (int x = 0; x < w; x++) {
+						final int i = (y + y0) * width + x + x0;
+						if (src[i] != 0 && contains(x + x0, y + y0, z)) {
+							dst[y * w + x] = src[i];
+							if (project)
+								projection[i] = (byte) 255;
+						}
+					}
+				}
+				crop.addSlice("", dst);
+			}
+			final ImagePlus cropImp = new ImagePlus("", crop);
+			cropImp.setCalibration(skeleton.getCalibration());
+			final ImagePlus grayCrop = (grayscaleImp == null) ? null
+					: new ImagePlus("", grayscaleImp.getStack().crop(x0, y0, z0, w, h, d));
+
+			// Get root properties
+			final AnalyzeSkeleton_ root = new AnalyzeSkeleton_();
+			root.setup("", cropImp);
+			final SkeletonResult rootResult = root.run(pruneChoice, false, false, grayCrop, true, false);
+			cropImp.flush();
+			if (rootResult.getNumOfTrees() == 0)
+				continue;
+
+			nTrees += rootResult.getNumOfTrees();
+			nBranches += IntStream.of(rootResult.getBranches()).sum();
+			nJunctions += IntStream.of(rootResult.getJunctions()).sum();
+			nTriples += IntStream.of(rootResult.getTriples()).sum();
+			nQuadruples += IntStream.of(rootResult.getQuadruples()).sum();
+			if (rootResult.getAverageBranchLength() != null)
+				for (final double avgLength : rootResult.getAverageBranchLength())
+					avgLengths.add(avgLength);
+			if (rootResult.getListOfEndPoints() != null) {
+				for (final Point p : rootResult.getListOfEndPoints())
+					analysis.endpoints.add(p.x + x0, p.y + y0, p.z + z0);
+			}
+		}
+		analysis.endpoints.retainAll((x, y, z) -> !leavesRoot(stack, x, y, z));
+
+		final double[] lengths = new double[avgLengths.size()];
+		for (int i = 0; i < lengths.length; i++)
+			lengths[i] = avgLengths.get(i);
+		analysis.summary = new IterationSummary(nTrees, nBranches, analysis.endpoints.size(), nJunctions,
+				nTriples, nQuadruples, StatUtils.mean(lengths));
+		return analysis;
+	}
+
+	/* Whether a skeleton voxel has neighbors outside the root regions */
+	private boolean leavesRoot(final ImageStack stack, final int x, final int y, final int z) {
+		for (int zz = Math.max(0, z - 1); zz <= Math.min(depth - 1, z + 1); zz++) {
+			final byte[] pixels = (byte[]) stack.getPixels(zz + 1);
+			for (int yy = Math.max(0, y - 1); yy <= Math.min(height - 1, y + 1); yy++) {
+				for (int xx = Math.max(0, x - 1); xx <= Math.min(width - 1, x + 1); xx++) {
+					if (pixels[yy * width + xx] != 0 && !contains(xx, yy, zz))
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+
+}
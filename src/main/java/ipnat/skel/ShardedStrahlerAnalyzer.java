@@ -0,0 +1,341 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ipnat.processing.ConnectedComponents;
+import ipnat.skel.StrahlerGraph.IterationSummary;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+
+/**
+ * Performs Strahler analysis of each tree (connected component) of an image
+ * independently: Trees are cropped to their bounding boxes and analyzed
+ * concurrently by {@link StrahlerAnalyzer}s on a worker pool. Per-tree
+ * results are aggregated into a single result whose mask is assembled from
+ * the masks of all trees.
+ *
+ * <pre>
+ * ShardedStrahlerAnalyzer analyzer = new ShardedStrahlerAnalyzer(imp);
+ * StrahlerResult all = analyzer.analyze();
+ * for (StrahlerResult tree : analyzer.getTreeResults())
+ * 	tree.addRows(rt);
+ * all.addRows(rt);
+ * </pre>
+ *
+ * @author Tiago Ferreira
+ */
+public class ShardedStrahlerAnalyzer {
+
+	private final ImagePlus imp;
+	private List<Roi> rootRois = Collections.emptyList();
+	private int pruneChoice = AnalyzeSkeleton_.SHORTEST_BRANCH;
+	private ImagePlus grayscaleImp;
+	private boolean erodeIsolatedPixels = true;
+	private boolean graphBased = true;
+	private boolean parallelThinning;
+	private int maxOrder = 30;
+	private int minTreeSize = 2;
+	private int nThreads = Prefs.getThreads();
+	private List<StrahlerResult> treeResults = Collections.emptyList();
+	private ConnectedComponents components;
+
+	/**
+	 * Instantiates a new analyzer.
+	 *
+	 * @param imp
+	 *            the 8-bit image to be analyzed. It is not modified by the
+	 *            analysis
+	 * @throws IllegalArgumentException
+	 *             if image is {@code null} or not 8-bit
+	 */
+	public ShardedStrahlerAnalyzer(final ImagePlus imp) throws IllegalArgumentException {
+		if (imp == null || imp.getBitDepth() != 8)
+			throw new IllegalArgumentException("An 8-bit image is required");
+		this.imp = imp;
+	}
+
+	/** @see StrahlerAnalyzer#setRootRoi(Roi) */
+	public void setRootRoi(final Roi rootRoi) {
+		setRootRois(RootRegions.asList(rootRoi));
+	}
+
+	/** @see StrahlerAnalyzer#setRootRois(List) */
+	public void setRootRois(final List<Roi> rootRois) {
+		this.rootRois = (rootRois == null) ? Collections.emptyList() : new ArrayList<>(rootRois);
+	}
+
+	/** @see StrahlerAnalyzer#setLoopPruning(int, ImagePlus) */
+	public void setLoopPruning(final int pruneChoice, final ImagePlus grayscaleImp) {
+		this.pruneChoice = pruneChoice;
+		this.grayscaleImp = (pruneChoice == AnalyzeSkeleton_.LOWEST_INTENSITY_VOXEL
+				|| pruneChoice == AnalyzeSkeleton_.LOWEST_INTENSITY_BRANCH) ? grayscaleImp : null;
+	}
+
+	/** @see StrahlerAnalyzer#setIgnoreIsolatedPixels(boolean) */
+	public void setIgnoreIsolatedPixels(final boolean ignore) {
+		this.erodeIsolatedPixels = ignore;
+	}
+
+	/** @see StrahlerAnalyzer#setGraphBased(boolean) */
+	public void setGraphBased(final boolean graphBased) {
+		this.graphBased = graphBased;
+	}
+
+	/** @see StrahlerAnalyzer#setParallelThinning(boolean) */
+	public void setParallelThinning(final boolean parallel) {
+		parallelThinning = parallel;
+	}
+
+	/** @see StrahlerAnalyzer#setMaxOrder(int) */
+	public void setMaxOrder(final int maxOrder) {
+		this.maxOrder = maxOrder;
+	}
+
+	/**
+	 * @param minTreeSize
+	 *            the minimum number of voxels of a tree. Smaller trees are
+	 *            ignored
+	 */
+	public void setMinTreeSize(final int minTreeSize) {
+		this.minTreeSize = Math.max(1, minTreeSize);
+	}
+
+	/**
+	 * @param nThreads
+	 *            the number of trees analyzed concurrently
+	 */
+	public void setNumThreads(final int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * @return the results of each tree analyzed by the last call to
+	 *         {@link #analyze()}, in scan order. Trees are identified by the
+	 *         suffix {@code [Tree n]} of their title
+	 */
+	public List<StrahlerResult> getTreeResults() {
+		return treeResults;
+	}
+
+	/**
+	 * Analyzes each tree and aggregates results.
+	 *
+	 * @return the aggregate result: Branch counts (and counts of the skeleton
+	 *         at each pruning iteration and of the root) are summed and
+	 *         average lengths weighted by branch counts across all classified
+	 *         trees
+	 */
+	public StrahlerResult analyze() {
+
+		final List<int[]> trees = findTrees(imp.getStack());
+		final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		final List<Future<StrahlerResult>> futures = new ArrayList<>();
+		final List<int[]> analyzedTrees = new ArrayList<>();
+		for (int i = 0; i < trees.size(); i++) {
+			final int[] tree = trees.get(i);
+			if (tree[7] < minTreeSize)
+				continue;
+			final String title = imp.getTitle() + " [Tree " + (i + 1) + "]";
+			final Callable<StrahlerResult> task = () -> analyzeTree(tree, title);
+			futures.add(executor.submit(task));
+			analyzedTrees.add(tree);
+		}
+
+		final List<StrahlerResult> results = new ArrayList<>(futures.size());
+		try {
+			for (final Future<StrahlerResult> future : futures)
+				results.add(future.get());
+			executor.shutdown();
+		} catch (final InterruptedException | ExecutionException exc) {
+			executor.shutdownNow();
+			throw new IllegalStateException("Trees could not be analyzed", exc);
+		} finally {
+			components = null;
+		}
+		treeResults = Collections.unmodifiableList(results);
+		return aggregate(results, analyzedTrees);
+
+	}
+
+	private StrahlerResult analyzeTree(final int[] tree, final String title) {
+		final int x0 = tree[0], y0 = tree[1], z0 = tree[2];
+		final int w = tree[3] - x0, h = tree[4] - y0, d = tree[5] - z0;
+		final ImagePlus treeImp = new ImagePlus(title, crop(imp.getStack(), tree));
+		treeImp.setCalibration(imp.getCalibration());
+
+		final StrahlerAnalyzer analyzer = new StrahlerAnalyzer(treeImp);
+		analyzer.setNumThreads(1);
+		analyzer.setCaching(false); // crops are never analyzed again
+		analyzer.setIgnoreIsolatedPixels(erodeIsolatedPixels);
+		analyzer.setGraphBased(graphBased);
+		analyzer.setParallelThinning(parallelThinning);
+		analyzer.setMaxOrder(maxOrder);
+		if (grayscaleImp != null) {
+			final ImagePlus grayCrop = new ImagePlus("", grayscaleImp.getStack().crop(x0, y0, z0, w, h, d));
+			analyzer.setLoopPruning(pruneChoice, grayCrop);
+		} else {
+			analyzer.setLoopPruning(pruneChoice, null);
+		}
+		if (!rootRois.isEmpty()) {
+			final RootRegions roots = new RootRegions(rootRois, imp.getWidth(), imp.getHeight(), imp.getStackSize());
+			analyzer.setRootRois(roots.crop(x0, y0, z0, w, h, d));
+		}
+		return analyzer.analyze();
+	}
+
+	/* Copies a tree into a stack cropped to its bounding box, excluding other trees */
+	private ImageStack crop(final ImageStack stack, final int[] tree) {
+		final int x0 = tree[0], y0 = tree[1], z0 = tree[2];
+		final int w = tree[3] - x0, h = tree[4] - y0;
+		final int width = stack.getWidth();
+		final ImageStack cropped = new ImageStack(w, h);
+		for (int z = z0; z < tree[5]; z++) {
+			final int[] labels = components.getLabels(z);
+			final byte[] pixels = new byte[w * h];
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					if (labels[(y + y0) * width + x + x0] == tree[6])
+						pixels[y * w + x] = (byte) 255;
+				}
+			}
+			cropped.addSlice("", pixels);
+		}
+		return cropped;
+	}
+
+	/*
+	 * Labels 26-connected (8-connected in 2D) components. Returns
+	 * {x0, y0, z0, x1, y1, z1, label, nVoxels} (end-exclusive bounds) for each
+	 * component
+	 */
+	private List<int[]> findTrees(final ImageStack stack) {
+		components = ConnectedComponents.label(stack, nThreads);
+		final List<int[]> trees = new ArrayList<>(components.getCount());
+		for (int label = 1; label <= components.getCount(); label++) {
+			final int[] b = components.getBounds(label);
+			trees.add(new int[] { b[0], b[1], b[2], b[3], b[4], b[5], label,
+					(int) Math.min(Integer.MAX_VALUE, components.getSize(label)) });
+		}
+		return trees;
+	}
+
+	/* Sums branch counts, weights average lengths and pastes masks into the canvas */
+	private StrahlerResult aggregate(final List<StrahlerResult> results, final List<int[]> trees) {
+		int highestOrder = 0;
+		for (final StrahlerResult result : results)
+			highestOrder = Math.max(highestOrder, result.getHighestOrder());
+		final int[] nBranches = new int[highestOrder];
+		final double[] sumLengths = new double[highestOrder];
+		final List<LoopResolver.Cut> loopCuts = new ArrayList<>();
+		final List<List<IterationSummary>> iterations = new ArrayList<>();
+		final List<IterationSummary> rootSummaries = new ArrayList<>();
+		final ImageStack maskStack = ImageStack.create(imp.getWidth(), imp.getHeight(), imp.getStackSize(), 8);
+		int nFailed = 0;
+		for (int t = 0; t < results.size(); t++) {
+			final StrahlerResult result = results.get(t);
+			if (result.getHighestOrder() == 0) {
+				nFailed++;
+				continue;
+			}
+			for (int order = 1; order <= result.getHighestOrder(); order++) {
+				final int n = result.getBranchCount(order);
+				final double avg = result.getAverageBranchLength(order);
+				nBranches[order - 1] += n;
+				if (n > 0 && !Double.isNaN(avg))
+					sumLengths[order - 1] += n * avg;
+			}
+			loopCuts.addAll(result.getLoopCuts());
+			final List<IterationSummary> treeIterations = result.getIterationSummaries();
+			for (int i = 0; i < treeIterations.size(); i++) {
+				if (i == iterations.size())
+					iterations.add(new ArrayList<>());
+				iterations.get(i).add(treeIterations.get(i));
+			}
+			if (result.getRootSummary() != null)
+				rootSummaries.add(result.getRootSummary());
+			paste(result.getMask().getStack(), maskStack, trees.get(t));
+		}
+		final double[] avgLengths = new double[highestOrder];
+		for (int i = 0; i < highestOrder; i++)
+			avgLengths[i] = (nBranches[i] > 0) ? sumLengths[i] / nBranches[i] : Double.NaN;
+		final List<IterationSummary> iterationSums = new ArrayList<>(iterations.size());
+		for (final List<IterationSummary> summaries : iterations)
+			iterationSums.add(sum(summaries));
+		final IterationSummary rootSum = (rootSummaries.isEmpty()) ? null : sum(rootSummaries);
+		final String errorMsg = (nFailed > 0) ? nFailed + " of " + results.size() + " trees could not be classified"
+				: null;
+
+		final Calibration cal = imp.getCalibration();
+		final ImagePlus mask = (highestOrder == 0) ? null : new ImagePlus("StrahlerMask_" + imp.getTitle(), maskStack);
+		if (mask != null)
+			mask.setCalibration(cal);
+		return new StrahlerResult(imp.getTitle() + " [All trees]", cal.getUnit(), nBranches, avgLengths,
+				iterationSums, rootSum, erodeIsolatedPixels, errorMsg, mask, null, loopCuts, null);
+	}
+
+	/* Sums the counts of the specified summaries, weighting average lengths by branch counts */
+	private static IterationSummary sum(final List<IterationSummary> summaries) {
+		int nTrees = 0, nBranches = 0, nEndpoints = 0, nJunctions = 0, nTriples = 0, nQuadruples = 0;
+		int nMeasured = 0;
+		double sumLength = 0d;
+		for (final IterationSummary summary : summaries) {
+			nTrees += summary.getNumOfTrees();
+			nBranches += summary.getNumOfBranches();
+			nEndpoints += summary.getNumOfEndpoints();
+			nJunctions += summary.getNumOfJunctions();
+			nTriples += summary.getNumOfTriples();
+			nQuadruples += summary.getNumOfQuadruples();
+			if (summary.getNumOfBranches() > 0 && !Double.isNaN(summary.getAverageBranchLength())) {
+				sumLength += summary.getNumOfBranches() * summary.getAverageBranchLength();
+				nMeasured += summary.getNumOfBranches();
+			}
+		}
+		return new IterationSummary(nTrees, nBranches, nEndpoints, nJunctions, nTriples, nQuadruples,
+				(nMeasured > 0) ? sumLength / nMeasured : Double.NaN);
+	}
+
+	private static void paste(final ImageStack treeMask, final ImageStack canvas, final int[] tree) {
+		final int w = treeMask.getWidth(), width = canvas.getWidth();
+		for (int z = 0; z < treeMask.getSize(); z++) {
+			final byte[] src = (byte[]) treeMask.getPixels(z + 1);
+			final byte[] dst = (byte[]) canvas.getPixels(z + tree[2] + 1);
+			for (int i = 0; i < src.length; i++) {
+				if (src[i] != 0)
+					dst[(i / w + tree[1]) * width + i % w + tree[0]] = src[i];
+			}
+		}
+	}
+
+}
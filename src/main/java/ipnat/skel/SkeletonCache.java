@@ -0,0 +1,393 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ipnat.processing.Binary;
+import ipnat.processing.BinaryVolume;
+import ipnat.processing.Thinning;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+import sc.fiji.analyzeSkeleton.Edge;
+import sc.fiji.analyzeSkeleton.Graph;
+import sc.fiji.analyzeSkeleton.Point;
+import sc.fiji.analyzeSkeleton.SkeletonResult;
+import sc.fiji.analyzeSkeleton.Vertex;
+import sc.fiji.skeletonize3D.Skeletonize3D_;
+
+/**
+ * Session-wide cache of skeletonizations and skeleton analyses, so that
+ * commands run in succession on the same image (e.g., Summarize Skeleton,
+ * Strahler Analysis and particle classification) do not repeat them. Entries
+ * are keyed by the identity of the image, a hash of its contents and the
+ * analysis parameters, and are evicted in least-recently-used order once the
+ * (estimated) memory budget is exceeded.
+ * <p>
+ * Cached {@link SkeletonResult}s are shared: Callers must not modify them.
+ * Only analyses without loop pruning or end-point pruning (which would modify
+ * the image) are cached.
+ * </p>
+ * <p>
+ * Caching only pays off when the same image is analyzed repeatedly. It can be
+ * disabled globally ({@link #setEnabled(boolean)}, e.g., when benchmarking) or
+ * per call (e.g., {@link StrahlerAnalyzer#setCaching(boolean)}), so that
+ * images analyzed only once (batch processing, per-tree analyses) neither
+ * pay for hashing nor evict useful entries.
+ * </p>
+ *
+ * @author Tiago Ferreira
+ */
+public class SkeletonCache {
+
+	/* Approximate footprint of a sc.fiji.analyzeSkeleton.Point and its reference */
+	private static final int BYTES_PER_POINT = 40;
+
+	/** Returned by the skeletonization methods when contents were not hashed */
+	public static final long NO_HASH = 0L;
+
+	private static final Map<Key, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+	private static long budget = Runtime.getRuntime().maxMemory() / 8;
+	private static long usage;
+	private static long hits, misses;
+	private static volatile boolean enabled = true;
+
+	private SkeletonCache() {
+	}
+
+	/**
+	 * @param enabled
+	 *            whether skeletonizations and analyses should be cached. If
+	 *            {@code false}, all methods compute their results and leave
+	 *            the cache untouched
+	 */
+	public static void setEnabled(final boolean enabled) {
+		SkeletonCache.enabled = enabled;
+	}
+
+	/** @return whether caching is enabled */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param bytes
+	 *            the approximate amount of memory cached entries may take. Zero
+	 *            disables caching
+	 */
+	public static synchronized void setMemoryBudget(final long bytes) {
+		budget = Math.max(0, bytes);
+		evict();
+	}
+
+	/** @return the approximate amount of memory cached entries may take */
+	public static synchronized long getMemoryBudget() {
+		return budget;
+	}
+
+	/** @return the estimated amount of memory taken by cached entries */
+	public static synchronized long getMemoryUsage() {
+		return usage;
+	}
+
+	/** @return the number of lookups served from the cache */
+	public static synchronized long getHits() {
+		return hits;
+	}
+
+	/** @return the number of lookups not served from the cache */
+	public static synchronized long getMisses() {
+		return misses;
+	}
+
+	/** Removes all cached entries */
+	public static synchronized void clear() {
+		ENTRIES.clear();
+		usage = 0;
+	}
+
+	/**
+	 * Skeletonizes an image in place, reusing a previous skeletonization of the
+	 * same contents, if available.
+	 *
+	 * @param imp
+	 *            the 8-bit image to be skeletonized
+	 * @param imageId
+	 *            the identity of the image the contents originate from (e.g.,
+	 *            {@link ImagePlus#getID()} of the image {@code imp} was
+	 *            duplicated from)
+	 * @param removeIsolatedPixels
+	 *            whether isolated pixels should be removed from the skeleton
+	 */
+	public static void skeletonize(final ImagePlus imp, final int imageId, final boolean removeIsolatedPixels) {
+		skeletonize(imp, imageId, removeIsolatedPixels, false, 1);
+	}
+
+	/**
+	 * Skeletonizes an image in place, reusing a previous skeletonization of the
+	 * same contents (and method), if available.
+	 *
+	 * @param imp
+	 *            the 8-bit image to be skeletonized
+	 * @param imageId
+	 *            the identity of the image the contents originate from
+	 * @param removeIsolatedPixels
+	 *            whether isolated pixels should be removed from the skeleton
+	 * @param parallel
+	 *            whether the image should be thinned by {@link Thinning}
+	 *            rather than {@link Skeletonize3D_}
+	 * @param nThreads
+	 *            the number of threads used by {@link Thinning}
+	 * @return the content hash of the skeleton, to be passed to
+	 *         {@link #analyze(ImagePlus, int, long)} so that the skeleton is
+	 *         not hashed again, or {@link #NO_HASH} if caching is disabled.
+	 *         It is the same hash {@link #analyze(ImagePlus, int)} computes
+	 *         for an image holding the same skeleton, so that analyses are
+	 *         shared between, e.g., Summarize Skeleton and Strahler Analysis
+	 */
+	public static long skeletonize(final ImagePlus imp, final int imageId, final boolean removeIsolatedPixels,
+			final boolean parallel, final int nThreads) {
+		return skeletonize(imp, imageId, removeIsolatedPixels, parallel, nThreads, true);
+	}
+
+	/* As above, bypassing the cache if useCache is false */
+	static long skeletonize(final ImagePlus imp, final int imageId, final boolean removeIsolatedPixels,
+			final boolean parallel, final int nThreads, final boolean useCache) {
+		if (!enabled || !useCache) {
+			thin(imp, parallel, nThreads);
+			if (removeIsolatedPixels)
+				Binary.removeIsolatedPixels(imp);
+			return NO_HASH;
+		}
+		final Key key = new Key(imageId, hash(imp.getStack()), "thin:" + removeIsolatedPixels + ":" + parallel);
+		final Entry cached = get(key);
+		if (cached != null) {
+			final Skeleton skeleton = (Skeleton) cached.value;
+			skeleton.volume.copyTo(imp.getStack());
+			return skeleton.hash;
+		}
+		thin(imp, parallel, nThreads);
+		if (removeIsolatedPixels)
+			Binary.removeIsolatedPixels(imp);
+		final Skeleton skeleton = new Skeleton(BinaryVolume.fromImagePlus(imp), hash(imp.getStack()));
+		final BinaryVolume volume = skeleton.volume;
+		put(key, new Entry(skeleton, (long) volume.getDepth() * volume.getHeight() * volume.getWordsPerRow() * 8));
+		return skeleton.hash;
+	}
+
+	/* Thins an image in place, by either Thinning or Skeletonize3D_ */
+	static void thin(final ImagePlus imp, final boolean parallel, final int nThreads) {
+		if (parallel) {
+			Thinning.skeletonize(imp.getStack(), nThreads);
+		} else {
+			final Skeletonize3D_ thin = new Skeletonize3D_();
+			thin.setup("", imp);
+			thin.run(null);
+		}
+	}
+
+	/**
+	 * Analyzes a skeleton (without pruning), reusing a previous analysis of the
+	 * same contents and calibration, if available.
+	 *
+	 * @param imp
+	 *            the 8-bit skeletonized image
+	 * @param imageId
+	 *            the identity of the image the contents originate from
+	 * @return the (shared) analysis result
+	 */
+	public static SkeletonResult analyze(final ImagePlus imp, final int imageId) {
+		return analyze(imp, imageId, NO_HASH, true);
+	}
+
+	/**
+	 * Analyzes a skeleton produced by
+	 * {@link #skeletonize(ImagePlus, int, boolean, boolean, int)}, without
+	 * hashing it again.
+	 *
+	 * @param imp
+	 *            the 8-bit skeletonized image. It must not have been modified
+	 *            since its skeletonization
+	 * @param imageId
+	 *            the identity of the image the contents originate from
+	 * @param skeletonHash
+	 *            the content hash returned by the skeletonization. If
+	 *            {@link #NO_HASH}, the image contents are hashed
+	 * @return the (shared) analysis result
+	 */
+	public static SkeletonResult analyze(final ImagePlus imp, final int imageId, final long skeletonHash) {
+		return analyze(imp, imageId, skeletonHash, true);
+	}
+
+	/* As above, bypassing the cache if useCache is false */
+	static SkeletonResult analyze(final ImagePlus imp, final int imageId, final long skeletonHash,
+			final boolean useCache) {
+		final boolean caching = enabled && useCache;
+		Key key = null;
+		if (caching) {
+			final Calibration cal = imp.getCalibration();
+			final String params = "analyze:" + AnalyzeSkeleton_.NONE + ":" + cal.pixelWidth + ":" + cal.pixelHeight
+					+ ":" + cal.pixelDepth;
+			key = new Key(imageId, (skeletonHash == NO_HASH) ? hash(imp.getStack()) : skeletonHash, params);
+			final Entry cached = get(key);
+			if (cached != null)
+				return (SkeletonResult) cached.value;
+		}
+		final AnalyzeSkeleton_ as = new AnalyzeSkeleton_();
+		as.setup("", imp);
+		final SkeletonResult sr = as.run(AnalyzeSkeleton_.NONE, false, false, null, true, false);
+		if (caching)
+			put(key, new Entry(sr, estimateSize(sr)));
+		return sr;
+	}
+
+	private static synchronized Entry get(final Key key) {
+		final Entry entry = ENTRIES.get(key);
+		if (entry == null)
+			misses++;
+		else
+			hits++;
+		return entry;
+	}
+
+	private static synchronized void put(final Key key, final Entry entry) {
+		if (entry.bytes > budget)
+			return;
+		final Entry previous = ENTRIES.put(key, entry);
+		if (previous != null)
+			usage -= previous.bytes;
+		usage += entry.bytes;
+		evict();
+	}
+
+	/* Drops least recently used entries until within budget */
+	private static void evict() {
+		final Iterator<Entry> it = ENTRIES.values().iterator();
+		while (usage > budget && it.hasNext()) {
+			usage -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+	/*
+	 * 64-bit FNV-1a hash of the dimensions and voxels of an 8-bit stack.
+	 * Slices are hashed in parallel and their hashes combined in order
+	 */
+	static long hash(final ImageStack stack) {
+		final long[] sliceHashes = IntStream.rangeClosed(1, stack.getSize()).parallel().mapToLong(z -> {
+			long h = 0xcbf29ce484222325L;
+			for (final byte b : (byte[]) stack.getPixels(z))
+				h = (h ^ b) * 0x100000001b3L;
+			return h;
+		}).toArray();
+		long h = 0xcbf29ce484222325L;
+		h = (h ^ stack.getWidth()) * 0x100000001b3L;
+		h = (h ^ stack.getHeight()) * 0x100000001b3L;
+		h = (h ^ stack.getSize()) * 0x100000001b3L;
+		for (final long sliceHash : sliceHashes)
+			h = (h ^ sliceHash) * 0x100000001b3L;
+		return (h == NO_HASH) ? 1L : h;
+	}
+
+
+	private static long estimateSize(final SkeletonResult sr) {
+		long nPoints = size(sr.getListOfEndPoints()) + size(sr.getListOfJunctionVoxels())
+				+ size(sr.getListOfSlabVoxels()) + size(sr.getListOfStartingSlabVoxels());
+		final Graph[] graphs = sr.getGraph();
+		if (graphs != null) {
+			for (final Graph graph : graphs) {
+				if (graph == null)
+					continue;
+				if (graph.getEdges() != null)
+					for (final Edge e : graph.getEdges())
+						nPoints += size(e.getSlabs());
+				if (graph.getVertices() != null)
+					for (final Vertex v : graph.getVertices())
+						nPoints += size(v.getPoints());
+			}
+		}
+		return nPoints * BYTES_PER_POINT;
+	}
+
+	private static int size(final List<Point> points) {
+		return (points == null) ? 0 : points.size();
+	}
+
+	/* A cached skeletonization: the skeleton and its content hash */
+	private static class Skeleton {
+
+		final BinaryVolume volume;
+		final long hash;
+
+		Skeleton(final BinaryVolume volume, final long hash) {
+			this.volume = volume;
+			this.hash = hash;
+		}
+	}
+
+	private static class Key {
+
+		private final int imageId;
+		private final long hash;
+		private final String params;
+
+		Key(final int imageId, final long hash, final String params) {
+			this.imageId = imageId;
+			this.hash = hash;
+			this.params = params;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Key))
+				return false;
+			final Key other = (Key) o;
+			return imageId == other.imageId && hash == other.hash && params.equals(other.params);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(imageId, hash, params);
+		}
+
+	}
+
+	private static class Entry {
+
+		private final Object value;
+		private final long bytes;
+
+		Entry(final Object value, final long bytes) {
+			this.value = value;
+			this.bytes = bytes;
+		}
+
+	}
+
+}
@@ -0,0 +1,222 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ij.measure.Calibration;
+import sc.fiji.analyzeSkeleton.Point;
+
+/**
+ * A uniform grid over skeleton features (e.g., the end-points or junction
+ * voxels of a {@link sc.fiji.analyzeSkeleton.SkeletonResult}) for
+ * radius-limited nearest-feature queries in calibrated space. Cells are at
+ * least as large as the search radius, so that each query only visits the
+ * 3x3(x3) cells around it. Points are sorted by cell in primitive arrays:
+ * Building the index is O(n log n) and queries are independent of the total
+ * number of features, and safe to run concurrently.
+ *
+ * @author Tiago Ferreira
+ */
+public class SkeletonFeatureIndex {
+
+	/* Maximum number of cells along each axis */
+	private static final int MAX_CELLS = 1024;
+
+	private final List<Point> points;
+	private final double maxDistance;
+	private final double sx, sy, sz;
+	private final double originX, originY, originZ, cellSize;
+	private final int nCellsX, nCellsY, nCellsZ;
+
+	/* Sorted cell keys, offset of the first point of each cell */
+	private final long[] cellKeys;
+	private final int[] cellStart;
+
+	/* Calibrated coordinates and list indices of points, sorted by cell */
+	private final double[] xs, ys, zs;
+	private final int[] ids;
+
+	/**
+	 * Builds the index.
+	 *
+	 * @param points
+	 *            the feature voxels (image coordinates)
+	 * @param cal
+	 *            the calibration of the skeleton. Uncalibrated if {@code null}
+	 * @param maxDistance
+	 *            the search radius, in calibrated units. Features farther than
+	 *            this distance from a query point are ignored
+	 */
+	public SkeletonFeatureIndex(final List<Point> points, final Calibration cal, final double maxDistance) {
+		this.points = points;
+		this.maxDistance = maxDistance;
+		sx = (cal == null) ? 1 : cal.pixelWidth;
+		sy = (cal == null) ? 1 : cal.pixelHeight;
+		sz = (cal == null) ? 1 : cal.pixelDepth;
+
+		final int n = points.size();
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+		for (final Point p : points) {
+			minX = Math.min(minX, p.x * sx);
+			minY = Math.min(minY, p.y * sy);
+			minZ = Math.min(minZ, p.z * sz);
+			maxX = Math.max(maxX, p.x * sx);
+			maxY = Math.max(maxY, p.y * sy);
+			maxZ = Math.max(maxZ, p.z * sz);
+		}
+		if (n == 0)
+			minX = minY = minZ = maxX = maxY = maxZ = 0;
+		originX = minX;
+		originY = minY;
+		originZ = minZ;
+
+		// Cells no smaller than the search radius, and not too many of them
+		final double extent = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+		cellSize = Math.max(Math.max(maxDistance, extent / MAX_CELLS), Double.MIN_NORMAL);
+		nCellsX = cell(maxX, originX) + 1;
+		nCellsY = cell(maxY, originY) + 1;
+		nCellsZ = cell(maxZ, originZ) + 1;
+
+		// Sort points by cell: keys are packed with point indices
+		final long[] packed = new long[n];
+		for (int i = 0; i < n; i++) {
+			final Point p = points.get(i);
+			packed[i] = key(cell(p.x * sx, originX), cell(p.y * sy, originY), cell(p.z * sz, originZ)) * n + i;
+		}
+		Arrays.sort(packed);
+
+		xs = new double[n];
+		ys = new double[n];
+		zs = new double[n];
+		ids = new int[n];
+		final long[] keys = new long[n];
+		final int[] starts = new int[n + 1];
+		int nCells = 0;
+		for (int k = 0; k < n; k++) {
+			final long key = packed[k] / n;
+			final int i = (int) (packed[k] % n);
+			if (nCells == 0 || keys[nCells - 1] != key) {
+				keys[nCells] = key;
+				starts[nCells++] = k;
+			}
+			final Point p = points.get(i);
+			xs[k] = p.x * sx;
+			ys[k] = p.y * sy;
+			zs[k] = p.z * sz;
+			ids[k] = i;
+		}
+		starts[nCells] = n;
+		cellKeys = Arrays.copyOf(keys, nCells);
+		cellStart = Arrays.copyOf(starts, nCells + 1);
+	}
+
+	private int cell(final double value, final double origin) {
+		return (int) ((value - origin) / cellSize);
+	}
+
+	private long key(final int cx, final int cy, final int cz) {
+		return ((long) cz * nCellsY + cy) * nCellsX + cx;
+	}
+
+	/**
+	 * Retrieves the feature closest to the specified location.
+	 *
+	 * @param x
+	 *            the x coordinate of the query (pixels)
+	 * @param y
+	 *            the y coordinate of the query (pixels)
+	 * @param z
+	 *            the z coordinate of the query (slice index, 0-based)
+	 * @return the index (in the list used to build the index) of the closest
+	 *         feature, or -1 if no feature lies within the search radius
+	 */
+	public int nearest(final double x, final double y, final double z) {
+		final double qx = x * sx, qy = y * sy, qz = z * sz;
+		final int cx = cell(qx, originX), cy = cell(qy, originY), cz = cell(qz, originZ);
+		double bestSq = maxDistance * maxDistance;
+		int best = -1;
+		for (int zz = Math.max(0, cz - 1); zz <= Math.min(nCellsZ - 1, cz + 1); zz++) {
+			for (int yy = Math.max(0, cy - 1); yy <= Math.min(nCellsY - 1, cy + 1); yy++) {
+				for (int xx = Math.max(0, cx - 1); xx <= Math.min(nCellsX - 1, cx + 1); xx++) {
+					final int c = Arrays.binarySearch(cellKeys, key(xx, yy, zz));
+					if (c < 0)
+						continue;
+					for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+						final double dx = xs[k] - qx, dy = ys[k] - qy, dz = zs[k] - qz;
+						final double dSq = dx * dx + dy * dy + dz * dz;
+						if (dSq < bestSq || (dSq == bestSq && best == -1)) {
+							bestSq = dSq;
+							best = ids[k];
+						}
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Retrieves the distance to the feature closest to the specified location.
+	 *
+	 * @param x
+	 *            the x coordinate of the query (pixels)
+	 * @param y
+	 *            the y coordinate of the query (pixels)
+	 * @param z
+	 *            the z coordinate of the query (slice index, 0-based)
+	 * @return the calibrated distance to the closest feature, or
+	 *         {@link Double#POSITIVE_INFINITY} if no feature lies within the
+	 *         search radius
+	 */
+	public double nearestDistance(final double x, final double y, final double z) {
+		final int i = nearest(x, y, z);
+		if (i < 0)
+			return Double.POSITIVE_INFINITY;
+		final Point p = points.get(i);
+		final double dx = (p.x - x) * sx, dy = (p.y - y) * sy, dz = (p.z - z) * sz;
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * @param index
+	 *            the index of a feature, as returned by
+	 *            {@link #nearest(double, double, double)}
+	 * @return the feature voxel
+	 */
+	public Point getPoint(final int index) {
+		return points.get(index);
+	}
+
+	/** @return the search radius, in calibrated units */
+	public double getMaxDistance() {
+		return maxDistance;
+	}
+
+	/** @return the number of indexed features */
+	public int size() {
+		return points.size();
+	}
+
+}
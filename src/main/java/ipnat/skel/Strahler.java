@@ -26,31 +26,26 @@ import java.awt.Choice;
 import java.awt.Font;
 import java.awt.Rectangle;
 import java.util.ArrayList;
-import java.util.ListIterator;
+import java.util.Collections;
+import java.util.List;
 import java.util.Vector;
 
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.gui.ImageCanvas;
 import ij.gui.Roi;
-import ij.measure.Calibration;
 import ij.measure.ResultsTable;
+import ij.plugin.frame.RoiManager;
 import ij.plugin.PlugIn;
-import ij.plugin.ZProjector;
-import ij.process.ImageProcessor;
 import ipnat.ColorMaps;
 import ipnat.IPNAT;
+import ipnat.StageProfiler;
 import ipnat.Utils;
-import ipnat.processing.Binary;
 import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
-import sc.fiji.analyzeSkeleton.Point;
-import sc.fiji.analyzeSkeleton.SkeletonResult;
-import sc.fiji.skeletonize3D.Skeletonize3D_;
 import sc.fiji.snt.gui.EnhancedGenericDialog;
 
 /**
@@ -76,6 +71,12 @@ public class Strahler implements PlugIn, DialogListener {
 	/* Default option for 'root-protection' ROI */
 	private boolean protectRoot = true;
 
+	/* Default option for single-pass (graph-based) classification */
+	private boolean graphBased = true;
+
+	/* Default option for multi-threaded thinning */
+	private boolean parallelThinning = false;
+
 	/* Default option for 'iteration-stack' output */
 	private boolean outIS = false;
 
@@ -85,6 +86,12 @@ public class Strahler implements PlugIn, DialogListener {
 	/* Default option for tabular option */
 	private boolean tabular = false;
 
+	/* Default option for per-stage timings */
+	private boolean profile = false;
+
+	/* Default option for per-tree analysis */
+	private boolean perTree = false;
+
 	/* Remove isolated pixels from thinned images? */
 	private boolean erodeIsolatedPixels = true;
 
@@ -107,8 +114,8 @@ public class Strahler implements PlugIn, DialogListener {
 	ImagePlus srcImp; // Image to be analyzed (we'll be working on a copy)
 	boolean validRootRoi; // Flag assessing validity of 'root-protective' ROI
 	String title; // Title of active image
-	Roi rootRoi; // Reference to the "root-protecting" ROI
-	ImageProcessor ip;
+	Roi rootRoi; // Reference to the "root-protecting" ROI (union of all root ROIs)
+	List<Roi> rootRois; // The "root-protecting" ROIs
 
 	/** IDE Debug method */
 	public static void main(final String[] args) {
@@ -137,288 +144,92 @@ public class Strahler implements PlugIn, DialogListener {
 			return;
 
 		title = srcImp.getTitle();
-		rootRoi = srcImp.getRoi();
-		validRootRoi = (rootRoi != null && rootRoi.getType() == Roi.RECTANGLE);
-
-		// TODO: 3D Roots are special. We need to:
-		// 1) Check if ROI is associated with all slices or just one
-		// 2) Ignore counts above/below the ROI, as needed
-		// 3) Extend ip operations to stack
-		if (srcImp.getNSlices() > 1) {
-			final String warning = "3D images are currently supported with the following limitations:\n"
-					+ "    - 'Root-protecting' ROIs are not yet supported\n"
-					+ "    - Lengths are estimated from Z-projections";
-			if (IJ.macroRunning())
-				IJ.log(warning);
-			else
-				IJ.showMessage("Warning", warning);
-			validRootRoi = false;
-		}
+		rootRois = getRootRois(srcImp);
+		validRootRoi = !rootRois.isEmpty();
+		final RootRegions roots = new RootRegions(rootRois);
+		rootRoi = roots.toRoi();
+
+		// With stacks, ROIs not associated with a slice are extended across
+		// all slices. Orders are assigned and measured in 3D
+		if (srcImp.getStackSize() > 1 && roots.hasUnpositionedRois())
+			IJ.log("[Strahler] 'Root-protecting' ROI(s) without slice position extended to all slices of " + title);
 
 		// Retrieve grayscale image for intensity-based pruning of skel. loops
 		if (!getSettings())
 			return;
 
-		// Work on a skeletonized copy since we'll be modifing the image
-		if (rootRoi != null)
-			srcImp.killRoi();
-		final ImagePlus imp = srcImp.duplicate();
-		if (rootRoi != null)
-			srcImp.setRoi(rootRoi);
-		ip = imp.getProcessor();
-		skeletonizeWithoutHermits(imp);
+		// Run the analysis
+		final long startTime = System.currentTimeMillis();
+		final StrahlerResult result;
+		List<StrahlerResult> treeResults = Collections.emptyList();
+		if (perTree) {
+			final ShardedStrahlerAnalyzer analyzer = new ShardedStrahlerAnalyzer(srcImp);
+			analyzer.setRootRois((validRootRoi && protectRoot) ? rootRois : null);
+			analyzer.setLoopPruning(pruneChoice, grayscaleImp);
+			analyzer.setIgnoreIsolatedPixels(erodeIsolatedPixels);
+			analyzer.setGraphBased(graphBased);
+			analyzer.setParallelThinning(parallelThinning);
+			analyzer.setMaxOrder(getMaxOrder());
+			result = analyzer.analyze();
+			treeResults = analyzer.getTreeResults();
+		} else {
+			final StrahlerAnalyzer analyzer = new StrahlerAnalyzer(srcImp);
+			analyzer.setRootRois((validRootRoi && protectRoot) ? rootRois : null);
+			analyzer.setLoopPruning(pruneChoice, grayscaleImp);
+			analyzer.setIgnoreIsolatedPixels(erodeIsolatedPixels);
+			analyzer.setGraphBased(graphBased);
+			analyzer.setParallelThinning(parallelThinning);
+			analyzer.setIterationStackRequested(outIS && !tabular);
+			analyzer.setMaxOrder(getMaxOrder());
+			analyzer.setProfiling(profile);
+			result = analyzer.analyze();
+		}
 
 		// Initialize ResultsTable: main and detailed info
 		final ResultsTable rt = Utils.getTable(STRAHLER_TABLE);
 		final ResultsTable logrt = Utils.getTable(VERBOSE_TABLE);
-
-		// Analyze root
-		ImagePlus rootImp;
-		ImageProcessor rootIp = null;
-		SkeletonResult rootResult = null;
-		ArrayList<Point> rootEndpointsList = null;
-		int nRootEndpoints = 0, nRootJunctions = 0;
-
-		if (validRootRoi && verbose) {
-
-			// Duplicate entire canvas. Ignore tree(s) outside ROI
-			rootImp = imp.duplicate();
-			rootIp = rootImp.getProcessor();
-			rootIp.setValue(0.0);
-			rootIp.fillOutside(rootRoi);
-
-			// Get root properties
-			final AnalyzeSkeleton_ root = new AnalyzeSkeleton_();
-			root.setup("", rootImp);
-			rootResult = root.run(pruneChoice, false, false, grayscaleImp, true, false);
-			rootImp.flush();
-
-			// We assume ROI contains only end-point branches, slab voxels and
-			// no junction points. We'll thus remove end-points at ROI
-			// boundaries
-			nRootJunctions = sum(rootResult.getJunctions());
-			rootEndpointsList = rootResult.getListOfEndPoints();
-			final ListIterator<Point> it = rootEndpointsList.listIterator();
-			final Rectangle r = rootRoi.getBounds();
-			while (it.hasNext()) {
-				final Point p = it.next();
-				if (p.x == r.x || p.y == r.y || p.x == (int) (r.x + r.getWidth() - 1)
-						|| p.y == (int) (r.y + r.getHeight() - 1))
-					it.remove();
+		final StageProfiler profiler = result.getProfiler();
+		if (verbose) {
+			try (StageProfiler.Stage stage = profiler.start("Table output")) {
+				for (final StrahlerResult treeResult : treeResults)
+					treeResult.addIterationRows(logrt);
+				result.addIterationRows(logrt);
 			}
-			rootResult.setListOfEndPoints(rootEndpointsList);
-			nRootEndpoints = rootEndpointsList.size();
-
-		}
-
-		// Initialize display images. Use Z-projections to populate
-		// iteration stack when dealing with 3D skeletons
-		final int nSlices = imp.getNSlices();
-		ZProjector zp = null;
-
-		final ImageStack iterationStack = new ImageStack(imp.getWidth(), imp.getHeight());
-		if (nSlices > 1) {
-			zp = new ZProjector(imp);
-			zp.setMethod(ZProjector.MAX_METHOD);
-			zp.setStartSlice(1);
-			zp.setStopSlice(nSlices);
-		}
-
-		// Initialize AnalyzeSkeleton_
-		final AnalyzeSkeleton_ as = new AnalyzeSkeleton_();
-		as.setup("", imp);
-
-		// Perform the iterative pruning
-		int order = 1, nEndpoints = 0, nJunctions = 0, nJunctions2 = 0;
-		ArrayList<Point> endpointsList = null, junctionsList = null;
-		String errorMsg = "";
-
-		do {
-
-			IJ.showStatus("Retrieving measurements for order " + order + "...");
-			IJ.showProgress(order, getMaxOrder());
-
-			// (Re)skeletonize image
-			if (order > 1)
-				skeletonizeWithoutHermits(imp);
-
-			// Get properties of loop-resolved tree(s)
-			final SkeletonResult sr = as.run(pruneChoice, false, false, grayscaleImp, true, false);
-			nEndpoints = sum(sr.getEndPoints());
-			nJunctions = sum(sr.getJunctions());
-
-			if (order == 1) {
-				// Remember initial properties
-				endpointsList = sr.getListOfEndPoints();
-				junctionsList = sr.getListOfJunctionVoxels();
-
-				// Do not include root in 1st order calculations
-				nEndpoints -= nRootEndpoints;
-				nJunctions -= nRootJunctions;
-			}
-
-			// Is it worth proceeding?
-			if (nEndpoints == 0 || nJunctions2 == nJunctions) {
-				errorMsg = "Error! Iteration " + order + " aborted: ";
-				errorMsg += (nEndpoints == 0) ? "No end-poins found" : "Unsolved loop(s) detected";
-				break;
-			}
-
-			// Add current tree(s) to debug animation
-			ImageProcessor ipd;
-			if (nSlices > 1 && zp != null) {
-				zp.doProjection();
-				ipd = zp.getProjection().getProcessor();
-			} else {
-				ipd = ip.duplicate();
-			}
-			iterationStack.addSlice("Order " + IJ.pad(order, 2), ipd);
-
-			// Report properties of pruned structures
-			if (verbose) {
-				logrt.incrementCounter();
-				logrt.addValue("Image", title);
-				logrt.addValue("Structure", "Skel. at iteration " + Integer.toString(order));
-				logrt.addValue("Notes", errorMsg);
-				logrt.addValue("# Trees", sr.getNumOfTrees());
-				logrt.addValue("# Branches", sum(sr.getBranches()));
-				logrt.addValue("# End-points", nEndpoints);
-				logrt.addValue("# Junctions", nJunctions);
-				logrt.addValue("# Triple points", sum(sr.getTriples()));
-				logrt.addValue("# Quadruple points", sum(sr.getQuadruples()));
-				logrt.addValue("Average branch length", average(sr.getAverageBranchLength()));
-			}
-
-			// Remember main results
-			nJunctions2 = nJunctions;
-
-			// Eliminate end-points
-			as.run(pruneChoice, true, false, grayscaleImp, true, false, rootRoi);
-
-		} while (order++ <= getMaxOrder() && nJunctions > 0);
-
-		// Set counter to the de facto order
-		order -= 1;
-
-		// Append root properties to log table
-		if (validRootRoi && verbose) {
-
-			// Check if ROI contains unexpected structures
-			final String msg = (nRootJunctions > 0) ? "Warning: ROI contains ramified root(s)"
-					: "Root-branches inferred from ROI";
-			logrt.incrementCounter();
-			logrt.addValue("Image", title);
-			logrt.addValue("Structure", "Root");
-			logrt.addValue("Notes", msg);
-			logrt.addValue("# Trees", rootResult == null ? 0 : rootResult.getNumOfTrees());
-			logrt.addValue("# Branches", rootResult == null ? 0 : sum(rootResult.getBranches()));
-			logrt.addValue("# End-points", nRootEndpoints);
-			logrt.addValue("# Junctions", nRootJunctions);
-			logrt.addValue("# Triple points", rootResult == null ? 0 : sum(rootResult.getTriples()));
-			logrt.addValue("# Quadruple points", rootResult == null ? 0 : sum(rootResult.getQuadruples()));
-			logrt.addValue("Average branch length",
-					rootResult == null ? Double.NaN : average(rootResult.getAverageBranchLength()));
-
+			logrt.show(VERBOSE_TABLE);
 		}
 
 		// Safety check
-		if (iterationStack.getSize() < 1) {
+		final int order = result.getHighestOrder();
+		if (order < 1) {
 			error("Enable \"detailed\" mode and check " + VERBOSE_TABLE + " for details.");
 			return;
 		}
-
-		// Create iteration stack
-		final Calibration cal = srcImp.getCalibration();
-		final ImagePlus imp2 = new ImagePlus("StrahlerIteration_" + title, iterationStack);
-		imp2.setCalibration(cal);
-		if (outIS) {
-			if (validRootRoi) {
-				iterationStack.addSlice("Root", rootIp);
-				paintPoints(iterationStack, rootEndpointsList, 255, "Root end-points");
-				imp2.setRoi(rootRoi);
-			}
-			paintPoints(iterationStack, endpointsList, 255, "End-points");
-			paintPoints(iterationStack, junctionsList, 255, "Junction-points");
+		final int firstRow = rt.size();
+		try (StageProfiler.Stage stage = profiler.start("Table output")) {
+			for (final StrahlerResult treeResult : treeResults)
+				treeResult.addRows(rt);
+			result.addRows(rt);
 		}
-
-		// Generate Strahler mask
-		zp = new ZProjector(imp2);
-		zp.setMethod(ZProjector.SUM_METHOD);
-		zp.setStartSlice(1);
-		zp.setStopSlice(order);
-		zp.doProjection();
-		final ImageProcessor ip3 = zp.getProjection().getProcessor().convertToShortProcessor(false);
-		clearPoints(ip3, junctionsList); // disconnect branches
-		ip3.multiply(1 / 255.0); // map intensities to Strahler orders
-		final ImagePlus imp3 = new ImagePlus("StrahlerMask_" + title, ip3);
-		imp3.setCalibration(cal);
-
-		// Measure segmented orders
-		double prevNbranches = Double.NaN;
-		for (int i = 1; i <= order; i++) {
-
-			// Segment branches by order
-			final ImagePlus maskImp = imp3.duplicate(); // Calibration is
-														// retained
-			IJ.setThreshold(maskImp, i, i);
-			IJ.run(maskImp, "Convert to Mask", "");
-
-			// Analyze segmented order
-			final AnalyzeSkeleton_ maskAs = new AnalyzeSkeleton_();
-			maskAs.setup("", maskImp);
-			final SkeletonResult maskSr = maskAs.run(pruneChoice, false, false, grayscaleImp, true, false);
-			maskImp.flush();
-
-			// Since all branches are disconnected at this stage, the n. of
-			// branches is
-			// the same as the # the trees unless zero-branches trees exist,
-			// i.e., trees
-			// with no slab voxels (defined by just an end-point). We will
-			// ignore those
-			// trees if the user requested it
-			final int nBranches = (erodeIsolatedPixels) ? sum(maskSr.getBranches()) : maskSr.getNumOfTrees();
-
-			// Log measurements
-			rt.incrementCounter();
-			rt.addValue("Image", title);
-			rt.addValue("Strahler Order", i);
-			rt.addValue("# Branches", nBranches);
-			rt.addValue("Ramification ratios", prevNbranches / nBranches);
-			rt.addValue("Average branch length", average(maskSr.getAverageBranchLength()));
-			rt.addValue("Unit", cal.getUnit());
-			String noteMsg = "";
-			if (i == 1) {
-				noteMsg = (erodeIsolatedPixels) ? "Ignoring" : "Including";
-				noteMsg += " single-point arbors...";
-			}
-			rt.addValue("Notes", noteMsg);
-
-			// Remember results for previous order
-			prevNbranches = nBranches;
-
+		if (profile && !perTree) {
+			profiler.addColumns(rt, firstRow);
+			IJ.log(profiler.toJson(srcImp.getTitle()));
 		}
 
-		// Append any errors to last row
-		rt.addValue("Notes", errorMsg);
-
 		// Display outputs
 		if (!tabular) {
-			if (outIS)
-				imp2.show();
-			ip3.setMinAndMax(0, order);
+			if (result.getIterationStack() != null)
+				result.getIterationStack().show();
+			final ImagePlus imp3 = result.getMask();
+			imp3.setDisplayRange(0, order);
 			ColorMaps.applyMagmaColorMap(imp3, 200, false);
-			if (validRootRoi)
+			if (validRootRoi && protectRoot)
 				imp3.setRoi(rootRoi);
 			imp3.show();
 			addCalibrationBar(imp3, Math.min(order, 5), "Black");
 		}
-		if (verbose)
-			logrt.show(VERBOSE_TABLE);
 		rt.show(STRAHLER_TABLE);
 
-		IJ.showProgress(0, 0);
-		IJ.showTime(imp, imp.getStartTime(), "Strahler Analysis concluded... ");
-		imp.flush();
+		IJ.showTime(srcImp, startTime, "Strahler Analysis concluded... ");
 
 	}
 
@@ -459,6 +270,49 @@ public class Strahler implements PlugIn, DialogListener {
 		return validSetup && validImp;
 	}
 
+	/**
+	 * Retrieves the 'root-protecting' ROIs: the area ROI of the image or, if
+	 * the image has none, the area ROIs of the ROI Manager that fit the image,
+	 * i.e., whose bounds lie within the image canvas and whose slice position
+	 * (if any) exists in the image. ROI Manager ROIs being used (or skipped)
+	 * are logged.
+	 *
+	 * @param imp
+	 *            the image to be analyzed
+	 * @return the root ROIs (empty if none could be found)
+	 */
+	List<Roi> getRootRois(final ImagePlus imp) {
+		final List<Roi> rois = new ArrayList<>();
+		final Roi roi = imp.getRoi();
+		if (roi != null && roi.isArea()) {
+			rois.add(roi);
+			return rois;
+		}
+		final RoiManager rm = RoiManager.getInstance();
+		if (rm == null)
+			return rois;
+		final Rectangle canvas = new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+		final List<String> used = new ArrayList<>();
+		final List<String> skipped = new ArrayList<>();
+		for (final Roi rmRoi : rm.getRoisAsArray()) {
+			if (!rmRoi.isArea())
+				continue;
+			final int position = (rmRoi.getZPosition() > 0) ? rmRoi.getZPosition() : rmRoi.getPosition();
+			if (canvas.contains(rmRoi.getBounds()) && position <= imp.getStackSize()) {
+				rois.add(rmRoi);
+				used.add(rmRoi.getName());
+			} else {
+				skipped.add(rmRoi.getName());
+			}
+		}
+		if (!used.isEmpty())
+			IJ.log("[Strahler] 'Root-protecting' ROI(s) from ROI Manager: " + String.join(", ", used));
+		if (!skipped.isEmpty())
+			IJ.log("[Strahler] ROI Manager ROI(s) outside " + imp.getTitle() + " ignored: "
+					+ String.join(", ", skipped));
+		return rois;
+	}
+
 	/**
 	 * Displays an error message that will not disrupt macro calls. This is
 	 * useful for batch processing of images: Even if the analysis of a
@@ -487,8 +341,12 @@ public class Strahler implements PlugIn, DialogListener {
 		// Part 1. Main Options
 		gd.setInsets(0, 0, 0);
 		gd.addMessage("Tree Classification:", headerFont);
-		gd.addCheckbox("Infer root end-points from rectangular ROI", protectRoot);
+		gd.addCheckbox("Infer root end-points from ROI(s)", protectRoot);
 		gd.addCheckbox("Ignore single-point arbors (Isolated pixels)", erodeIsolatedPixels);
+		gd.addCheckbox("Single-pass classification (skeleton graph)", graphBased);
+		gd.addCheckbox("Multi-threaded skeletonization", parallelThinning);
+		gd.addMessage("Multi-threaded skeletons may differ from those of Skeletonize3D_\n"
+				+ "at a few voxels (topology is preserved)", null, EnhancedGenericDialog.infoColor());
 
 		// Part 2: Loop elimination
 		gd.setInsets(25, 0, 0);
@@ -516,6 +374,8 @@ public class Strahler implements PlugIn, DialogListener {
 		gd.addCheckbox("Display_iteration stack", outIS);
 		gd.addCheckbox("Show detailed information", verbose);
 		gd.addCheckbox("Tabular data only (no image output)", tabular);
+		gd.addCheckbox("Record timings and memory usage", profile);
+		gd.addCheckbox("Analyze each tree separately (no iteration stack)", perTree);
 		gd.setInsets(25, 0, 0);
 		gd.addHyperlinkMessage("This plugin attempts at performing Strahler\n"
 				+ "analysis directly from an image. For complete\n"
@@ -547,23 +407,27 @@ public class Strahler implements PlugIn, DialogListener {
 
 		protectRoot = gd.getNextBoolean();
 		erodeIsolatedPixels = gd.getNextBoolean();
+		graphBased = gd.getNextBoolean();
+		parallelThinning = gd.getNextBoolean();
 		pruneChoice = gd.getNextChoiceIndex();
 		grayscaleImpChoice = gd.getNextChoiceIndex();
 		outIS = gd.getNextBoolean();
 		verbose = gd.getNextBoolean();
 		tabular = gd.getNextBoolean();
+		profile = gd.getNextBoolean();
+		perTree = gd.getNextBoolean();
 
 		// Enable/Disable key components of GenericDialog
 		if (!IJ.macroRunning()) {
 			final Choice cImgChoice = (Choice) gd.getChoices().elementAt(1);
 			final Vector<?> checkboxes = gd.getCheckboxes();
 			final Checkbox roiOption = (Checkbox) checkboxes.elementAt(0);
-			final Checkbox stackOption = (Checkbox) checkboxes.elementAt(2);
+			final Checkbox stackOption = (Checkbox) checkboxes.elementAt(4);
 
 			cImgChoice.setEnabled(pruneChoice == AnalyzeSkeleton_.LOWEST_INTENSITY_VOXEL
 					|| pruneChoice == AnalyzeSkeleton_.LOWEST_INTENSITY_BRANCH);
 			roiOption.setEnabled(validRootRoi);
-			stackOption.setEnabled(!tabular);
+			stackOption.setEnabled(!tabular && !perTree);
 
 		}
 
@@ -571,93 +435,6 @@ public class Strahler implements PlugIn, DialogListener {
 
 	}
 
-	/**
-	 * Returns the sum of the values in the input array, or zero if the array is
-	 * empty or {@code null}.
-	 *
-	 * @param array
-	 *            array of values to be summed
-	 * @return the sum of elements in the array. Returns zero if array is
-	 *         {@code null} or empty.
-	 */
-	int sum(final int[] array) {
-		int sum = 0;
-		if (array != null)
-			for (final int i : array)
-				sum += i;
-		return sum;
-	}
-
-	/**
-	 * Returns the sum of the values in the input array, or zero if the array is
-	 * empty or {@code null}.
-	 *
-	 * @param array
-	 *            array of values to be summed
-	 * @return the sum of elements in the array. Returns zero if array is
-	 *         {@code null} or empty.
-	 */
-	double sum(final double[] array) {
-		double sum = 0; // TODO Use org.apache.commons.math3.stat.StatUtils?
-		if (array != null && array.length > 0)
-			for (final double i : array)
-				sum += i;
-		return sum;
-	}
-
-	/**
-	 * Returns the arithmetic mean of the values in the input array, or
-	 * {@code Double.NaN} if the array is empty or {@code null}.
-	 *
-	 * @param array
-	 *            array of values to be averaged
-	 * @return the arithmetic mean of the array. Returns {@code Double.NaN} if
-	 *         array is {@code null} or empty.
-	 */
-	double average(final double[] array) {
-		if (array != null && array.length > 0)
-			return sum(array) / array.length; // TODO Use
-												// org.apache.commons.math3.stat.StatUtils?
-		return Double.NaN;
-	}
-
-	/* Paints point positions. */
-	void paintPoints(final ImageStack stack, final ArrayList<Point> points, final int value, final String sliceLabel) {
-		if (points != null) {
-			final ImageProcessor ipp = stack.getProcessor(1).createProcessor(stack.getWidth(), stack.getHeight());
-					//ip.createProcessor(stack.getWidth(), stack.getHeight());
-			for (int j = 0; j < points.size(); j++) {
-				final Point point = points.get(j);
-				ipp.putPixel(point.x, point.y, value);
-			}
-			stack.addSlice(sliceLabel, ipp);
-		}
-	}
-
-	/* Clears point positions */
-	private void clearPoints(final ImageProcessor processor, final ArrayList<Point> points) {
-		if (points != null) {
-			for (int j = 0; j < points.size(); j++) {
-				final Point point = points.get(j);
-				processor.putPixel(point.x, point.y, 0);
-			}
-		}
-	}
-
-	/*
-	 * Skeletonization method that erodes the thinned structure in order to
-	 * eliminate isolated pixels. Thinning and pruning may give rise to single
-	 * point arbors. These 'debris' trees have 1 end-point but no branches or
-	 * junctions. If present they overestimate the total number of end-points
-	 */
-	private void skeletonizeWithoutHermits(final ImagePlus imp) {
-		final Skeletonize3D_ thin = new Skeletonize3D_();
-		thin.setup("", imp);
-		thin.run(null);
-		if (erodeIsolatedPixels)
-			Binary.removeIsolatedPixels(imp);
-	}
-
 	/**
 	 * Runs {@link ij.plugin.CalibrationBar} on the specified image using
 	 * sensible settings.
@@ -695,11 +472,12 @@ public class Strahler implements PlugIn, DialogListener {
 	 *
 	 * @param maxOrder
 	 *            The maximum number of pruning cycles of end-point branches
-	 *            that the plugin should perform
+	 *            that the plugin should perform. Values outside
+	 *            {@code [1, StrahlerAnalyzer.MAX_ORDER]} are clamped
 	 * @see #getMaxOrder()
 	 */
 	public void setMaxOrder(final int maxOrder) {
-		this.maxOrder = maxOrder;
+		this.maxOrder = Math.max(1, Math.min(StrahlerAnalyzer.MAX_ORDER, maxOrder));
 	}
 
 }
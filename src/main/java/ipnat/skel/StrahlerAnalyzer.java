@@ -0,0 +1,723 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import org.apache.commons.math3.stat.StatUtils;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ipnat.StageProfiler;
+import ipnat.processing.Binary;
+import ipnat.processing.PlaneSource;
+import ipnat.skel.StrahlerGraph.IterationSummary;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+import sc.fiji.analyzeSkeleton.Point;
+import sc.fiji.analyzeSkeleton.SkeletonResult;
+
+/**
+ * Performs Strahler analysis of a skeletonizable image without any user
+ * interaction, i.e., without dialogs, image windows or table windows. This is
+ * the engine behind the {@link Strahler} plugin and can be used directly in
+ * headless and batch processing contexts:
+ *
+ * <pre>
+ * StrahlerAnalyzer analyzer = new StrahlerAnalyzer(imp);
+ * analyzer.setRootRoi(imp.getRoi());
+ * StrahlerResult result = analyzer.analyze();
+ * </pre>
+ *
+ * @author Tiago Ferreira
+ */
+public class StrahlerAnalyzer {
+
+	/** The highest order that can be assigned: Orders are stored in 8-bit label volumes */
+	public static final int MAX_ORDER = 255;
+
+	/*
+	 * Approximate footprint of measuring an order: the binary mask plus
+	 * AnalyzeSkeleton_'s tagged, labeled (32-bit) and visited volumes
+	 */
+	private static final int BYTES_PER_ORDER_VOXEL = 8;
+
+	private final PlaneSource source;
+	private final int imageId; // identity of the input, for SkeletonCache
+	private List<Roi> rootRois = Collections.emptyList();
+	private int pruneChoice = AnalyzeSkeleton_.SHORTEST_BRANCH;
+	private ImagePlus grayscaleImp;
+	private boolean erodeIsolatedPixels = true;
+	private boolean graphBased = true;
+	private boolean incrementalThinning = true;
+	private boolean parallelThinning;
+	private boolean caching = true;
+	private boolean iterationStackRequested;
+	private int maxOrder = 30;
+	private int nThreads = Prefs.getThreads();
+	private boolean profiling;
+	private StageProfiler profiler;
+
+	/**
+	 * Instantiates a new analyzer.
+	 *
+	 * @param imp
+	 *            the 8-bit image to be analyzed. It is not modified by the
+	 *            analysis
+	 * @throws IllegalArgumentException
+	 *             if image is {@code null} or not 8-bit
+	 */
+	public StrahlerAnalyzer(final ImagePlus imp) throws IllegalArgumentException {
+		if (imp == null || imp.getBitDepth() != 8)
+			throw new IllegalArgumentException("An 8-bit image is required");
+		source = PlaneSource.of(imp);
+		imageId = imp.getID();
+	}
+
+	/**
+	 * Instantiates a new analyzer for a volume that is not loaded in memory,
+	 * e.g., a {@link ipnat.processing.MappedVolume}. Planes are read once, to
+	 * populate the working copy of the analysis.
+	 *
+	 * @param source
+	 *            the 8-bit volume to be analyzed
+	 * @throws IllegalArgumentException
+	 *             if source is {@code null}
+	 */
+	public StrahlerAnalyzer(final PlaneSource source) throws IllegalArgumentException {
+		if (source == null)
+			throw new IllegalArgumentException("A volume is required");
+		this.source = source;
+		imageId = System.identityHashCode(source);
+	}
+
+	/**
+	 * Sets the 'root-protecting' ROI. Any area ROI is supported. With 3D
+	 * images, the ROI is extended across all slices unless it is associated
+	 * with a slice.
+	 *
+	 * @param rootRoi
+	 *            the root ROI. Set it to {@code null} to disable root
+	 *            protection
+	 */
+	public void setRootRoi(final Roi rootRoi) {
+		setRootRois(RootRegions.asList(rootRoi));
+	}
+
+	/**
+	 * Sets multiple 'root-protecting' ROIs, e.g., those of the ROI Manager.
+	 * Non-area ROIs are ignored. With 3D images, ROIs associated with a slice
+	 * (see {@link Roi#getPosition()}) delimit the root in that slice only.
+	 * Overlapping ROIs (including ROIs of adjacent slices) delimit a single
+	 * root region.
+	 *
+	 * @param rootRois
+	 *            the root ROIs. Set it to {@code null} or an empty list to
+	 *            disable root protection
+	 */
+	public void setRootRois(final List<Roi> rootRois) {
+		this.rootRois = (rootRois == null) ? Collections.emptyList() : new ArrayList<>(rootRois);
+	}
+
+	/**
+	 * Sets the method used to eliminate skeleton loops.
+	 *
+	 * @param pruneChoice
+	 *            one of {@link AnalyzeSkeleton_#NONE},
+	 *            {@link AnalyzeSkeleton_#SHORTEST_BRANCH},
+	 *            {@link AnalyzeSkeleton_#LOWEST_INTENSITY_VOXEL} or
+	 *            {@link AnalyzeSkeleton_#LOWEST_INTENSITY_BRANCH}
+	 * @param grayscaleImp
+	 *            the 8-bit grayscale image required by intensity-based methods.
+	 *            It is ignored otherwise.
+	 */
+	public void setLoopPruning(final int pruneChoice, final ImagePlus grayscaleImp) {
+		this.pruneChoice = pruneChoice;
+		this.grayscaleImp = (pruneChoice == AnalyzeSkeleton_.LOWEST_INTENSITY_VOXEL
+				|| pruneChoice == AnalyzeSkeleton_.LOWEST_INTENSITY_BRANCH) ? grayscaleImp : null;
+	}
+
+	/**
+	 * @param ignore
+	 *            whether single-point arbors (isolated pixels) should be
+	 *            ignored
+	 */
+	public void setIgnoreIsolatedPixels(final boolean ignore) {
+		erodeIsolatedPixels = ignore;
+	}
+
+	/**
+	 * @param graphBased
+	 *            If {@code true} (the default), orders are assigned in a single
+	 *            pass over the skeleton graph. If {@code false} the image is
+	 *            iteratively pruned and re-skeletonized.
+	 */
+	public void setGraphBased(final boolean graphBased) {
+		this.graphBased = graphBased;
+	}
+
+	/**
+	 * @param incremental
+	 *            If {@code true} (the default), the iterative pruning only
+	 *            re-thins the neighborhoods of the voxels removed by the
+	 *            previous pruning cycle, reverting to a full pass when those
+	 *            span most of the image. Ignored by graph-based analyses
+	 */
+	public void setIncrementalThinning(final boolean incremental) {
+		incrementalThinning = incremental;
+	}
+
+	/**
+	 * @param parallel
+	 *            If {@code true}, images are thinned by the multi-threaded
+	 *            {@link ipnat.processing.Thinning} rather than
+	 *            {@code Skeletonize3D_} (the default). Results are
+	 *            topologically equivalent but may differ at a few voxels.
+	 *            They do not depend on the number of threads
+	 */
+	public void setParallelThinning(final boolean parallel) {
+		parallelThinning = parallel;
+	}
+
+	/**
+	 * @param caching
+	 *            If {@code true} (the default), the skeletonization of the
+	 *            image and the analysis of its skeleton are shared with other
+	 *            commands through {@link SkeletonCache}. Should be disabled for
+	 *            images analyzed only once
+	 */
+	public void setCaching(final boolean caching) {
+		this.caching = caching;
+	}
+
+	/**
+	 * @param requested
+	 *            whether the stack depicting each pruning iteration should be
+	 *            assembled. Its slices are written to a temporary directory and
+	 *            retrieved as a virtual stack
+	 */
+	public void setIterationStackRequested(final boolean requested) {
+		iterationStackRequested = requested;
+	}
+
+	/**
+	 * @param maxOrder
+	 *            the maximum number of pruning cycles of end-point branches.
+	 *            Values outside {@code [1, MAX_ORDER]} are clamped
+	 * @see #MAX_ORDER
+	 */
+	public void setMaxOrder(final int maxOrder) {
+		this.maxOrder = Math.max(1, Math.min(MAX_ORDER, maxOrder));
+	}
+
+	/**
+	 * @param nThreads
+	 *            the number of threads used to measure segmented orders
+	 *            and, if parallel thinning is enabled, to thin images
+	 */
+	public void setNumThreads(final int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * @param profiling
+	 *            whether wall time, CPU time and allocations of each analysis
+	 *            stage should be recorded. Records are available through
+	 *            {@link StrahlerResult#getProfiler()}
+	 */
+	public void setProfiling(final boolean profiling) {
+		this.profiling = profiling;
+	}
+
+	/**
+	 * @return the maximum number of pruning cycles of end-point branches
+	 */
+	public int getMaxOrder() {
+		return maxOrder;
+	}
+
+	/**
+	 * Runs the analysis.
+	 *
+	 * @return the analysis result. If the analysis could not be completed the
+	 *         result will report it in {@link StrahlerResult#getErrorMessage()}
+	 */
+	public StrahlerResult analyze() {
+
+		final String title = source.getTitle();
+		final Calibration cal = source.getCalibration();
+		final RootRegions roots = new RootRegions(rootRois, source.getWidth(), source.getHeight(), source.getDepth());
+		final boolean validRootRoi = !roots.isEmpty();
+		final Roi rootRoi = roots.toRoi(); // union of all ROIs, for AnalyzeSkeleton_ and display
+		profiler = new StageProfiler(profiling);
+
+		// Work on a skeletonized copy since we'll be modifying the image. The
+		// copy is assembled plane by plane so that the input is never
+		// duplicated as a whole (and its ROI is not used as crop). It remains
+		// 8-bit since it is thinned and analyzed by Fiji plugins
+		final ImageStack workStack = new ImageStack(source.getWidth(), source.getHeight());
+		try (StageProfiler.Stage stage = profiler.start("Input")) {
+			for (int z = 0; z < source.getDepth(); z++) {
+				final byte[] pixels = new byte[source.getWidth() * source.getHeight()];
+				source.readPlane(z, pixels);
+				workStack.addSlice("", pixels);
+			}
+		}
+		final ImagePlus imp = new ImagePlus(title, workStack);
+		imp.setCalibration(cal);
+		final long skeletonHash;
+		try (StageProfiler.Stage stage = profiler.start("Thinning")) {
+			skeletonHash = SkeletonCache.skeletonize(imp, imageId, erodeIsolatedPixels, parallelThinning, nThreads,
+					caching);
+		}
+
+		// Analyze root
+		ImageProcessor rootIp = null;
+		PackedPoints rootEndpoints = null;
+		IterationSummary rootSummary = null;
+		int nRootEndpoints = 0, nRootJunctions = 0;
+
+		if (validRootRoi) {
+
+			// Analyze only the skeleton within the (cropped) root region(s)
+			final StageProfiler.Stage rootStage = profiler.start("Root analysis");
+			final RootRegions.Analysis rootAnalysis = roots.analyze(imp, pruneChoice, grayscaleImp,
+					iterationStackRequested);
+			rootIp = rootAnalysis.projection;
+			rootEndpoints = rootAnalysis.endpoints;
+			rootSummary = rootAnalysis.summary;
+			nRootEndpoints = rootSummary.getNumOfEndpoints();
+			nRootJunctions = rootSummary.getNumOfJunctions();
+			rootStage.close();
+
+		}
+
+		// Initialize AnalyzeSkeleton_
+		final AnalyzeSkeleton_ as = new AnalyzeSkeleton_();
+		as.setup("", imp);
+
+		// Iteration slices are streamed to disk and never retained in memory
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final int depth = imp.getStackSize();
+		IterationStackWriter writer = null;
+		String errorMsg = "";
+		if (iterationStackRequested) {
+			try {
+				writer = new IterationStackWriter(width, height);
+			} catch (final IOException exc) {
+				IJ.log("[Strahler] Iteration stack could not be created: " + exc.getMessage());
+			}
+		}
+
+		final List<IterationSummary> iterations = new ArrayList<>();
+		final LoopResolver loopResolver = new LoopResolver(pruneChoice, grayscaleImp);
+		List<LoopResolver.Cut> loopCuts = new ArrayList<>();
+		PackedPoints endpoints = null, junctions = null;
+		int order = 1;
+
+		// Orders are stored in an 8-bit label volume with the dimensions of
+		// the image, so that branches crossing in Z are kept apart
+		final ImageStack orderStack = ImageStack.create(width, height, depth, 8);
+
+		if (graphBased) {
+
+			// Classify all branches in a single pass over the skeleton graph.
+			// Loops are resolved on the graph rather than pruned from the image
+			IJ.showStatus("Classifying branches...");
+			final SkeletonResult sr;
+			try (StageProfiler.Stage stage = profiler.start("Skeleton analysis")) {
+				sr = SkeletonCache.analyze(imp, imageId, skeletonHash, caching);
+			}
+			final StageProfiler.Stage classificationStage = profiler.start("Classification");
+			endpoints = PackedPoints.of(sr.getListOfEndPoints());
+			junctions = PackedPoints.of(sr.getListOfJunctionVoxels());
+			final StrahlerGraph sg = new StrahlerGraph(sr);
+			if (validRootRoi)
+				sg.setRootRegions(roots);
+			loopCuts = sg.resolveLoops(loopResolver);
+			order = sg.compute();
+			if (order == 0)
+				errorMsg = "Error! Iteration 1 aborted: No end-poins found";
+			else if (sg.hasUnresolvedLoops())
+				errorMsg = "Error! Iteration " + order + " aborted: Unsolved loop(s) detected";
+
+			// Describe pruned structures. Root is not included in 1st order
+			for (int i = 1; i <= order; i++) {
+				final IterationSummary summary = sg.getSummary(i);
+				if (i > 1) {
+					iterations.add(summary);
+					continue;
+				}
+				iterations.add(new IterationSummary(summary.getNumOfTrees(), summary.getNumOfBranches(),
+						summary.getNumOfEndpoints() - nRootEndpoints, summary.getNumOfJunctions() - nRootJunctions,
+						summary.getNumOfTriples(), summary.getNumOfQuadruples(), summary.getAverageBranchLength()));
+			}
+
+			// Paint orders directly. Iteration stack is only needed for display.
+			// Cut points are cleared, as in the image-based engine
+			sg.paintOrders(orderStack);
+			cutPoints(loopCuts).clear(orderStack);
+			classificationStage.close();
+			try (StageProfiler.Stage stage = profiler.start("Iteration stack")) {
+				final ImageProcessor orderProjection = (writer == null) ? null : project(orderStack);
+				for (int i = 1; writer != null && i <= order; i++)
+					writer = addIterationSlice(writer, "Order " + IJ.pad(i, 2),
+							segmentOrders(orderProjection, i, Integer.MAX_VALUE));
+			}
+
+		} else {
+
+			// Each pruning cycle increments the order of all surviving voxels
+			// in the label volume. Projections are only needed for display
+			final byte[] projection = (writer == null) ? null : new byte[width * height];
+
+			// Resolve loops once, by removing the weakest voxel of each loop
+			// from the image: Thinning cannot create new loops, so pruning
+			// cycles can then skip loop detection altogether
+			try (StageProfiler.Stage stage = profiler.start("Loop resolution")) {
+				final SkeletonResult loopySr = SkeletonCache.analyze(imp, imageId, skeletonHash, caching);
+				loopCuts = loopResolver.resolve(loopySr.getGraph());
+				cutPoints(loopCuts).clear(imp.getStack());
+			}
+
+			// Perform the iterative pruning
+			final DirtyRegions dirtyRegions = (incrementalThinning) ? new DirtyRegions(imp) : null;
+			int nEndpoints = 0, nJunctions = 0, nJunctions2 = 0;
+
+			do {
+
+				IJ.showStatus("Retrieving measurements for order " + order + "...");
+				IJ.showProgress(order, getMaxOrder());
+
+				// (Re)skeletonize image
+				if (order > 1)
+					skeletonizeWithoutHermits(imp, dirtyRegions, order);
+
+				// Get properties of loop-resolved tree(s)
+				final SkeletonResult sr;
+				try (StageProfiler.Stage stage = profiler.start("Skeleton analysis #" + order)) {
+					sr = as.run(AnalyzeSkeleton_.NONE, false, false, null, true, false);
+				}
+				nEndpoints = IntStream.of(sr.getEndPoints()).sum();
+				nJunctions = IntStream.of(sr.getJunctions()).sum();
+
+				if (order == 1) {
+					// Remember initial properties
+					endpoints = PackedPoints.of(sr.getListOfEndPoints());
+					junctions = PackedPoints.of(sr.getListOfJunctionVoxels());
+
+					// Do not include root in 1st order calculations
+					nEndpoints -= nRootEndpoints;
+					nJunctions -= nRootJunctions;
+				}
+
+				// Is it worth proceeding?
+				if (nEndpoints == 0 || nJunctions2 == nJunctions) {
+					errorMsg = "Error! Iteration " + order + " aborted: ";
+					errorMsg += (nEndpoints == 0) ? "No end-poins found" : "Unsolved loop(s) detected";
+					break;
+				}
+
+				// Accumulate current tree(s) into order mask
+				try (StageProfiler.Stage stage = profiler.start("Projection #" + order)) {
+					accumulate(imp.getStack(), orderStack);
+					if (writer != null) {
+						project(imp.getStack(), projection);
+						writer = addIterationSlice(writer, "Order " + IJ.pad(order, 2),
+								new ByteProcessor(width, height, projection.clone()));
+					}
+				}
+
+				// Remember properties of pruned structures
+				iterations.add(new IterationSummary(sr.getNumOfTrees(), IntStream.of(sr.getBranches()).sum(),
+						nEndpoints, nJunctions, IntStream.of(sr.getTriples()).sum(),
+						IntStream.of(sr.getQuadruples()).sum(), StatUtils.mean(sr.getAverageBranchLength())));
+
+				// Remember main results
+				nJunctions2 = nJunctions;
+
+				// Eliminate end-points
+				try (StageProfiler.Stage stage = profiler.start("Pruning #" + order)) {
+					if (dirtyRegions != null)
+						dirtyRegions.snapshot();
+					as.run(AnalyzeSkeleton_.NONE, true, false, null, true, false, (validRootRoi) ? rootRoi : null);
+				}
+
+			} while (order++ <= getMaxOrder() && nJunctions > 0);
+
+			// Set counter to the de facto order
+			order -= 1;
+
+		}
+		IJ.showProgress(0, 0);
+		imp.flush();
+
+		// Safety check
+		if (order < 1) {
+			if (errorMsg.isEmpty())
+				errorMsg = "Error! No branches could be classified";
+			return new StrahlerResult(title, cal.getUnit(), new int[0], new double[0], iterations, rootSummary,
+					erodeIsolatedPixels, errorMsg, null, null, loopCuts, profiler);
+		}
+
+		// Create iteration stack
+		final StageProfiler.Stage stackStage = profiler.start("Iteration stack");
+		if (writer != null && validRootRoi) {
+			writer = addIterationSlice(writer, "Root", rootIp);
+			writer = addIterationSlice(writer, "Root end-points", rootEndpoints.paint(width, height, 255));
+		}
+		if (writer != null)
+			writer = addIterationSlice(writer, "End-points", paint(endpoints, width, height));
+		if (writer != null)
+			writer = addIterationSlice(writer, "Junction-points", paint(junctions, width, height));
+		ImagePlus imp2 = null;
+		if (writer != null && writer.getSize() > 0) {
+			imp2 = new ImagePlus("StrahlerIteration_" + title, writer.getStack());
+			imp2.setCalibration(cal);
+			if (validRootRoi)
+				imp2.setRoi(rootRoi);
+		}
+		stackStage.close();
+
+		// Disconnect branches
+		if (junctions != null)
+			junctions.clear(orderStack);
+		final ImagePlus imp3 = new ImagePlus("StrahlerMask_" + title, orderStack);
+		imp3.setCalibration(cal);
+
+		// Measure segmented orders
+		final int[] nBranches = new int[order];
+		final double[] avgLengths = new double[order];
+		try (StageProfiler.Stage stage = profiler.start("Order measurements")) {
+			measureOrders(orderStack, cal, nBranches, avgLengths);
+		}
+
+		return new StrahlerResult(title, cal.getUnit(), nBranches, avgLengths, iterations, rootSummary,
+				erodeIsolatedPixels, errorMsg, imp3, imp2, loopCuts, profiler);
+
+	}
+
+	/*
+	 * Analyzes orders concurrently. Each task segments its order into a
+	 * full-size binary volume and analyzes it, so the number of concurrent
+	 * tasks is limited to those that fit in the available heap. Results are
+	 * stored in order in the specified arrays. Each task is profiled on its
+	 * own thread, so that its CPU time and allocations are accounted for.
+	 */
+	private void measureOrders(final ImageStack orderStack, final Calibration cal, final int[] nBranches,
+			final double[] avgLengths) {
+
+		final int nOrders = nBranches.length;
+		final long nVoxels = (long) orderStack.getWidth() * orderStack.getHeight() * orderStack.getSize();
+		final long freeHeap = IJ.maxMemory() - IJ.currentMemory();
+		final long maxTasks = Math.max(1, freeHeap / Math.max(1, BYTES_PER_ORDER_VOXEL * nVoxels));
+		final int nTasks = (int) Math.max(1, Math.min(Math.min(nThreads, nOrders), maxTasks));
+		final ExecutorService executor = Executors.newFixedThreadPool(nTasks);
+		final List<Future<SkeletonResult>> futures = new ArrayList<>(nOrders);
+		for (int i = 0; i < nOrders; i++) {
+			final int order = i + 1;
+			final Callable<SkeletonResult> task = () -> {
+				try (StageProfiler.Stage stage = profiler.start("Order " + order + " measurement")) {
+					return analyzeOrder(orderStack, order, cal);
+				}
+			};
+			futures.add(executor.submit(task));
+		}
+		executor.shutdown();
+
+		try {
+			for (int i = 0; i < nOrders; i++) {
+				final SkeletonResult maskSr = futures.get(i).get();
+				if (maskSr == null) { // order without branches
+					nBranches[i] = 0;
+					avgLengths[i] = Double.NaN;
+					continue;
+				}
+
+				// Since all branches are disconnected at this stage, the n. of
+				// branches is the same as the # the trees unless zero-branches
+				// trees exist, i.e., trees with no slab voxels (defined by just
+				// an end-point). We will ignore those trees if the user
+				// requested it
+				nBranches[i] = (erodeIsolatedPixels) ? IntStream.of(maskSr.getBranches()).sum()
+						: maskSr.getNumOfTrees();
+				avgLengths[i] = StatUtils.mean(maskSr.getAverageBranchLength());
+			}
+		} catch (final InterruptedException | ExecutionException exc) {
+			executor.shutdownNow();
+			throw new IllegalStateException("Segmented orders could not be measured", exc);
+		}
+
+	}
+
+	/* Returns null if the order has no voxels */
+	private SkeletonResult analyzeOrder(final ImageStack orderStack, final int order, final Calibration cal) {
+		final ImageStack maskStack = segmentOrder(orderStack, order);
+		if (maskStack == null)
+			return null;
+		final ImagePlus maskImp = new ImagePlus("", maskStack);
+		maskImp.setCalibration(cal);
+		final AnalyzeSkeleton_ maskAs = new AnalyzeSkeleton_();
+		maskAs.setup("", maskImp);
+		final SkeletonResult maskSr = maskAs.run(pruneChoice, false, false, grayscaleImp, true, false);
+		maskImp.flush();
+		return maskSr;
+	}
+
+	/*
+	 * Segments a single order from a label volume, one slice at a time.
+	 * Returns null if the order has no voxels
+	 */
+	static ImageStack segmentOrder(final ImageStack orderStack, final int order) {
+		final int width = orderStack.getWidth();
+		final int height = orderStack.getHeight();
+		final ImageStack maskStack = new ImageStack(width, height);
+		boolean empty = true;
+		for (int z = 1; z <= orderStack.getSize(); z++) {
+			final byte[] labels = (byte[]) orderStack.getPixels(z);
+			final byte[] mask = new byte[labels.length];
+			for (int i = 0; i < labels.length; i++) {
+				if ((labels[i] & 0xff) == order) {
+					mask[i] = (byte) 255;
+					empty = false;
+				}
+			}
+			maskStack.addSlice("", mask);
+		}
+		return (empty) ? null : maskStack;
+	}
+
+	/*
+	 * Skeletonization method that erodes the thinned structure in order to
+	 * eliminate isolated pixels. Thinning and pruning may give rise to single
+	 * point arbors. These 'debris' trees have 1 end-point but no branches or
+	 * junctions. If present they overestimate the total number of end-points.
+	 * If dirty regions are specified, only those are re-thinned (unless a full
+	 * pass is deemed more efficient)
+	 */
+	private void skeletonizeWithoutHermits(final ImagePlus imp, final DirtyRegions dirtyRegions,
+			final int iteration) {
+		try (StageProfiler.Stage stage = profiler.start("Thinning #" + iteration)) {
+			if (dirtyRegions != null) {
+				dirtyRegions.update();
+				if (!dirtyRegions.requiresFullPass()) {
+					dirtyRegions.rethin(erodeIsolatedPixels, parallelThinning);
+					return;
+				}
+			}
+			SkeletonCache.thin(imp, parallelThinning, nThreads);
+			if (erodeIsolatedPixels)
+				Binary.removeIsolatedPixels(imp);
+		}
+	}
+
+	/* Returns the voxels removed to resolve loops */
+	private static PackedPoints cutPoints(final List<LoopResolver.Cut> loopCuts) {
+		final PackedPoints cutPoints = new PackedPoints(loopCuts.size());
+		for (final LoopResolver.Cut cut : loopCuts) {
+			final Point p = cut.getCutPoint();
+			if (p != null)
+				cutPoints.add(p.x, p.y, p.z);
+		}
+		return cutPoints;
+	}
+
+	/* Returns a binary processor of all pixels within the specified order range */
+	static ByteProcessor segmentOrders(final ImageProcessor orderIp, final int minOrder, final int maxOrder) {
+		final ByteProcessor bp = new ByteProcessor(orderIp.getWidth(), orderIp.getHeight());
+		final byte[] pixels = (byte[]) bp.getPixels();
+		for (int i = 0; i < pixels.length; i++) {
+			final int value = orderIp.get(i);
+			if (value >= minOrder && value <= maxOrder)
+				pixels[i] = (byte) 255;
+		}
+		return bp;
+	}
+
+	/*
+	 * Streams a slice to the iteration stack. Returns null (i.e., disables
+	 * the iteration stack) if the slice could not be saved
+	 */
+	private IterationStackWriter addIterationSlice(final IterationStackWriter writer, final String label,
+			final ImageProcessor ip) {
+		try {
+			writer.addSlice(label, ip);
+			return writer;
+		} catch (final IOException exc) {
+			IJ.log("[Strahler] Iteration stack discarded: " + exc.getMessage());
+			return null;
+		}
+	}
+
+	/* Max-projects an 8-bit stack into the specified buffer */
+	static void project(final ImageStack stack, final byte[] projection) {
+		final int nSlices = stack.getSize();
+		System.arraycopy(stack.getPixels(1), 0, projection, 0, projection.length);
+		for (int z = 2; z <= nSlices; z++) {
+			final byte[] pixels = (byte[]) stack.getPixels(z);
+			for (int i = 0; i < projection.length; i++) {
+				if ((pixels[i] & 0xff) > (projection[i] & 0xff))
+					projection[i] = pixels[i];
+			}
+		}
+	}
+
+	/* Returns the maximum projection of an 8-bit stack */
+	static ByteProcessor project(final ImageStack stack) {
+		final ByteProcessor bp = new ByteProcessor(stack.getWidth(), stack.getHeight());
+		project(stack, (byte[]) bp.getPixels());
+		return bp;
+	}
+
+	/* Increments the labels of all foreground voxels of a binary stack */
+	static void accumulate(final ImageStack binaryStack, final ImageStack orderStack) {
+		for (int z = 1; z <= binaryStack.getSize(); z++) {
+			final byte[] pixels = (byte[]) binaryStack.getPixels(z);
+			final byte[] labels = (byte[]) orderStack.getPixels(z);
+			for (int i = 0; i < pixels.length; i++) {
+				if (pixels[i] != 0 && labels[i] != (byte) 255)
+					labels[i]++;
+			}
+		}
+	}
+
+	/* Paints point positions (an empty canvas if points are unknown) */
+	private static ByteProcessor paint(final PackedPoints points, final int width, final int height) {
+		return (points == null) ? new ByteProcessor(width, height) : points.paint(width, height, 255);
+	}
+
+}
@@ -0,0 +1,454 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import ij.ImageStack;
+import sc.fiji.analyzeSkeleton.Edge;
+import sc.fiji.analyzeSkeleton.Graph;
+import sc.fiji.analyzeSkeleton.Point;
+import sc.fiji.analyzeSkeleton.SkeletonResult;
+import sc.fiji.analyzeSkeleton.Vertex;
+
+/**
+ * Assigns Strahler orders to the branches of a skeleton graph in a single
+ * pass. Rather than iteratively pruning terminal branches from the image and
+ * re-skeletonizing it, orders are computed by a bottom-up traversal of the
+ * graph(s) retrieved by {@link sc.fiji.analyzeSkeleton.AnalyzeSkeleton_}:
+ * End-point branches are visited first and branches are processed in
+ * increasing order, so that each branch is classified at the same iteration in
+ * which the image-based pruning would have removed it.
+ *
+ * @author Tiago Ferreira
+ */
+public class StrahlerGraph {
+
+	private final Graph[] graphs;
+	private final Map<Edge, Integer> orders;
+	private final Set<Edge> cutEdges;
+	private RootRegions rootRegions;
+	private boolean unresolvedLoops;
+	private int highestOrder;
+
+	/**
+	 * Instantiates a new StrahlerGraph.
+	 *
+	 * @param sr
+	 *            the loop-resolved analysis of the skeleton to be classified
+	 */
+	public StrahlerGraph(final SkeletonResult sr) {
+		graphs = (sr == null || sr.getGraph() == null) ? new Graph[0] : sr.getGraph();
+		orders = new HashMap<>();
+		cutEdges = new HashSet<>();
+	}
+
+	/**
+	 * Resolves the loops of the skeleton before classification, so that the
+	 * skeleton can be analyzed without loop pruning.
+	 *
+	 * @param resolver
+	 *            the resolver implementing the loop-pruning method
+	 * @return the branches cut to resolve loops
+	 * @see LoopResolver
+	 */
+	public List<LoopResolver.Cut> resolveLoops(final LoopResolver resolver) {
+		final List<LoopResolver.Cut> cuts = resolver.resolve(graphs);
+		cutEdges.clear();
+		for (final LoopResolver.Cut cut : cuts)
+			cutEdges.add(cut.getEdge());
+		return cuts;
+	}
+
+	/* Sets the 'root-protecting' regions (possibly multiple and slice-specific) */
+	void setRootRegions(final RootRegions rootRegions) {
+		this.rootRegions = rootRegions;
+	}
+
+	/**
+	 * Assigns Strahler orders to all branches.
+	 *
+	 * @return the highest Strahler order in the skeleton, or zero if no
+	 *         branches exist
+	 */
+	public int compute() {
+		orders.clear();
+		unresolvedLoops = false;
+		highestOrder = 0;
+		for (final Graph graph : graphs) {
+			if (graph != null)
+				compute(graph);
+		}
+		for (final int order : orders.values())
+			highestOrder = Math.max(highestOrder, order);
+		return highestOrder;
+	}
+
+	private void compute(final Graph graph) {
+
+		final ArrayList<Vertex> vertices = graph.getVertices();
+		final ArrayList<Edge> edges = graph.getEdges();
+		if (vertices == null || edges == null || edges.isEmpty())
+			return;
+
+		final int n = vertices.size();
+		final Map<Vertex, Integer> index = new HashMap<>();
+		for (int i = 0; i < n; i++)
+			index.put(vertices.get(i), i);
+
+		final int[] degree = new int[n];
+		final int[] maxChild = new int[n];
+		final int[] nMaxChild = new int[n];
+		final boolean[] root = new boolean[n];
+		final boolean[] done = new boolean[n];
+		final List<List<Edge>> incident = new ArrayList<>(n);
+		for (int i = 0; i < n; i++)
+			incident.add(new ArrayList<>());
+
+		for (final Edge e : edges) {
+			final Integer i1 = index.get(e.getV1());
+			final Integer i2 = index.get(e.getV2());
+			if (i1 == null || i2 == null)
+				continue;
+			if (i1.intValue() == i2.intValue() || cutEdges.contains(e)) {
+				// A loop around a single vertex, or a branch cut to resolve a
+				// loop: Once cut, it becomes two terminal branches attached to
+				// its vertices
+				orders.put(e, 1);
+				addChild(maxChild, nMaxChild, i1, 1);
+				addChild(maxChild, nMaxChild, i2, 1);
+				continue;
+			}
+			incident.get(i1).add(e);
+			incident.get(i2).add(e);
+			degree[i1]++;
+			degree[i2]++;
+		}
+
+		// End-points within the root ROI are protected from pruning
+		final PriorityQueue<Long> queue = new PriorityQueue<>();
+		for (int i = 0; i < n; i++) {
+			root[i] = degree[i] == 1 && withinRoot(vertices.get(i));
+			if (degree[i] == 1 && !root[i])
+				queue.add(key(strahlerValue(maxChild, nMaxChild, i), i));
+		}
+
+		// Peel terminal branches in increasing order
+		while (!queue.isEmpty()) {
+			final long key = queue.poll();
+			final int order = (int) (key >>> 32);
+			final int v = (int) (key & 0xffffffffL);
+			if (done[v] || degree[v] != 1)
+				continue;
+			Edge terminal = null;
+			for (final Edge e : incident.get(v)) {
+				if (!orders.containsKey(e)) {
+					terminal = e;
+					break;
+				}
+			}
+			if (terminal == null)
+				continue;
+			orders.put(terminal, order);
+			done[v] = true;
+			degree[v] = 0;
+			final Vertex opposite = (terminal.getV1() == vertices.get(v)) ? terminal.getV2() : terminal.getV1();
+			final int w = index.get(opposite);
+			degree[w]--;
+			addChild(maxChild, nMaxChild, w, order);
+			if (degree[w] == 1 && !root[w])
+				queue.add(key(strahlerValue(maxChild, nMaxChild, w), w));
+		}
+
+		// Any remaining branches either connect root end-points or are part of
+		// loops that could not be peeled
+		int nRemainingEdges = 0;
+		final boolean[] remainingVertex = new boolean[n];
+		for (final Edge e : edges) {
+			if (orders.containsKey(e))
+				continue;
+			final Integer i1 = index.get(e.getV1());
+			final Integer i2 = index.get(e.getV2());
+			if (i1 == null || i2 == null)
+				continue;
+			orders.put(e, Math.max(strahlerValue(maxChild, nMaxChild, i1), strahlerValue(maxChild, nMaxChild, i2)));
+			remainingVertex[i1] = remainingVertex[i2] = true;
+			nRemainingEdges++;
+		}
+		int nRemainingVertices = 0;
+		for (final boolean remaining : remainingVertex)
+			if (remaining)
+				nRemainingVertices++;
+		if (nRemainingEdges > 0 && nRemainingEdges >= nRemainingVertices)
+			unresolvedLoops = true;
+
+	}
+
+	private static long key(final int order, final int vertexIndex) {
+		return ((long) order << 32) | (vertexIndex & 0xffffffffL);
+	}
+
+	private static void addChild(final int[] maxChild, final int[] nMaxChild, final int vertexIndex,
+			final int order) {
+		if (order > maxChild[vertexIndex]) {
+			maxChild[vertexIndex] = order;
+			nMaxChild[vertexIndex] = 1;
+		} else if (order == maxChild[vertexIndex]) {
+			nMaxChild[vertexIndex]++;
+		}
+	}
+
+	/* The order of the branch leaving a vertex, given the orders of its children */
+	private static int strahlerValue(final int[] maxChild, final int[] nMaxChild, final int vertexIndex) {
+		if (maxChild[vertexIndex] == 0)
+			return 1;
+		return (nMaxChild[vertexIndex] > 1) ? maxChild[vertexIndex] + 1 : maxChild[vertexIndex];
+	}
+
+	private boolean withinRoot(final Vertex vertex) {
+		if (rootRegions == null)
+			return false;
+		for (final Point p : vertex.getPoints()) {
+			if (rootRegions.contains(p.x, p.y, p.z))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the Strahler order of the specified branch.
+	 *
+	 * @param edge
+	 *            the branch
+	 * @return the Strahler order, or zero if the branch has not been classified
+	 */
+	public int getOrder(final Edge edge) {
+		final Integer order = orders.get(edge);
+		return (order == null) ? 0 : order;
+	}
+
+	/**
+	 * Returns the highest Strahler order determined by {@link #compute()}.
+	 *
+	 * @return the highest Strahler order
+	 */
+	public int getHighestOrder() {
+		return highestOrder;
+	}
+
+	/**
+	 * Checks whether the skeleton contains loops that prevented a complete
+	 * classification.
+	 *
+	 * @return {@code true} if loops were detected
+	 */
+	public boolean hasUnresolvedLoops() {
+		return unresolvedLoops;
+	}
+
+	/**
+	 * Paints the Strahler order of each branch (and of its vertices) into the
+	 * specified 8-bit label volume. Orders above 255 are saturated.
+	 *
+	 * @param stack
+	 *            the (8-bit) stack to be painted. It should have the same
+	 *            dimensions of the analyzed image.
+	 */
+	public void paintOrders(final ImageStack stack) {
+		final byte[][] labels = new byte[stack.getSize()][];
+		for (int z = 0; z < labels.length; z++)
+			labels[z] = (byte[]) stack.getPixels(z + 1);
+		final int width = stack.getWidth();
+		for (final Map.Entry<Edge, Integer> entry : orders.entrySet()) {
+			final Edge edge = entry.getKey();
+			final int order = Math.min(255, entry.getValue());
+			paint(labels, width, edge.getSlabs(), order);
+			paint(labels, width, edge.getV1().getPoints(), order);
+			paint(labels, width, edge.getV2().getPoints(), order);
+		}
+	}
+
+	private void paint(final byte[][] labels, final int width, final List<Point> points, final int order) {
+		if (points == null)
+			return;
+		for (final Point p : points) {
+			final int i = p.y * width + p.x;
+			if ((labels[p.z][i] & 0xff) < order)
+				labels[p.z][i] = (byte) order;
+		}
+	}
+
+	/**
+	 * Describes the skeleton that would remain at the specified iteration of
+	 * the pruning of terminal branches, i.e., the skeleton composed of branches
+	 * of the specified order or higher.
+	 *
+	 * @param order
+	 *            the Strahler order (iteration)
+	 * @return the summary of the pruned skeleton
+	 */
+	public IterationSummary getSummary(final int order) {
+
+		int nTrees = 0, nBranches = 0, nEndpoints = 0, nJunctions = 0, nTriples = 0, nQuadruples = 0;
+		double sumOfAverages = 0d;
+
+		for (final Graph graph : graphs) {
+			if (graph == null || graph.getVertices() == null || graph.getEdges() == null)
+				continue;
+			final ArrayList<Vertex> vertices = graph.getVertices();
+			final int n = vertices.size();
+			final Map<Vertex, Integer> index = new HashMap<>();
+			for (int i = 0; i < n; i++)
+				index.put(vertices.get(i), i);
+
+			// Degrees and connected components of the pruned skeleton
+			final int[] degree = new int[n];
+			final int[] parent = new int[n];
+			for (int i = 0; i < n; i++)
+				parent[i] = i;
+			for (final Edge e : graph.getEdges()) {
+				final Integer i1 = index.get(e.getV1());
+				final Integer i2 = index.get(e.getV2());
+				if (i1 == null || i2 == null || getOrder(e) < order)
+					continue;
+				degree[i1]++;
+				degree[i2]++;
+				if (!cutEdges.contains(e))
+					parent[find(parent, i1)] = find(parent, i2);
+			}
+
+			final Map<Integer, double[]> trees = new HashMap<>(); // {edges, deg-2 vertices, length}
+			for (final Edge e : graph.getEdges()) {
+				final Integer i1 = index.get(e.getV1());
+				final Integer i2 = index.get(e.getV2());
+				if (i1 == null || i2 == null || getOrder(e) < order)
+					continue;
+				if (cutEdges.contains(e)) {
+					// Two terminal branches, one on each side of the cut
+					nEndpoints += 2;
+					for (final int i : new int[] { i1, i2 }) {
+						final double[] tree = trees.computeIfAbsent(find(parent, i), k -> new double[3]);
+						tree[0]++;
+						tree[2] += e.getLength() / 2;
+					}
+					continue;
+				}
+				final double[] tree = trees.computeIfAbsent(find(parent, i1), k -> new double[3]);
+				tree[0]++;
+				tree[2] += e.getLength();
+			}
+			for (int i = 0; i < n; i++) {
+				if (degree[i] == 0)
+					continue;
+				if (degree[i] == 1)
+					nEndpoints++;
+				else if (degree[i] == 2)
+					trees.get(find(parent, i))[1]++;
+				else
+					nJunctions++;
+				if (degree[i] == 3)
+					nTriples++;
+				else if (degree[i] == 4)
+					nQuadruples++;
+			}
+
+			// Junctions that became slab voxels merge adjacent branches
+			for (final double[] tree : trees.values()) {
+				final int nTreeBranches = (int) Math.max(1, tree[0] - tree[1]);
+				nTrees++;
+				nBranches += nTreeBranches;
+				sumOfAverages += tree[2] / nTreeBranches;
+			}
+		}
+
+		return new IterationSummary(nTrees, nBranches, nEndpoints, nJunctions, nTriples, nQuadruples,
+				(nTrees > 0) ? sumOfAverages / nTrees : Double.NaN);
+
+	}
+
+	private static int find(final int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/** Properties of the skeleton at a given pruning iteration. */
+	public static class IterationSummary {
+
+		private final int nTrees;
+		private final int nBranches;
+		private final int nEndpoints;
+		private final int nJunctions;
+		private final int nTriples;
+		private final int nQuadruples;
+		private final double averageBranchLength;
+
+		IterationSummary(final int nTrees, final int nBranches, final int nEndpoints, final int nJunctions,
+				final int nTriples, final int nQuadruples, final double averageBranchLength) {
+			this.nTrees = nTrees;
+			this.nBranches = nBranches;
+			this.nEndpoints = nEndpoints;
+			this.nJunctions = nJunctions;
+			this.nTriples = nTriples;
+			this.nQuadruples = nQuadruples;
+			this.averageBranchLength = averageBranchLength;
+		}
+
+		public int getNumOfTrees() {
+			return nTrees;
+		}
+
+		public int getNumOfBranches() {
+			return nBranches;
+		}
+
+		public int getNumOfEndpoints() {
+			return nEndpoints;
+		}
+
+		public int getNumOfJunctions() {
+			return nJunctions;
+		}
+
+		public int getNumOfTriples() {
+			return nTriples;
+		}
+
+		public int getNumOfQuadruples() {
+			return nQuadruples;
+		}
+
+		public double getAverageBranchLength() {
+			return averageBranchLength;
+		}
+
+	}
+
+}
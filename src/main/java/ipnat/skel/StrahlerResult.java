@@ -0,0 +1,274 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import ipnat.StageProfiler;
+import ipnat.skel.StrahlerGraph.IterationSummary;
+
+/**
+ * Immutable outcome of a {@link StrahlerAnalyzer} run.
+ *
+ * @author Tiago Ferreira
+ */
+public class StrahlerResult {
+
+	/* Columns of the rows added by addRows(), in order */
+	static final String[] HEADINGS = { "Image", "Strahler Order", "# Branches", "Ramification ratios",
+			"Average branch length", "Unit", "Notes" };
+
+	private final String title;
+	private final String unit;
+	private final int[] nBranches;
+	private final double[] averageBranchLengths;
+	private final List<IterationSummary> iterations;
+	private final IterationSummary rootSummary;
+	private final boolean ramifiedRoot;
+	private final boolean ignoringIsolatedPixels;
+	private final String errorMsg;
+	private final ImagePlus mask;
+	private final ImagePlus iterationStack;
+	private final List<LoopResolver.Cut> loopCuts;
+	private final StageProfiler profiler;
+
+	StrahlerResult(final String title, final String unit, final int[] nBranches,
+			final double[] averageBranchLengths, final List<IterationSummary> iterations,
+			final IterationSummary rootSummary, final boolean ignoringIsolatedPixels, final String errorMsg,
+			final ImagePlus mask, final ImagePlus iterationStack, final List<LoopResolver.Cut> loopCuts,
+			final StageProfiler profiler) {
+		this.title = title;
+		this.unit = unit;
+		this.nBranches = nBranches.clone();
+		this.averageBranchLengths = averageBranchLengths.clone();
+		this.iterations = Collections.unmodifiableList(new ArrayList<>(iterations));
+		this.rootSummary = rootSummary;
+		this.ramifiedRoot = rootSummary != null && rootSummary.getNumOfJunctions() > 0;
+		this.ignoringIsolatedPixels = ignoringIsolatedPixels;
+		this.errorMsg = (errorMsg == null) ? "" : errorMsg;
+		this.mask = mask;
+		this.iterationStack = iterationStack;
+		this.loopCuts = Collections.unmodifiableList(new ArrayList<>(loopCuts));
+		this.profiler = (profiler == null) ? new StageProfiler(false) : profiler;
+	}
+
+	/**
+	 * @return the title of the analyzed image
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @return the calibration unit of the analyzed image
+	 */
+	public String getUnit() {
+		return unit;
+	}
+
+	/**
+	 * @return the highest Strahler order, or zero if analysis failed
+	 */
+	public int getHighestOrder() {
+		return nBranches.length;
+	}
+
+	/**
+	 * @return the number of branches of each order. The first element
+	 *         corresponds to order 1
+	 */
+	public int[] getBranchCounts() {
+		return nBranches.clone();
+	}
+
+	/**
+	 * @param order
+	 *            the Strahler order (1-based)
+	 * @return the number of branches of the specified order
+	 */
+	public int getBranchCount(final int order) {
+		return nBranches[order - 1];
+	}
+
+	/**
+	 * @return the average branch length of each order. The first element
+	 *         corresponds to order 1
+	 */
+	public double[] getAverageBranchLengths() {
+		return averageBranchLengths.clone();
+	}
+
+	/**
+	 * @param order
+	 *            the Strahler order (1-based)
+	 * @return the average branch length of the specified order
+	 */
+	public double getAverageBranchLength(final int order) {
+		return averageBranchLengths[order - 1];
+	}
+
+	/**
+	 * @param order
+	 *            the Strahler order (1-based)
+	 * @return the ratio between the number of branches of the previous order
+	 *         and those of the specified order, or {@code Double.NaN} for order
+	 *         1
+	 */
+	public double getRamificationRatio(final int order) {
+		return (order < 2) ? Double.NaN : (double) nBranches[order - 2] / nBranches[order - 1];
+	}
+
+	/**
+	 * @return the properties of the skeleton at each pruning iteration
+	 */
+	public List<IterationSummary> getIterationSummaries() {
+		return iterations;
+	}
+
+	/**
+	 * @return the properties of the skeleton within the root-protecting ROI, or
+	 *         {@code null} if no root was specified
+	 */
+	public IterationSummary getRootSummary() {
+		return rootSummary;
+	}
+
+	/**
+	 * @return the error message of an aborted analysis or an empty string
+	 */
+	public String getErrorMessage() {
+		return errorMsg;
+	}
+
+	/**
+	 * @return the 8-bit label volume in which each skeleton voxel is assigned
+	 *         its Strahler order (saturated at 255)
+	 */
+	public ImagePlus getMask() {
+		return mask;
+	}
+
+	/**
+	 * @return the stack depicting each pruning iteration, or {@code null} if it
+	 *         was not requested
+	 */
+	public ImagePlus getIterationStack() {
+		return iterationStack;
+	}
+
+	/**
+	 * @return the branches cut to resolve the loops of the skeleton
+	 */
+	public List<LoopResolver.Cut> getLoopCuts() {
+		return loopCuts;
+	}
+
+	/**
+	 * @return the per-stage timings and allocations of the analysis. Holds no
+	 *         records unless profiling was enabled in the analyzer
+	 */
+	public StageProfiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Appends one row per Strahler order to the specified table. Errors are
+	 * noted in the last of these rows. If the analysis failed, a single row
+	 * holding the title (which identifies the tree in per-tree analyses) and
+	 * the error is appended instead.
+	 *
+	 * @param rt
+	 *            the table to be populated
+	 */
+	public void addRows(final ResultsTable rt) {
+		if (getHighestOrder() == 0) {
+			addRow(rt, new Object[] { title, Double.NaN, Double.NaN, Double.NaN, Double.NaN, unit, errorMsg });
+			return;
+		}
+		for (int i = 1; i <= getHighestOrder(); i++) {
+			String noteMsg = "";
+			if (i == 1) {
+				noteMsg = (ignoringIsolatedPixels) ? "Ignoring" : "Including";
+				noteMsg += " single-point arbors...";
+			}
+			if (i == getHighestOrder() && !errorMsg.isEmpty())
+				noteMsg = (noteMsg.isEmpty()) ? errorMsg : noteMsg + " " + errorMsg;
+			addRow(rt, new Object[] { title, i, getBranchCount(i), getRamificationRatio(i), getAverageBranchLength(i),
+					unit, noteMsg });
+		}
+	}
+
+	/* Appends a row holding the specified values of HEADINGS */
+	private static void addRow(final ResultsTable rt, final Object[] values) {
+		rt.incrementCounter();
+		for (int col = 0; col < HEADINGS.length; col++) {
+			if (values[col] instanceof Number)
+				rt.addValue(HEADINGS[col], ((Number) values[col]).doubleValue());
+			else
+				rt.addValue(HEADINGS[col], (String) values[col]);
+		}
+	}
+
+	/**
+	 * Appends the properties of the skeleton at each pruning iteration (and
+	 * those of the root, if any) to the specified table, followed by one row
+	 * per loop describing the branch cut to resolve it.
+	 *
+	 * @param logrt
+	 *            the table to be populated
+	 */
+	public void addIterationRows(final ResultsTable logrt) {
+		for (int i = 0; i < iterations.size(); i++)
+			addSummaryRow(logrt, "Skel. at iteration " + Integer.toString(i + 1), "", iterations.get(i));
+		if (rootSummary != null) {
+			final String msg = (ramifiedRoot) ? "Warning: ROI contains ramified root(s)"
+					: "Root-branches inferred from ROI";
+			addSummaryRow(logrt, "Root", msg, rootSummary);
+		}
+		for (int i = 0; i < loopCuts.size(); i++) {
+			logrt.incrementCounter();
+			logrt.addValue("Image", title);
+			logrt.addValue("Structure", "Loop " + Integer.toString(i + 1));
+			logrt.addValue("Notes", loopCuts.get(i).toString());
+		}
+	}
+
+	private void addSummaryRow(final ResultsTable logrt, final String structure, final String notes,
+			final IterationSummary summary) {
+		logrt.incrementCounter();
+		logrt.addValue("Image", title);
+		logrt.addValue("Structure", structure);
+		logrt.addValue("Notes", notes);
+		logrt.addValue("# Trees", summary.getNumOfTrees());
+		logrt.addValue("# Branches", summary.getNumOfBranches());
+		logrt.addValue("# End-points", summary.getNumOfEndpoints());
+		logrt.addValue("# Junctions", summary.getNumOfJunctions());
+		logrt.addValue("# Triple points", summary.getNumOfTriples());
+		logrt.addValue("# Quadruple points", summary.getNumOfQuadruples());
+		logrt.addValue("Average branch length", summary.getAverageBranchLength());
+	}
+
+}
@@ -27,11 +27,14 @@ import org.apache.commons.math3.stat.StatUtils;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Macro;
+import ij.gui.GenericDialog;
 import ij.measure.ResultsTable;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 import ipnat.Utils;
-import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+import ipnat.processing.ConnectedComponents;
+import ipnat.processing.PlaneSource;
 import sc.fiji.analyzeSkeleton.SkeletonResult;
 
 /**
@@ -44,6 +47,8 @@ import sc.fiji.analyzeSkeleton.SkeletonResult;
 public class SummarizeSkeleton implements PlugInFilter {
 
 	private ImagePlus imp;
+	private boolean inSlabs;
+	private boolean treesOnly;
 	private final String TABLE_TITLE = "Skeleton Stats";
 
 	@Override
@@ -55,7 +60,9 @@ public class SummarizeSkeleton implements PlugInFilter {
 			return DONE;
 		} else if (!Utils.validSkelDependencies() && !Utils.classExists(StatUtils.class.getName())) {
 			return DONE;
-		} else
+		} else if (!getSettings())
+			return DONE;
+		else
 			return DOES_8G | NO_CHANGES;
 
 	}
@@ -63,54 +70,172 @@ public class SummarizeSkeleton implements PlugInFilter {
 	@Override
 	public void run(final ImageProcessor ignored) {
 
-		// Analyze skeleton
-		final AnalyzeSkeleton_ as = new AnalyzeSkeleton_();
-		as.setup("", imp);
-		final SkeletonResult sr = as.run();
+		final ResultsTable rt = Utils.getTable(TABLE_TITLE);
+		try {
+
+			if (inSlabs)
+				summarize(PlaneSource.of(imp), rt);
+			else if (treesOnly)
+				countTrees(imp, rt);
+			else
+				summarize(imp, rt);
+
+		} catch (final IllegalArgumentException exc) {
+
+			Utils.error("Summarize Skeleton", exc.getMessage(), imp);
+			return;
+
+		} catch (final Exception ignored1) {
+
+			Utils.error("Summarize Skeleton", "Some statistics could not be calculated", imp);
+
+		}
+		rt.show(TABLE_TITLE);
+
+	}
+
+	/**
+	 * Analyzes the skeleton of the specified image and appends its summary to
+	 * the specified table. No windows are displayed.
+	 *
+	 * @param imp
+	 *            the 8-bit skeletonized image
+	 * @param rt
+	 *            the table to which the summary row is appended
+	 * @throws IllegalArgumentException
+	 *             if image does not seem to be a branched skeleton
+	 */
+	public static void summarize(final ImagePlus imp, final ResultsTable rt) throws IllegalArgumentException {
+		summarize(imp, rt, true);
+	}
+
+	/* As above. The skeleton cache is bypassed if useCache is false */
+	static void summarize(final ImagePlus imp, final ResultsTable rt, final boolean useCache)
+			throws IllegalArgumentException {
+
+		// Analyze skeleton (or retrieve a previous analysis of it)
+		final SkeletonResult sr = SkeletonCache.analyze(imp, imp.getID(), SkeletonCache.NO_HASH, useCache);
 
 		// Get key skeleton properties
 		final int nTrees = sr.getNumOfTrees();
 		final int[] branches = sr.getBranches();
-		final int nBranches = IntStream.of(branches).sum();
+		final int nBranches = (branches == null) ? 0 : IntStream.of(branches).sum();
 
-		if (branches == null || (nBranches == 0 && nTrees <= 1)) {
-			Utils.error("Summarize Skeleton", "Image does not seem to be a branched skeleton.", imp);
-			return;
-		}
+		if (branches == null || (nBranches == 0 && nTrees <= 1))
+			throw new IllegalArgumentException("Image does not seem to be a branched skeleton.");
 
-		final ResultsTable rt = Utils.getTable(TABLE_TITLE);
-		try {
+		// Integrate values from all trees
+		double sumLength = 0d;
+		final double[] avgLengths = sr.getAverageBranchLength();
+		for (int i = 0; i < nTrees; i++)
+			sumLength += avgLengths[i] * branches[i];
 
-			// Integrate values from all trees
-			double sumLength = 0d;
-			final double[] avgLengths = sr.getAverageBranchLength();
-			for (int i = 0; i < nTrees; i++)
-				sumLength += avgLengths[i] * branches[i];
-
-			// Log stats
-			rt.incrementCounter();
-			rt.addValue("Image", imp.getTitle());
-			rt.addValue("Unit", imp.getCalibration().getUnits());
-			rt.addValue("Total length", sumLength);
-			rt.addValue("Max branch length", StatUtils.max(sr.getMaximumBranchLength()));
-			rt.addValue("Mean branch length", StatUtils.mean(avgLengths));
-			rt.addValue("# Trees", nTrees);
-			rt.addValue("# Branches", nBranches);
-			rt.addValue("# Junctions", IntStream.of(sr.getJunctions()).sum());
-			rt.addValue("# End-points", IntStream.of(sr.getEndPoints()).sum());
-			rt.addValue("# Triple Points", IntStream.of(sr.getTriples()).sum());
-			rt.addValue("# Quadruple Points", IntStream.of(sr.getQuadruples()).sum());
-			rt.addValue("Sum of voxels", IntStream.of(sr.calculateNumberOfVoxels()).sum());
+		// Log stats
+		addRow(rt, imp.getTitle(), imp.getCalibration().getUnits(), sumLength,
+				StatUtils.max(sr.getMaximumBranchLength()), StatUtils.mean(avgLengths), nTrees, nBranches,
+				IntStream.of(sr.getJunctions()).sum(), IntStream.of(sr.getEndPoints()).sum(),
+				IntStream.of(sr.getTriples()).sum(), IntStream.of(sr.getQuadruples()).sum(),
+				IntStream.of(sr.calculateNumberOfVoxels()).sum());
 
-		} catch (final Exception ignored1) {
+	}
 
-			Utils.error("Summarize Skeleton", "Some statistics could not be calculated", imp);
+	/**
+	 * Summarizes a skeleton too large to be analyzed at once. The volume is
+	 * analyzed in slabs, read one plane at a time. No windows are displayed.
+	 * Branch lengths and branch-based counts are approximate (see
+	 * {@link TiledSkeletonSummary}).
+	 *
+	 * @param source
+	 *            the 8-bit skeletonized volume
+	 * @param rt
+	 *            the table to which the summary row is appended
+	 * @throws IllegalArgumentException
+	 *             if volume does not seem to be a branched skeleton
+	 * @see TiledSkeletonSummary
+	 */
+	public static void summarize(final PlaneSource source, final ResultsTable rt) throws IllegalArgumentException {
+		new TiledSkeletonSummary(source).summarize(rt);
+	}
 
-		} finally {
+	/**
+	 * Counts the trees (connected components) of the specified image and
+	 * appends them to the specified table. This is much faster than
+	 * {@link #summarize(ImagePlus, ResultsTable)} since the skeleton graph is
+	 * not built. Only the "# Trees" and "Sum of voxels" columns are populated.
+	 *
+	 * @param imp
+	 *            the 8-bit skeletonized image
+	 * @param rt
+	 *            the table to which the row is appended
+	 * @see ConnectedComponents
+	 */
+	public static void countTrees(final ImagePlus imp, final ResultsTable rt) {
+		final ConnectedComponents components = ConnectedComponents.label(imp.getStack());
+		long nVoxels = 0;
+		for (int label = 1; label <= components.getCount(); label++)
+			nVoxels += components.getSize(label);
+		rt.incrementCounter();
+		rt.addValue("Image", imp.getTitle());
+		rt.addValue("Unit", imp.getCalibration().getUnits());
+		rt.addValue("# Trees", components.getCount());
+		rt.addValue("Sum of voxels", nVoxels);
+	}
 
-			rt.show(TABLE_TITLE);
+	/* Columns of the rows added by addRow(), in order */
+	static final String[] HEADINGS = { "Image", "Unit", "Total length", "Max branch length", "Mean branch length",
+			"# Trees", "# Branches", "# Junctions", "# End-points", "# Triple Points", "# Quadruple Points",
+			"Sum of voxels" };
+
+	static void addRow(final ResultsTable rt, final String title, final String unit, final double totalLength,
+			final double maxLength, final double meanLength, final int nTrees, final int nBranches,
+			final int nJunctions, final int nEndpoints, final int nTriples, final int nQuadruples,
+			final long nVoxels) {
+		rt.incrementCounter();
+		rt.addValue("Image", title);
+		rt.addValue("Unit", unit);
+		rt.addValue("Total length", totalLength);
+		rt.addValue("Max branch length", maxLength);
+		rt.addValue("Mean branch length", meanLength);
+		rt.addValue("# Trees", nTrees);
+		rt.addValue("# Branches", nBranches);
+		rt.addValue("# Junctions", nJunctions);
+		rt.addValue("# End-points", nEndpoints);
+		rt.addValue("# Triple Points", nTriples);
+		rt.addValue("# Quadruple Points", nQuadruples);
+		rt.addValue("Sum of voxels", nVoxels);
+	}
 
-		}
+	/*
+	 * Prompts for slab analysis and tree counting. The prompt is only
+	 * displayed for images that are better analyzed in slabs, when Alt is
+	 * down, or when running from a macro, so that recorded options are always
+	 * honored. Returns false if dismissed
+	 */
+	private boolean getSettings() {
+		final boolean suggested = outOfCore(imp);
+		if (!suggested && !IJ.altKeyDown() && Macro.getOptions() == null)
+			return true;
+		final GenericDialog gd = new GenericDialog("Summarize Skeleton");
+		if (suggested)
+			gd.addMessage("Image is virtual or may not fit in the available memory.");
+		gd.addCheckbox("Analyze in slabs (out-of-core, approximate lengths)", suggested);
+		gd.addCheckbox("Count trees only (fast, in-memory only)", false);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		inSlabs = gd.getNextBoolean();
+		treesOnly = gd.getNextBoolean();
+		return true;
+	}
 
+	/*
+	 * Whether the image is better analyzed in slabs: Virtual stacks are not
+	 * loaded at once and AnalyzeSkeleton_ requires several copies of the image
+	 */
+	private static boolean outOfCore(final ImagePlus imp) {
+		if (imp.getStack().isVirtual())
+			return true;
+		final long nVoxels = (long) imp.getWidth() * imp.getHeight() * imp.getStackSize();
+		return 4 * nVoxels > IJ.maxMemory() - IJ.currentMemory();
 	}
-}
\ No newline at end of file
+}
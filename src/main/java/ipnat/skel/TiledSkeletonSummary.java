@@ -0,0 +1,589 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.Prefs;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ipnat.processing.PlaneSource;
+
+/**
+ * Out-of-core counterpart of {@link SummarizeSkeleton#summarize}. The volume
+ * is split into slabs of planes that are analyzed independently (and in
+ * parallel), each with a two-plane halo so that voxels are classified exactly
+ * as in a whole-volume analysis. Trees, branches and junctions crossing slab
+ * seams are then stitched using union-find. Only the slabs being analyzed and
+ * the (sparse) skeleton labels of seam planes are kept in memory. 2D images
+ * are split into bands of rows.
+ * <p>
+ * Voxels are classified as in {@link sc.fiji.analyzeSkeleton.AnalyzeSkeleton_}
+ * (end-points: less than 2 neighbors; slab voxels: 2 neighbors; junction
+ * voxels: more than 2 neighbors, 26-connectivity). Junction voxels in contact
+ * are merged into a single junction. Branches are chains of slab voxels
+ * between end-points and/or junctions, or pairs of adjacent vertices. Triple
+ * and quadruple points are junctions from which 3 and 4 branches emerge. Loops
+ * without end-points or junctions are assigned a single junction.
+ * </p>
+ * <p>
+ * Results are an approximation of those of a whole-volume analysis: Counts of
+ * trees, junctions, end-points and voxels are the same, but branch lengths are
+ * measured between voxel centers rather than traced through junctions, and the
+ * mean branch length is the mean of the average branch length of each tree
+ * with branches, i.e., single-voxel trees are excluded.
+ * </p>
+ *
+ * @author Tiago Ferreira
+ */
+public class TiledSkeletonSummary {
+
+	private static final byte END = 1;
+	private static final byte SLAB = 2;
+	private static final byte JUNCTION = 3;
+
+	private final PlaneSource source;
+	private final boolean rows; // 2D images: each row is handled as a plane
+	private final int width, height, depth;
+	private final double sx, sy, sz;
+	private byte[] image2D;
+	private int slabDepth = 32;
+	private int nThreads = Prefs.getThreads();
+
+	/**
+	 * Instantiates a new tiled summary.
+	 *
+	 * @param source
+	 *            the 8-bit skeletonized volume
+	 */
+	public TiledSkeletonSummary(final PlaneSource source) {
+		this.source = source;
+		final Calibration cal = source.getCalibration();
+		rows = source.getDepth() == 1;
+		width = source.getWidth();
+		height = (rows) ? 1 : source.getHeight();
+		depth = (rows) ? source.getHeight() : source.getDepth();
+		sx = cal.pixelWidth;
+		sy = cal.pixelHeight;
+		sz = (rows) ? cal.pixelHeight : cal.pixelDepth;
+	}
+
+	/**
+	 * @param slabDepth
+	 *            the number of planes (rows, for 2D images) analyzed by each
+	 *            task
+	 */
+	public void setSlabDepth(final int slabDepth) {
+		this.slabDepth = Math.max(1, slabDepth);
+	}
+
+	/**
+	 * @param nThreads
+	 *            the number of slabs analyzed concurrently
+	 */
+	public void setNumThreads(final int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Analyzes the skeleton and appends its summary to the specified table,
+	 * using the columns of {@link SummarizeSkeleton#summarize}.
+	 *
+	 * @param rt
+	 *            the table to which the summary row is appended
+	 * @throws IllegalArgumentException
+	 *             if the volume does not seem to be a branched skeleton
+	 */
+	public void summarize(final ResultsTable rt) throws IllegalArgumentException {
+
+		if (rows) {
+			image2D = new byte[width * depth];
+			source.readPlane(0, image2D);
+		}
+
+		// Analyze slabs
+		final int nSlabs = (depth + slabDepth - 1) / slabDepth;
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(nThreads, nSlabs));
+		final List<Future<Slab>> futures = new ArrayList<>(nSlabs);
+		for (int s = 0; s < nSlabs; s++) {
+			final int z0 = s * slabDepth;
+			final int z1 = Math.min(depth, z0 + slabDepth);
+			futures.add(executor.submit(() -> analyze(z0, z1)));
+		}
+		executor.shutdown();
+		final Slab[] slabs = new Slab[nSlabs];
+		try {
+			for (int s = 0; s < nSlabs; s++)
+				slabs[s] = futures.get(s).get();
+		} catch (final InterruptedException | ExecutionException exc) {
+			executor.shutdownNow();
+			throw new IllegalStateException("Skeleton could not be analyzed", exc);
+		} finally {
+			image2D = null;
+		}
+
+		// Concatenate slab labels
+		final int[] treeOffset = new int[nSlabs];
+		final int[] featOffset = new int[nSlabs];
+		int nTreeLabels = 0, nFeatLabels = 0;
+		for (int s = 0; s < nSlabs; s++) {
+			treeOffset[s] = nTreeLabels;
+			featOffset[s] = nFeatLabels;
+			nTreeLabels += slabs[s].nTrees;
+			nFeatLabels += slabs[s].nFeats;
+		}
+		final int[] treeParent = identity(nTreeLabels);
+		final int[] featParent = identity(nFeatLabels);
+		final long[] treeVoxels = new long[nTreeLabels];
+		final int[] treeEnds = new int[nTreeLabels];
+		final int[] treeBranches = new int[nTreeLabels];
+		final double[] treeLength = new double[nTreeLabels];
+		final int[] treeJunctions = new int[nTreeLabels];
+		final int[] treeTriples = new int[nTreeLabels];
+		final int[] treeQuadruples = new int[nTreeLabels];
+		final byte[] featType = new byte[nFeatLabels];
+		final double[] featLength = new double[nFeatLabels];
+		final int[] featIncidence = new int[nFeatLabels];
+		final int[] featTree = new int[nFeatLabels];
+		final Contacts contacts = new Contacts();
+		double maxLength = 0d;
+		for (int s = 0; s < nSlabs; s++) {
+			final Slab slab = slabs[s];
+			for (int t = 0; t < slab.nTrees; t++) {
+				treeVoxels[treeOffset[s] + t] = slab.treeVoxels[t];
+				treeEnds[treeOffset[s] + t] = slab.treeEnds[t];
+				treeBranches[treeOffset[s] + t] = slab.treeDirect[t];
+				treeLength[treeOffset[s] + t] = slab.treeDirectLength[t];
+			}
+			for (int f = 0; f < slab.nFeats; f++) {
+				featType[featOffset[s] + f] = slab.featType[f];
+				featLength[featOffset[s] + f] = slab.featLength[f];
+				featIncidence[featOffset[s] + f] = slab.featIncidence[f];
+				featTree[featOffset[s] + f] = treeOffset[s] + slab.featTree[f];
+			}
+			for (int c = 0; c < slab.contacts.size; c++)
+				contacts.add(featOffset[s] + slab.contacts.junction(c), featOffset[s] + slab.contacts.branch(c));
+			maxLength = Math.max(maxLength, slab.maxDirectLength);
+		}
+
+		// Stitch seams: last plane of each slab against first plane of the next
+		for (int s = 0; s < nSlabs - 1; s++) {
+			final Slab a = slabs[s], b = slabs[s + 1];
+			for (int ka = 0; ka < a.lastPos.length; ka++) {
+				final int x = a.lastPos[ka] % width, y = a.lastPos[ka] / width;
+				for (int dy = -1; dy <= 1; dy++) {
+					if (y + dy < 0 || y + dy >= height)
+						continue;
+					for (int dx = -1; dx <= 1; dx++) {
+						if (x + dx < 0 || x + dx >= width)
+							continue;
+						final int kb = Arrays.binarySearch(b.firstPos, (y + dy) * width + x + dx);
+						if (kb < 0)
+							continue;
+						final byte ca = a.lastCls[ka], cb = b.firstCls[kb];
+						final int ta = treeOffset[s] + a.lastTree[ka], tb = treeOffset[s + 1] + b.firstTree[kb];
+						final int fa = (ca == END) ? -1 : featOffset[s] + a.lastFeat[ka];
+						final int fb = (cb == END) ? -1 : featOffset[s + 1] + b.firstFeat[kb];
+						union(treeParent, ta, tb);
+						if (ca == cb && ca != END) {
+							union(featParent, fa, fb);
+						} else if (ca == SLAB || cb == SLAB) {
+							// Slab voxel touching a vertex
+							featIncidence[(ca == SLAB) ? fa : fb]++;
+							if (ca == JUNCTION || cb == JUNCTION)
+								contacts.add((ca == JUNCTION) ? fa : fb, (ca == SLAB) ? fa : fb);
+						} else if (ca == JUNCTION || cb == JUNCTION) {
+							// End-point touching a junction
+							featIncidence[(ca == JUNCTION) ? fa : fb]++;
+						}
+						if ((ca == END || cb == END) && ca != SLAB && cb != SLAB) {
+							// Branch defined by two adjacent vertices
+							final double d = distance(dx, dy, 1);
+							treeBranches[ta]++;
+							treeLength[ta] += d;
+							maxLength = Math.max(maxLength, d);
+						}
+					}
+				}
+			}
+		}
+
+		// Reduce trees and features to their roots
+		for (int t = 0; t < nTreeLabels; t++) {
+			final int r = find(treeParent, t);
+			if (r == t)
+				continue;
+			treeVoxels[r] += treeVoxels[t];
+			treeEnds[r] += treeEnds[t];
+			treeBranches[r] += treeBranches[t];
+			treeLength[r] += treeLength[t];
+		}
+		for (int f = 0; f < nFeatLabels; f++) {
+			final int r = find(featParent, f);
+			if (r == f)
+				continue;
+			featLength[r] += featLength[f];
+			featIncidence[r] += featIncidence[f];
+		}
+
+		// Branches incident to each junction: the end-points touching it (one
+		// per contact) and each of the slab chains touching it
+		contacts.reduce(featParent);
+		for (int c = 0; c < contacts.size; c++)
+			featIncidence[contacts.junction(c)]++;
+		for (int f = 0; f < nFeatLabels; f++) {
+			if (find(featParent, f) != f)
+				continue;
+			final int t = find(treeParent, featTree[f]);
+			if (featType[f] == SLAB) {
+				treeBranches[t]++;
+				treeLength[t] += featLength[f];
+				maxLength = Math.max(maxLength, featLength[f]);
+				if (featIncidence[f] == 0)
+					treeJunctions[t]++; // loop without vertices
+			} else {
+				treeJunctions[t]++;
+				if (featIncidence[f] == 3)
+					treeTriples[t]++;
+				else if (featIncidence[f] == 4)
+					treeQuadruples[t]++;
+			}
+		}
+
+		// Integrate values from all trees
+		int nTrees = 0, nBranches = 0, nJunctions = 0, nEndpoints = 0, nTriples = 0, nQuadruples = 0;
+		long nVoxels = 0;
+		double sumLength = 0d, sumOfAverages = 0d;
+		int nBranchedTrees = 0;
+		for (int t = 0; t < nTreeLabels; t++) {
+			if (find(treeParent, t) != t)
+				continue;
+			nTrees++;
+			nBranches += treeBranches[t];
+			nJunctions += treeJunctions[t];
+			nEndpoints += treeEnds[t];
+			nTriples += treeTriples[t];
+			nQuadruples += treeQuadruples[t];
+			nVoxels += treeVoxels[t];
+			sumLength += treeLength[t];
+			if (treeBranches[t] > 0) {
+				sumOfAverages += treeLength[t] / treeBranches[t];
+				nBranchedTrees++;
+			}
+		}
+		if (nBranches == 0 && nTrees <= 1)
+			throw new IllegalArgumentException("Image does not seem to be a branched skeleton.");
+
+		SummarizeSkeleton.addRow(rt, source.getTitle(), source.getCalibration().getUnits(), sumLength, maxLength,
+				(nBranchedTrees == 0) ? Double.NaN : sumOfAverages / nBranchedTrees, nTrees, nBranches, nJunctions, nEndpoints, nTriples, nQuadruples, nVoxels);
+
+	}
+
+	/* Labels and measurements of a slab of planes [z0, z1) */
+	private static class Slab {
+		int nTrees, nFeats;
+		long[] treeVoxels;
+		int[] treeEnds, treeDirect;
+		double[] treeDirectLength;
+		byte[] featType;
+		double[] featLength;
+		int[] featIncidence, featTree;
+		Contacts contacts;
+		double maxDirectLength;
+
+		// Skeleton voxels of the first and last planes of the slab
+		int[] firstPos, firstTree, firstFeat, lastPos, lastTree, lastFeat;
+		byte[] firstCls, lastCls;
+	}
+
+	private Slab analyze(final int z0, final int z1) {
+
+		// Load planes z0-2 to z1+1: Voxels in planes z0-1 and z1 can only be
+		// classified if their neighbors are known
+		final int pz0 = z0 - 2;
+		final byte[][] pixels = new byte[z1 - z0 + 4][];
+		for (int z = Math.max(0, pz0); z <= Math.min(depth - 1, z1 + 1); z++)
+			pixels[z - pz0] = readPlane(z);
+
+		// Classify skeleton voxels of planes z0-1 to z1
+		final int cz0 = z0 - 1;
+		final int[][] pos = new int[z1 - z0 + 2][];
+		final byte[][] cls = new byte[z1 - z0 + 2][];
+		for (int z = Math.max(0, cz0); z <= Math.min(depth - 1, z1); z++)
+			classify(pixels, z - pz0, pos, cls, z - cz0);
+
+		// Compact indices of core voxels
+		final int[] base = new int[z1 - z0 + 1];
+		for (int z = z0; z < z1; z++)
+			base[z - z0 + 1] = base[z - z0] + pos[z - cz0].length;
+		final int n = base[z1 - z0];
+		final int[] treeParent = identity(n);
+		final int[] featParent = identity(n);
+		final double[] length = new double[n];
+		final int[] incidence = new int[n];
+		final Contacts contacts = new Contacts(); // junction-slab voxel pairs
+		final double[] direct = new double[n]; // length of vertex-vertex branch, if any
+
+		for (int z = z0; z < z1; z++) {
+			final int[] zPos = pos[z - cz0];
+			final byte[] zCls = cls[z - cz0];
+			for (int ka = 0; ka < zPos.length; ka++) {
+				final int a = base[z - z0] + ka;
+				final byte ca = zCls[ka];
+				final int x = zPos[ka] % width, y = zPos[ka] / width;
+				for (int dz = -1; dz <= 1; dz++) {
+					final int zb = z + dz;
+					if (zb < 0 || zb >= depth)
+						continue;
+					for (int dy = -1; dy <= 1; dy++) {
+						if (y + dy < 0 || y + dy >= height)
+							continue;
+						for (int dx = -1; dx <= 1; dx++) {
+							if (x + dx < 0 || x + dx >= width || (dx == 0 && dy == 0 && dz == 0))
+								continue;
+							final int ib = (y + dy) * width + x + dx;
+							final int kb = Arrays.binarySearch(pos[zb - cz0], ib);
+							if (kb < 0)
+								continue;
+							final byte cb = cls[zb - cz0][kb];
+							final double d = distance(dx, dy, dz);
+
+							// Slab voxels contribute half of the distance to
+							// their slab neighbors and all of the distance to
+							// vertices
+							if (ca == SLAB)
+								length[a] += (cb == SLAB) ? d / 2 : d;
+
+							// Each pair of core voxels is linked only once.
+							// Pairs across slab seams are linked when stitching
+							if (zb >= z1 || dz < 0 || (dz == 0 && ib < zPos[ka]))
+								continue;
+							final int b = base[zb - z0] + kb;
+							union(treeParent, a, b);
+							if (ca == cb && ca != END) {
+								union(featParent, a, b);
+							} else if (ca == SLAB || cb == SLAB) {
+								incidence[(ca == SLAB) ? a : b]++;
+								if (ca == JUNCTION || cb == JUNCTION)
+									contacts.add((ca == JUNCTION) ? a : b, (ca == SLAB) ? a : b);
+							} else if (ca == JUNCTION || cb == JUNCTION) {
+								incidence[(ca == JUNCTION) ? a : b]++;
+							}
+							if ((ca == END || cb == END) && ca != SLAB && cb != SLAB)
+								direct[(ca == END) ? a : b] = d;
+						}
+					}
+				}
+			}
+		}
+
+		// Compact labels
+		final Slab slab = new Slab();
+		final int[] treeLabel = new int[n];
+		final int[] featLabel = new int[n];
+		final int[] treeMap = new int[n];
+		final int[] featMap = new int[n];
+		Arrays.fill(treeMap, -1);
+		Arrays.fill(featMap, -1);
+		for (int a = 0; a < n; a++) {
+			final int tr = find(treeParent, a);
+			if (treeMap[tr] < 0)
+				treeMap[tr] = slab.nTrees++;
+			treeLabel[a] = treeMap[tr];
+		}
+		slab.treeVoxels = new long[slab.nTrees];
+		slab.treeEnds = new int[slab.nTrees];
+		slab.treeDirect = new int[slab.nTrees];
+		slab.treeDirectLength = new double[slab.nTrees];
+		for (int z = z0; z < z1; z++) {
+			final byte[] zCls = cls[z - cz0];
+			for (int k = 0; k < zCls.length; k++) {
+				final int a = base[z - z0] + k;
+				if (zCls[k] == END) {
+					featLabel[a] = -1;
+					continue;
+				}
+				final int fr = find(featParent, a);
+				if (featMap[fr] < 0)
+					featMap[fr] = slab.nFeats++;
+				featLabel[a] = featMap[fr];
+			}
+		}
+		slab.featType = new byte[slab.nFeats];
+		slab.featLength = new double[slab.nFeats];
+		slab.featIncidence = new int[slab.nFeats];
+		slab.featTree = new int[slab.nFeats];
+
+		// Aggregate measurements
+		for (int z = z0; z < z1; z++) {
+			final byte[] zCls = cls[z - cz0];
+			for (int k = 0; k < zCls.length; k++) {
+				final int a = base[z - z0] + k;
+				final int t = treeLabel[a];
+				slab.treeVoxels[t]++;
+				if (zCls[k] == END) {
+					slab.treeEnds[t]++;
+					if (direct[a] > 0) {
+						slab.treeDirect[t]++;
+						slab.treeDirectLength[t] += direct[a];
+						slab.maxDirectLength = Math.max(slab.maxDirectLength, direct[a]);
+					}
+					continue;
+				}
+				final int f = featLabel[a];
+				slab.featType[f] = zCls[k];
+				slab.featLength[f] += length[a];
+				slab.featIncidence[f] += incidence[a];
+				slab.featTree[f] = t;
+			}
+		}
+		for (int c = 0; c < contacts.size; c++)
+			contacts.set(c, featLabel[contacts.junction(c)], featLabel[contacts.branch(c)]);
+		slab.contacts = contacts;
+
+		// Keep labels of seam planes
+		final int first = 0, last = z1 - z0 - 1;
+		slab.firstPos = pos[first + 1];
+		slab.firstCls = cls[first + 1];
+		slab.firstTree = Arrays.copyOfRange(treeLabel, base[first], base[first + 1]);
+		slab.firstFeat = Arrays.copyOfRange(featLabel, base[first], base[first + 1]);
+		slab.lastPos = pos[last + 1];
+		slab.lastCls = cls[last + 1];
+		slab.lastTree = Arrays.copyOfRange(treeLabel, base[last], base[last + 1]);
+		slab.lastFeat = Arrays.copyOfRange(featLabel, base[last], base[last + 1]);
+		return slab;
+
+	}
+
+	/* Stores the positions and classes of skeleton voxels of a plane */
+	private void classify(final byte[][] pixels, final int p, final int[][] pos, final byte[][] cls,
+			final int c) {
+		final byte[] plane = pixels[p];
+		int count = 0;
+		for (final byte value : plane)
+			if (value != 0)
+				count++;
+		pos[c] = new int[count];
+		cls[c] = new byte[count];
+		int k = 0;
+		for (int i = 0; i < plane.length; i++) {
+			if (plane[i] == 0)
+				continue;
+			final int x = i % width, y = i / width;
+			int nNeighbors = 0;
+			for (int dz = -1; dz <= 1; dz++) {
+				final byte[] neighbors = pixels[p + dz];
+				if (neighbors == null)
+					continue;
+				for (int dy = -1; dy <= 1; dy++) {
+					if (y + dy < 0 || y + dy >= height)
+						continue;
+					for (int dx = -1; dx <= 1; dx++) {
+						if (x + dx >= 0 && x + dx < width && (dx != 0 || dy != 0 || dz != 0)
+								&& neighbors[(y + dy) * width + x + dx] != 0)
+							nNeighbors++;
+					}
+				}
+			}
+			pos[c][k] = i;
+			cls[c][k++] = (nNeighbors < 2) ? END : (nNeighbors == 2) ? SLAB : JUNCTION;
+		}
+	}
+
+	private byte[] readPlane(final int z) {
+		final byte[] buffer = new byte[width * height];
+		if (rows)
+			System.arraycopy(image2D, z * width, buffer, 0, width);
+		else
+			source.readPlane(z, buffer);
+		return buffer;
+	}
+
+	private double distance(final int dx, final int dy, final int dz) {
+		return Math.sqrt(dx * dx * sx * sx + dy * dy * sy * sy + dz * dz * sz * sz);
+	}
+
+	/* Growable list of junction-branch pairs, packed as longs */
+	private static class Contacts {
+		long[] pairs = new long[16];
+		int size;
+
+		void add(final int junction, final int branch) {
+			if (size == pairs.length)
+				pairs = Arrays.copyOf(pairs, 2 * size);
+			set(size++, junction, branch);
+		}
+
+		void set(final int i, final int junction, final int branch) {
+			pairs[i] = ((long) junction << 32) | branch;
+		}
+
+		int junction(final int i) {
+			return (int) (pairs[i] >>> 32);
+		}
+
+		int branch(final int i) {
+			return (int) pairs[i];
+		}
+
+		/* Replaces labels by their roots and removes duplicate pairs */
+		void reduce(final int[] parent) {
+			for (int i = 0; i < size; i++)
+				set(i, find(parent, junction(i)), find(parent, branch(i)));
+			Arrays.sort(pairs, 0, size);
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				if (n == 0 || pairs[i] != pairs[n - 1])
+					pairs[n++] = pairs[i];
+			}
+			size = n;
+		}
+	}
+
+	private static int[] identity(final int n) {
+		final int[] parent = new int[n];
+		for (int i = 0; i < n; i++)
+			parent[i] = i;
+		return parent;
+	}
+
+	private static int find(final int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(final int[] parent, final int a, final int b) {
+		final int ra = find(parent, a), rb = find(parent, b);
+		if (ra != rb)
+			parent[Math.max(ra, rb)] = Math.min(ra, rb);
+	}
+
+}
@@ -0,0 +1,544 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.process.ByteProcessor;
+
+/**
+ * Generates synthetic 2D/3D branching structures of arbitrary size with known
+ * Strahler orders. Trees are bifurcating arbors laid out side by side along
+ * the X axis, each rooted at the bottom of the canvas and growing upwards.
+ * Geometry is generated iteratively (breadth-first) and stored in primitive
+ * arrays, so that the depth of the trees is not limited by the call stack.
+ * <p>
+ * Images can be rendered in memory ({@link #createImage()}) or written
+ * directly to disk slab-by-slab ({@link #writeSlices(File, int)}), so that
+ * volumes larger than the available RAM can be produced. Ground truth
+ * ({@link #getBranchCounts()}) refers to the trees before the insertion of
+ * loops and noise and assumes that roots are protected by
+ * {@link #getRootRoi()}, as in {@link Strahler}.
+ * </p>
+ *
+ * @author Tiago Ferreira
+ */
+public class TreeGenerator {
+
+	/** Label of voxels that are not part of any tree (loops and noise) */
+	public static final int NON_TREE_LABEL = 255;
+
+	/* Branches shorter than this (in pixels) are not generated */
+	private static final double MIN_LENGTH = 4d;
+
+	/* Distance (in pixels) between trees and the canvas edges */
+	private static final int MARGIN = 10;
+
+	private final int width, height, depth;
+	private int nTrees = 1;
+	private int nLevels = 8;
+	private double angle = 25d;
+	private double lengthRatio = 0.8d;
+	private double branchProbability = 1d;
+	private double jitter = 0d;
+	private int nLoops = 0;
+	private double noise = 0d;
+	private double anisotropy = 1d;
+	private long seed = 0L;
+	private boolean labelOrders = false;
+
+	/* Segments (physical coordinates, in pixels) */
+	private int nSegments;
+	private float[] x1, y1, z1, x2, y2, z2;
+	private int[] levels, child1, child2, orders;
+	private int highestOrder;
+
+	/**
+	 * Instantiates a new generator.
+	 *
+	 * @param width
+	 *            the width of the canvas
+	 * @param height
+	 *            the height of the canvas
+	 * @param depth
+	 *            the number of slices of the canvas. Set it to 1 for 2D trees
+	 * @throws IllegalArgumentException
+	 *             if dimensions are not positive
+	 */
+	public TreeGenerator(final int width, final int height, final int depth) throws IllegalArgumentException {
+		if (width < 1 || height < 1 || depth < 1)
+			throw new IllegalArgumentException("Dimensions must be positive");
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+	}
+
+	/**
+	 * @param nTrees
+	 *            the number of trees, laid out side by side along X
+	 */
+	public void setNumTrees(final int nTrees) {
+		this.nTrees = Math.max(1, nTrees);
+		nSegments = 0;
+	}
+
+	/**
+	 * @param levels
+	 *            the maximum number of bifurcation levels of each tree
+	 */
+	public void setLevels(final int levels) {
+		nLevels = Math.max(1, levels);
+		nSegments = 0;
+	}
+
+	/**
+	 * @param angle
+	 *            the angle (in degrees) between a parent branch and each of its
+	 *            children
+	 * @param lengthRatio
+	 *            the ratio between the length of a child and that of its parent
+	 */
+	public void setBranching(final double angle, final double lengthRatio) {
+		this.angle = angle;
+		this.lengthRatio = Math.max(0.1, Math.min(lengthRatio, 0.95));
+		nSegments = 0;
+	}
+
+	/**
+	 * @param probability
+	 *            the probability of a branch bifurcating (1 for complete
+	 *            binary trees). Trunks always bifurcate.
+	 */
+	public void setBranchProbability(final double probability) {
+		branchProbability = Math.max(0d, Math.min(probability, 1d));
+		nSegments = 0;
+	}
+
+	/**
+	 * @param jitter
+	 *            the amount of random variation ({@code 0-1}) applied to
+	 *            branching angles and lengths
+	 */
+	public void setJitter(final double jitter) {
+		this.jitter = Math.max(0d, Math.min(jitter, 1d));
+		nSegments = 0;
+	}
+
+	/**
+	 * @param nLoops
+	 *            the number of loops to be created by connecting the tips of
+	 *            sibling terminal branches
+	 */
+	public void setNumLoops(final int nLoops) {
+		this.nLoops = Math.max(0, nLoops);
+		nSegments = 0;
+	}
+
+	/**
+	 * @param fraction
+	 *            the fraction of canvas voxels ({@code 0-1}) to be set as
+	 *            random foreground 'debris'
+	 */
+	public void setNoise(final double fraction) {
+		noise = Math.max(0d, Math.min(fraction, 1d));
+	}
+
+	/**
+	 * @param anisotropy
+	 *            the ratio between the voxel depth and the pixel width. Trees
+	 *            are isotropic in physical space and sampled accordingly
+	 */
+	public void setAnisotropy(final double anisotropy) {
+		this.anisotropy = Math.max(1e-3, anisotropy);
+		nSegments = 0;
+	}
+
+	/**
+	 * @param seed
+	 *            the seed of the random number generator. Identical settings
+	 *            and seeds generate identical images
+	 */
+	public void setSeed(final long seed) {
+		this.seed = seed;
+		nSegments = 0;
+	}
+
+	/**
+	 * @param labelOrders
+	 *            If {@code true} tree voxels are labeled with the Strahler order
+	 *            of their branch rather than 255
+	 */
+	public void setLabelOrders(final boolean labelOrders) {
+		this.labelOrders = labelOrders;
+	}
+
+	/* Generates the geometry of all trees, breadth-first */
+	private void generate() {
+
+		if (nSegments > 0)
+			return;
+		final Random random = new Random(seed);
+		final boolean is3D = depth > 1;
+		final double cellWidth = (width - 2d * MARGIN) / nTrees;
+
+		// Largest reach of a tree in any direction, so that nothing is clipped
+		double maxReach = Math.min(cellWidth / 2, height - 2d * MARGIN);
+		if (is3D)
+			maxReach = Math.min(maxReach, depth * anisotropy / 2 - MARGIN);
+		if (maxReach < MIN_LENGTH)
+			throw new IllegalArgumentException("Canvas is too small for " + nTrees + " tree(s)");
+		final double maxLengthFactor = 1 + jitter / 2;
+		final double trunkLength = maxReach * (1 - lengthRatio)
+				/ ((1 - Math.pow(lengthRatio, nLevels)) * maxLengthFactor);
+
+		allocate(nTrees * 64);
+		for (int t = 0; t < nTrees; t++) {
+			final float x = (float) (MARGIN + (t + 0.5) * cellWidth);
+			final float y = height - MARGIN;
+			final float z = (float) ((is3D) ? depth * anisotropy / 2 : 0);
+			addSegment(-1, x, y, z, x, (float) (y - trunkLength), z);
+		}
+
+		// Segments are appended in breadth-first order: Iterate until no
+		// new children are created
+		final double theta = Math.toRadians(angle);
+		final double golden = Math.PI * (3 - Math.sqrt(5));
+		for (int i = 0; i < nSegments; i++) {
+			final int level = levels[i];
+			if (level >= nLevels - 1 || (level > 0 && random.nextDouble() >= branchProbability))
+				continue;
+			double dx = x2[i] - x1[i], dy = y2[i] - y1[i], dz = z2[i] - z1[i];
+			final double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+			final double childLength = length * lengthRatio;
+			if (childLength < MIN_LENGTH)
+				continue;
+			dx /= length;
+			dy /= length;
+			dz /= length;
+
+			// Basis perpendicular to the parent: u lies on the XY plane
+			double ux = dy, uy = -dx, uz = 0;
+			double norm = Math.sqrt(ux * ux + uy * uy);
+			if (norm < 1e-6) {
+				ux = 1;
+				uy = 0;
+				norm = 1;
+			}
+			ux /= norm;
+			uy /= norm;
+			final double vx = dy * uz - dz * uy, vy = dz * ux - dx * uz, vz = dx * uy - dy * ux;
+			final double azimuth = (is3D) ? level * golden + jitter * (random.nextDouble() - 0.5) * Math.PI : 0;
+
+			for (int c = 0; c < 2; c++) {
+				final double phi = azimuth + c * Math.PI;
+				final double ax = Math.cos(phi) * ux + Math.sin(phi) * vx;
+				final double ay = Math.cos(phi) * uy + Math.sin(phi) * vy;
+				final double az = Math.cos(phi) * uz + Math.sin(phi) * vz;
+				final double t = theta * (1 + jitter * (random.nextDouble() - 0.5));
+				final double l = childLength * (1 + jitter * (random.nextDouble() - 0.5));
+				final double cx = dx * Math.cos(t) + ax * Math.sin(t);
+				final double cy = dy * Math.cos(t) + ay * Math.sin(t);
+				final double cz = dz * Math.cos(t) + az * Math.sin(t);
+				addSegment(i, x2[i], y2[i], z2[i], (float) (x2[i] + cx * l), (float) (y2[i] + cy * l),
+						(float) (z2[i] + cz * l));
+			}
+		}
+		final int nTreeSegments = nSegments;
+
+		// Ground truth: children are always appended after their parents
+		highestOrder = 0;
+		for (int i = nTreeSegments - 1; i >= 0; i--) {
+			if (child1[i] < 0) {
+				orders[i] = 1;
+			} else {
+				final int o1 = orders[child1[i]], o2 = orders[child2[i]];
+				orders[i] = (o1 == o2) ? o1 + 1 : Math.max(o1, o2);
+			}
+			highestOrder = Math.max(highestOrder, orders[i]);
+		}
+
+		// Loops: connect the tips of sibling terminal branches
+		for (int l = 0; l < nLoops; l++) {
+			final int i = random.nextInt(nTreeSegments);
+			if (child1[i] < 0 || child1[child1[i]] >= 0 || child1[child2[i]] >= 0)
+				continue; // not the parent of two terminal branches
+			final int a = child1[i], b = child2[i];
+			addSegment(-1, x2[a], y2[a], z2[a], x2[b], y2[b], z2[b]);
+			orders[nSegments - 1] = 0;
+		}
+
+	}
+
+	private void allocate(final int capacity) {
+		nSegments = 0;
+		x1 = new float[capacity];
+		y1 = new float[capacity];
+		z1 = new float[capacity];
+		x2 = new float[capacity];
+		y2 = new float[capacity];
+		z2 = new float[capacity];
+		levels = new int[capacity];
+		child1 = new int[capacity];
+		child2 = new int[capacity];
+		orders = new int[capacity];
+	}
+
+	private void addSegment(final int parent, final float xa, final float ya, final float za, final float xb,
+			final float yb, final float zb) {
+		if (nSegments == x1.length) {
+			final int capacity = x1.length * 2;
+			x1 = Arrays.copyOf(x1, capacity);
+			y1 = Arrays.copyOf(y1, capacity);
+			z1 = Arrays.copyOf(z1, capacity);
+			x2 = Arrays.copyOf(x2, capacity);
+			y2 = Arrays.copyOf(y2, capacity);
+			z2 = Arrays.copyOf(z2, capacity);
+			levels = Arrays.copyOf(levels, capacity);
+			child1 = Arrays.copyOf(child1, capacity);
+			child2 = Arrays.copyOf(child2, capacity);
+			orders = Arrays.copyOf(orders, capacity);
+		}
+		final int i = nSegments++;
+		x1[i] = xa;
+		y1[i] = ya;
+		z1[i] = za;
+		x2[i] = xb;
+		y2[i] = yb;
+		z2[i] = zb;
+		levels[i] = (parent < 0) ? 0 : levels[parent] + 1;
+		child1[i] = child2[i] = -1;
+		if (parent >= 0) {
+			if (child1[parent] < 0)
+				child1[parent] = i;
+			else
+				child2[parent] = i;
+		}
+	}
+
+	/**
+	 * Renders the trees in memory.
+	 *
+	 * @return the 8-bit image
+	 * @throws IllegalArgumentException
+	 *             if the canvas is too small for the requested trees
+	 */
+	public ImagePlus createImage() throws IllegalArgumentException {
+		generate();
+		final ImageStack stack = new ImageStack(width, height);
+		final int[][] slabSegments = assignToSlabs(depth);
+		final byte[][] slab = new byte[depth][];
+		for (int z = 0; z < depth; z++)
+			slab[z] = new byte[width * height];
+		renderSlab(slab, 0, slabSegments[0]);
+		for (int z = 0; z < depth; z++)
+			stack.addSlice("", new ByteProcessor(width, height, slab[z]));
+		final ImagePlus imp = new ImagePlus(getTitle(), stack);
+		imp.setCalibration(getCalibration());
+		return imp;
+	}
+
+	/**
+	 * Renders the trees directly to disk as a sequence of 8-bit TIFF images,
+	 * one per slice. Only one slab of slices is kept in memory at any time.
+	 *
+	 * @param dir
+	 *            the output directory. It is created if it does not exist
+	 * @param slabSize
+	 *            the number of slices rendered at once
+	 * @return the number of slices written
+	 * @throws IOException
+	 *             if the directory could not be created or a slice could not
+	 *             be saved
+	 */
+	public int writeSlices(final File dir, final int slabSize) throws IOException {
+		generate();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir.getAbsolutePath());
+		final int nSlabs = (depth + slabSize - 1) / slabSize;
+		final int[][] slabSegments = assignToSlabs(slabSize);
+		final Calibration cal = getCalibration();
+		final String title = getTitle();
+		for (int s = 0; s < nSlabs; s++) {
+			final int zStart = s * slabSize;
+			final byte[][] slab = new byte[Math.min(slabSize, depth - zStart)][];
+			for (int z = 0; z < slab.length; z++)
+				slab[z] = new byte[width * height];
+			renderSlab(slab, zStart, slabSegments[s]);
+			for (int z = 0; z < slab.length; z++) {
+				final ImagePlus imp = new ImagePlus(title, new ByteProcessor(width, height, slab[z]));
+				imp.setCalibration(cal);
+				final File file = new File(dir, title + "_" + IJ.pad(zStart + z + 1, 5) + ".tif");
+				if (!new FileSaver(imp).saveAsTiff(file.getAbsolutePath()))
+					throw new IOException("Could not save " + file.getAbsolutePath());
+			}
+			IJ.showProgress(s + 1, nSlabs);
+		}
+		return depth;
+	}
+
+	/* Indices of the segments intersecting each slab */
+	private int[][] assignToSlabs(final int slabSize) {
+		final int nSlabs = (depth + slabSize - 1) / slabSize;
+		final int[] counts = new int[nSlabs];
+		for (int i = 0; i < nSegments; i++) {
+			for (int s = firstSlab(i, slabSize); s <= lastSlab(i, slabSize, nSlabs); s++)
+				counts[s]++;
+		}
+		final int[][] slabSegments = new int[nSlabs][];
+		for (int s = 0; s < nSlabs; s++)
+			slabSegments[s] = new int[counts[s]];
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < nSegments; i++) {
+			for (int s = firstSlab(i, slabSize); s <= lastSlab(i, slabSize, nSlabs); s++)
+				slabSegments[s][counts[s]++] = i;
+		}
+		return slabSegments;
+	}
+
+	private int firstSlab(final int i, final int slabSize) {
+		return Math.max(0, voxelZ(Math.min(z1[i], z2[i])) / slabSize);
+	}
+
+	private int lastSlab(final int i, final int slabSize, final int nSlabs) {
+		return Math.min(nSlabs - 1, voxelZ(Math.max(z1[i], z2[i])) / slabSize);
+	}
+
+	private int voxelZ(final double z) {
+		return (int) Math.round(z / anisotropy);
+	}
+
+	/* Rasterizes segments and noise into a slab starting at slice zStart */
+	private void renderSlab(final byte[][] slab, final int zStart, final int[] segments) {
+		final int zEnd = zStart + slab.length;
+		for (final int i : segments) {
+			final int value = (orders[i] == 0) ? NON_TREE_LABEL : (labelOrders) ? orders[i] : 255;
+			final double vz1 = z1[i] / anisotropy, vz2 = z2[i] / anisotropy;
+			final double dx = x2[i] - x1[i], dy = y2[i] - y1[i], dz = vz2 - vz1;
+			final int n = (int) Math.ceil(Math.max(Math.abs(dx), Math.max(Math.abs(dy), Math.abs(dz))));
+			for (int step = 0; step <= n; step++) {
+				final double f = (n == 0) ? 0 : (double) step / n;
+				final int x = (int) Math.round(x1[i] + f * dx);
+				final int y = (int) Math.round(y1[i] + f * dy);
+				final int z = (int) Math.round(vz1 + f * dz);
+				if (z < zStart || z >= zEnd || x < 0 || x >= width || y < 0 || y >= height)
+					continue;
+				final byte[] pixels = slab[z - zStart];
+				final int idx = y * width + x;
+				if ((pixels[idx] & 0xff) < value)
+					pixels[idx] = (byte) value;
+			}
+		}
+		if (noise <= 0)
+			return;
+		final int nNoisy = (int) Math.round(noise * width * height);
+		for (int z = zStart; z < zEnd; z++) {
+			// Seeded per slice so that output does not depend on slab size
+			final Random random = new Random(seed + 0x9E3779B97F4A7C15L * (z + 1));
+			final byte[] pixels = slab[z - zStart];
+			for (int k = 0; k < nNoisy; k++)
+				pixels[random.nextInt(pixels.length)] = (byte) NON_TREE_LABEL;
+		}
+	}
+
+	private String getTitle() {
+		return "SyntheticTrees_" + width + "x" + height + "x" + depth;
+	}
+
+	private Calibration getCalibration() {
+		final Calibration cal = new Calibration();
+		cal.pixelDepth = anisotropy;
+		return cal;
+	}
+
+	/**
+	 * Returns a rectangular ROI containing the base of all trunks, to be used
+	 * as 'root-protecting' ROI by {@link StrahlerAnalyzer#setRootRoi(Roi)}.
+	 *
+	 * @return the root ROI
+	 */
+	public Roi getRootRoi() {
+		return new Roi(0, height - MARGIN - 2, width, MARGIN + 2);
+	}
+
+	/**
+	 * @return the highest Strahler order among all trees
+	 */
+	public int getHighestOrder() {
+		generate();
+		return highestOrder;
+	}
+
+	/**
+	 * Returns the ground truth: the number of branches of each Strahler order,
+	 * i.e., the values expected in the '# Branches' column of
+	 * {@link StrahlerResult#addRows(ResultsTable)}.
+	 *
+	 * @return the number of branches of each order (index 0 for 1st order)
+	 */
+	public int[] getBranchCounts() {
+		generate();
+		final int[] counts = new int[highestOrder];
+		for (int i = 0; i < nSegments; i++) {
+			if (orders[i] > 0)
+				counts[orders[i] - 1]++;
+		}
+		return counts;
+	}
+
+	/**
+	 * Appends the ground truth to the specified table, one row per Strahler
+	 * order.
+	 *
+	 * @param rt
+	 *            the table to be populated
+	 */
+	public void addRows(final ResultsTable rt) {
+		generate();
+		final int[] counts = getBranchCounts();
+		final double[] lengths = new double[highestOrder];
+		for (int i = 0; i < nSegments; i++) {
+			if (orders[i] == 0)
+				continue;
+			final double dx = x2[i] - x1[i], dy = y2[i] - y1[i], dz = z2[i] - z1[i];
+			lengths[orders[i] - 1] += Math.sqrt(dx * dx + dy * dy + dz * dz);
+		}
+		for (int i = 0; i < highestOrder; i++) {
+			rt.incrementCounter();
+			rt.addValue("Image", getTitle());
+			rt.addValue("Strahler Order", i + 1);
+			rt.addValue("# Branches", counts[i]);
+			rt.addValue("Average branch length", (counts[i] > 0) ? lengths[i] / counts[i] : Double.NaN);
+			rt.addValue("Unit", "pixel");
+		}
+	}
+
+}
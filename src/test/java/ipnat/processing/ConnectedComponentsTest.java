@@ -0,0 +1,145 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.processing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+
+/**
+ * Compares {@link ConnectedComponents} against a breadth-first flood fill.
+ *
+ * @author Tiago Ferreira
+ */
+public class ConnectedComponentsTest {
+
+	/* Sparse random foreground, so that components are many and irregular */
+	static ImageStack random(final int width, final int height, final int depth, final double density,
+			final long seed) {
+		final Random random = new Random(seed);
+		final ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+			final byte[] pixels = new byte[width * height];
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = (byte) ((random.nextDouble() < density) ? 255 : 0);
+			stack.addSlice("", pixels);
+		}
+		return stack;
+	}
+
+	/* Labels components by BFS, in raster order of their first voxel */
+	private static int[][] bfs(final ImageStack stack) {
+		final int w = stack.getWidth(), h = stack.getHeight(), d = stack.getSize();
+		final int[][] labels = new int[d][w * h];
+		final ArrayDeque<int[]> queue = new ArrayDeque<>();
+		int count = 0;
+		for (int z = 0; z < d; z++) {
+			final byte[] pixels = (byte[]) stack.getPixels(z + 1);
+			for (int i = 0; i < pixels.length; i++) {
+				if (pixels[i] == 0 || labels[z][i] != 0)
+					continue;
+				labels[z][i] = ++count;
+				queue.add(new int[] { i % w, i / w, z });
+				while (!queue.isEmpty()) {
+					final int[] p = queue.poll();
+					for (int dz = -1; dz <= 1; dz++) {
+						for (int dy = -1; dy <= 1; dy++) {
+							for (int dx = -1; dx <= 1; dx++) {
+								final int x = p[0] + dx, y = p[1] + dy, zz = p[2] + dz;
+								if (x < 0 || y < 0 || zz < 0 || x >= w || y >= h || zz >= d)
+									continue;
+								final int j = y * w + x;
+								if (((byte[]) stack.getPixels(zz + 1))[j] != 0 && labels[zz][j] == 0) {
+									labels[zz][j] = count;
+									queue.add(new int[] { x, y, zz });
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		return labels;
+	}
+
+	private static void assertMatchesBfs(final ImageStack stack) {
+		final int[][] expected = bfs(stack);
+		for (final int nThreads : new int[] { 1, 3, 8 }) {
+			final ConnectedComponents components = ConnectedComponents.label(stack, nThreads);
+			int max = 0;
+			for (int z = 0; z < stack.getSize(); z++) {
+				assertArrayEquals(expected[z], components.getLabels(z));
+				for (final int label : expected[z])
+					max = Math.max(max, label);
+			}
+			assertEquals(max, components.getCount());
+		}
+	}
+
+	@Test
+	public void test2D() {
+		assertMatchesBfs(random(97, 83, 1, 0.3, 1L));
+		assertMatchesBfs(random(64, 200, 1, 0.45, 2L));
+	}
+
+	@Test
+	public void test3D() {
+		assertMatchesBfs(random(41, 37, 29, 0.08, 3L));
+		assertMatchesBfs(random(30, 20, 64, 0.15, 4L));
+	}
+
+	@Test
+	public void testBoundsAndSizes() {
+		final ImageStack stack = random(50, 40, 12, 0.1, 5L);
+		final ConnectedComponents components = ConnectedComponents.label(stack, 4);
+		final int n = components.getCount();
+		final long[] sizes = new long[n];
+		final int[][] bounds = new int[n][];
+		for (int z = 0; z < stack.getSize(); z++) {
+			final int[] labels = components.getLabels(z);
+			for (int i = 0; i < labels.length; i++) {
+				if (labels[i] == 0)
+					continue;
+				final int l = labels[i] - 1, x = i % 50, y = i / 50;
+				sizes[l]++;
+				if (bounds[l] == null)
+					bounds[l] = new int[] { x, y, z, x + 1, y + 1, z + 1 };
+				bounds[l][0] = Math.min(bounds[l][0], x);
+				bounds[l][1] = Math.min(bounds[l][1], y);
+				bounds[l][3] = Math.max(bounds[l][3], x + 1);
+				bounds[l][4] = Math.max(bounds[l][4], y + 1);
+				bounds[l][5] = z + 1;
+			}
+		}
+		for (int label = 1; label <= n; label++) {
+			assertEquals(sizes[label - 1], components.getSize(label));
+			assertArrayEquals(bounds[label - 1], components.getBounds(label));
+		}
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.processing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+
+/**
+ * Tests for {@link Thinning}.
+ *
+ * @author Tiago Ferreira
+ */
+public class ThinningTest {
+
+	private static byte[][] pixels(final ImageStack stack) {
+		final byte[][] pixels = new byte[stack.getSize()][];
+		for (int z = 0; z < pixels.length; z++)
+			pixels[z] = ((byte[]) stack.getPixels(z + 1)).clone();
+		return pixels;
+	}
+
+	private static ImageStack stack(final byte[][] pixels, final int width, final int height) {
+		final ImageStack stack = new ImageStack(width, height);
+		for (final byte[] slice : pixels)
+			stack.addSlice("", slice.clone());
+		return stack;
+	}
+
+	private static void assertThreadIndependent(final ImageStack input) {
+		final int w = input.getWidth(), h = input.getHeight();
+		final byte[][] original = pixels(input);
+		final ImageStack reference = stack(original, w, h);
+		Thinning.skeletonize(reference, 1);
+		final byte[][] expected = pixels(reference);
+		for (final int nThreads : new int[] { 3, 8 }) {
+			final ImageStack thinned = stack(original, w, h);
+			Thinning.skeletonize(thinned, nThreads);
+			for (int z = 0; z < expected.length; z++)
+				assertArrayEquals(expected[z], (byte[]) thinned.getPixels(z + 1));
+		}
+
+		// Skeletons are subsets of the input, and are not thinned any further
+		for (int z = 0; z < expected.length; z++) {
+			for (int i = 0; i < expected[z].length; i++)
+				assertTrue(expected[z][i] == 0 || original[z][i] != 0);
+		}
+		Thinning.skeletonize(reference, 8);
+		for (int z = 0; z < expected.length; z++)
+			assertArrayEquals(expected[z], (byte[]) reference.getPixels(z + 1));
+	}
+
+	@Test
+	public void test2D() {
+		assertThreadIndependent(ConnectedComponentsTest.random(120, 90, 1, 0.6, 1L));
+		assertThreadIndependent(ConnectedComponentsTest.random(33, 250, 1, 0.75, 2L));
+	}
+
+	@Test
+	public void test3D() {
+		assertThreadIndependent(ConnectedComponentsTest.random(40, 30, 23, 0.55, 3L));
+		assertThreadIndependent(ConnectedComponentsTest.random(25, 70, 9, 0.7, 4L));
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+/**
+ * Tests the resuming of interrupted runs of {@link BatchSkeletonAnalysis}.
+ *
+ * @author Tiago Ferreira
+ */
+public class BatchSkeletonAnalysisTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = folder.newFolder("images");
+		for (int i = 0; i < 3; i++) {
+			final ImagePlus imp = SyntheticSkeletons.trees(1, 1, 0, 0d, i);
+			assertTrue(new FileSaver(imp).saveAsTiff(new File(dir, "tree" + i + ".tif").getAbsolutePath()));
+		}
+	}
+
+	private static BatchSkeletonAnalysis batch(final String analysis) {
+		final BatchSkeletonAnalysis batch = new BatchSkeletonAnalysis();
+		batch.setOptions(analysis, ".tif", false, 2);
+		return batch;
+	}
+
+	private static List<String> lines(final File file) throws IOException {
+		return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testResumeSummaries() throws IOException {
+		final File output = new File(folder.getRoot(), "summaries.csv");
+		assertEquals(3, batch("Summarize Skeleton").process(dir, output));
+		final List<String> complete = lines(output);
+		assertEquals(4, complete.size());
+
+		// Interrupt the run while the last row was being written
+		final String content = String.join("\n", complete);
+		Files.write(output.toPath(), content.substring(0, content.length() - 5).getBytes(StandardCharsets.UTF_8));
+		assertEquals(1, batch("Summarize Skeleton").process(dir, output));
+		assertEquals(4, lines(output).size());
+		assertEquals(0, batch("Summarize Skeleton").process(dir, output));
+		assertEquals(4, lines(output).size());
+	}
+
+	@Test
+	public void testResumeStrahler() throws IOException {
+		final File output = new File(folder.getRoot(), "strahler.tsv");
+		assertEquals(3, batch("Strahler Analysis").process(dir, output));
+		final int nLines = lines(output).size();
+
+		// The last image is always analyzed again, replacing its rows
+		assertEquals(1, batch("Strahler Analysis").process(dir, output));
+		assertEquals(nLines, lines(output).size());
+	}
+
+}
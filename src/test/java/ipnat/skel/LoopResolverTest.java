@@ -0,0 +1,93 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import sc.fiji.analyzeSkeleton.AnalyzeSkeleton_;
+import sc.fiji.analyzeSkeleton.Graph;
+import sc.fiji.analyzeSkeleton.Point;
+
+/**
+ * Tests for {@link LoopResolver}.
+ *
+ * @author Tiago Ferreira
+ */
+public class LoopResolverTest {
+
+	/* The number of independent loops of the specified graphs */
+	private static int cycleRank(final Graph[] graphs) {
+		int rank = 0;
+		for (final Graph graph : graphs) {
+			if (graph != null && !graph.getVertices().isEmpty())
+				rank += graph.getEdges().size() - graph.getVertices().size() + 1;
+		}
+		return rank;
+	}
+
+	private static Graph[] graphs(final ImagePlus imp) {
+		return SkeletonCache.analyze(imp, imp.getID(), SkeletonCache.NO_HASH, false).getGraph();
+	}
+
+	private static void assertResolved(final ImagePlus imp) {
+		final Graph[] graphs = graphs(imp);
+		final int rank = cycleRank(graphs);
+		assertTrue("Skeleton has no loops", rank > 0);
+		final List<LoopResolver.Cut> cuts = new LoopResolver(AnalyzeSkeleton_.SHORTEST_BRANCH, null).resolve(graphs);
+		assertEquals(rank, cuts.size());
+
+		// Removing the cut voxels from the image leaves no loops behind, except
+		// those closed by branches without slab voxels
+		int nUncut = 0;
+		for (final LoopResolver.Cut cut : cuts) {
+			final Point p = cut.getCutPoint();
+			if (p == null)
+				nUncut++;
+			else
+				imp.getStack().getProcessor(p.z + 1).set(p.x, p.y, 0);
+		}
+		assertTrue(cycleRank(graphs(imp)) <= nUncut);
+	}
+
+	@Test
+	public void testResolve2D() {
+		assertResolved(SyntheticSkeletons.trees(1, 2, 4, 0d, 9L));
+	}
+
+	@Test
+	public void testResolve3D() {
+		assertResolved(SyntheticSkeletons.trees(20, 2, 3, 0d, 10L));
+	}
+
+	@Test
+	public void testNoPruning() {
+		final ImagePlus imp = SyntheticSkeletons.trees(1, 1, 2, 0d, 9L);
+		assertTrue(new LoopResolver(AnalyzeSkeleton_.NONE, null).resolve(graphs(imp)).isEmpty());
+	}
+
+}
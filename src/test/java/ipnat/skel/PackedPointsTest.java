@@ -0,0 +1,95 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import sc.fiji.analyzeSkeleton.Point;
+
+/**
+ * Tests for {@link PackedPoints}.
+ *
+ * @author Tiago Ferreira
+ */
+public class PackedPointsTest {
+
+	@Test
+	public void testRoundTrip() {
+		final Random random = new Random(1L);
+		final List<Point> list = new ArrayList<>();
+		for (int i = 0; i < 1000; i++)
+			list.add(new Point(random.nextInt(PackedPoints.MAX_COORDINATE + 1),
+					random.nextInt(PackedPoints.MAX_COORDINATE + 1), random.nextInt(PackedPoints.MAX_COORDINATE + 1)));
+		final PackedPoints packed = PackedPoints.of(list);
+		assertEquals(list.size(), packed.size());
+		for (int i = 0; i < list.size(); i++) {
+			assertEquals(list.get(i).x, packed.getX(i));
+			assertEquals(list.get(i).y, packed.getY(i));
+			assertEquals(list.get(i).z, packed.getZ(i));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOutOfRange() {
+		new PackedPoints().add(PackedPoints.MAX_COORDINATE + 1, 0, 0);
+	}
+
+	@Test
+	public void testSkeletonFeatures() {
+		final ImagePlus imp = SyntheticSkeletons.trees(12, 2, 1, 0d, 13L);
+		final List<Point> endpoints = SkeletonCache.analyze(imp, imp.getID()).getListOfEndPoints();
+		final PackedPoints packed = PackedPoints.of(endpoints);
+
+		// Points are kept in order by retainAll()
+		final int removed = packed.retainAll((x, y, z) -> z % 2 == 0);
+		final List<Point> even = new ArrayList<>();
+		for (final Point p : endpoints)
+			if (p.z % 2 == 0)
+				even.add(p);
+		assertEquals(endpoints.size() - even.size(), removed);
+		assertEquals(even.size(), packed.size());
+		for (int i = 0; i < even.size(); i++) {
+			assertEquals(even.get(i).x, packed.getX(i));
+			assertEquals(even.get(i).y, packed.getY(i));
+			assertEquals(even.get(i).z, packed.getZ(i));
+		}
+
+		// Painting and clearing touch exactly the packed voxels
+		final ImageStack stack = imp.duplicate().getStack();
+		packed.clear(stack);
+		final ByteProcessor painted = packed.paint(imp.getWidth(), imp.getHeight(), 255);
+		for (final Point p : even) {
+			assertEquals(0, stack.getProcessor(p.z + 1).get(p.x, p.y));
+			assertEquals(255, painted.get(p.x, p.y));
+		}
+	}
+
+}
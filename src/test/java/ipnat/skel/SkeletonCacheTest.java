@@ -0,0 +1,74 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import sc.fiji.analyzeSkeleton.SkeletonResult;
+
+/**
+ * Tests for {@link SkeletonCache}.
+ *
+ * @author Tiago Ferreira
+ */
+public class SkeletonCacheTest {
+
+	@Before
+	public void setUp() {
+		SkeletonCache.clear();
+	}
+
+	@After
+	public void tearDown() {
+		SkeletonCache.clear();
+	}
+
+	@Test
+	public void testSummarizeThenStrahlerIsAHit() {
+		final ImagePlus imp = SyntheticSkeletons.trees(1, 2, 0, 0d, 3L);
+		SummarizeSkeleton.summarize(imp, new ResultsTable());
+		final long hits = SkeletonCache.getHits();
+		final long misses = SkeletonCache.getMisses();
+		new StrahlerAnalyzer(imp).analyze();
+		// Thinning is a miss (first skeletonization); the analysis is a hit
+		assertEquals(hits + 1, SkeletonCache.getHits());
+		assertEquals(misses + 1, SkeletonCache.getMisses());
+	}
+
+	@Test
+	public void testSkeletonHashMatchesContentHash() {
+		final ImagePlus imp = SyntheticSkeletons.lSystemsTree();
+		final ImagePlus copy = imp.duplicate();
+		final long hash = SkeletonCache.skeletonize(copy, imp.getID(), false, false, 1);
+		assertEquals(SkeletonCache.hash(imp.getStack()), hash);
+		final SkeletonResult sr = SkeletonCache.analyze(copy, imp.getID(), hash);
+		assertSame(sr, SkeletonCache.analyze(imp, imp.getID()));
+	}
+
+}
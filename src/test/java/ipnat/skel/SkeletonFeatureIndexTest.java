@@ -0,0 +1,86 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import sc.fiji.analyzeSkeleton.Point;
+
+/**
+ * Compares {@link SkeletonFeatureIndex} queries against exhaustive searches.
+ *
+ * @author Tiago Ferreira
+ */
+public class SkeletonFeatureIndexTest {
+
+	private static double bruteForce(final List<Point> points, final Calibration cal, final double maxDistance,
+			final double x, final double y, final double z) {
+		double best = Double.POSITIVE_INFINITY;
+		for (final Point p : points) {
+			final double dx = (p.x - x) * cal.pixelWidth, dy = (p.y - y) * cal.pixelHeight,
+					dz = (p.z - z) * cal.pixelDepth;
+			final double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
+			if (d <= maxDistance && d < best)
+				best = d;
+		}
+		return best;
+	}
+
+	private static void assertNearest(final List<Point> points, final Calibration cal, final double maxDistance,
+			final int width, final int height, final int depth) {
+		final SkeletonFeatureIndex index = new SkeletonFeatureIndex(points, cal, maxDistance);
+		final Random random = new Random(42L);
+		for (int i = 0; i < 2000; i++) {
+			final double x = random.nextDouble() * width, y = random.nextDouble() * height,
+					z = random.nextDouble() * depth;
+			assertEquals(bruteForce(points, cal, maxDistance, x, y, z), index.nearestDistance(x, y, z), 1e-9);
+		}
+	}
+
+	@Test
+	public void testRandomPoints() {
+		final Random random = new Random(1L);
+		final List<Point> points = new ArrayList<>();
+		for (int i = 0; i < 500; i++)
+			points.add(new Point(random.nextInt(200), random.nextInt(150), random.nextInt(20)));
+		final Calibration cal = new Calibration();
+		cal.pixelDepth = 2.5;
+		assertNearest(points, cal, 8d, 200, 150, 20);
+		assertNearest(points, cal, 100d, 200, 150, 20);
+	}
+
+	@Test
+	public void testSkeletonFeatures() {
+		final ImagePlus imp = SyntheticSkeletons.trees(20, 2, 2, 0d, 8L);
+		final List<Point> endpoints = SkeletonCache.analyze(imp, imp.getID()).getListOfEndPoints();
+		assertNearest(endpoints, imp.getCalibration(), 12d, imp.getWidth(), imp.getHeight(), imp.getStackSize());
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+/**
+ * Compares the graph-based and the iterative (image-based) engines of
+ * {@link StrahlerAnalyzer} on synthetic trees.
+ *
+ * @author Tiago Ferreira
+ */
+public class StrahlerAnalyzerTest {
+
+	private static StrahlerResult analyze(final ImagePlus imp, final Roi rootRoi, final boolean graphBased) {
+		final StrahlerAnalyzer analyzer = new StrahlerAnalyzer(imp);
+		analyzer.setRootRoi(rootRoi);
+		analyzer.setGraphBased(graphBased);
+		analyzer.setCaching(false);
+		return analyzer.analyze();
+	}
+
+	private static void assertSameOrders(final ImagePlus imp, final Roi rootRoi) {
+		final StrahlerResult graph = analyze(imp, rootRoi, true);
+		final StrahlerResult iterative = analyze(imp, rootRoi, false);
+		assertEquals("", graph.getErrorMessage());
+		assertArrayEquals(iterative.getBranchCounts(), graph.getBranchCounts());
+	}
+
+	private static TreeGenerator generator(final int depth, final long seed) {
+		final TreeGenerator generator = new TreeGenerator(320, 200, depth);
+		generator.setNumTrees(2);
+		generator.setLevels(5);
+		generator.setSeed(seed);
+		return generator;
+	}
+
+	@Test
+	public void test2D() {
+		final TreeGenerator generator = generator(1, 11L);
+		final ImagePlus imp = generator.createImage();
+		assertSameOrders(imp, generator.getRootRoi());
+		assertEquals(generator.getHighestOrder(), analyze(imp, generator.getRootRoi(), true).getHighestOrder());
+	}
+
+	@Test
+	public void test3D() {
+		final TreeGenerator generator = generator(30, 12L);
+		assertSameOrders(generator.createImage(), generator.getRootRoi());
+	}
+
+	@Test
+	public void testLSystemsTree() {
+		assertSameOrders(new LSystemsTree().sampleTree(), null);
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import ij.measure.ResultsTable;
+
+/**
+ * Tests for {@link StrahlerResult}.
+ *
+ * @author Tiago Ferreira
+ */
+public class StrahlerResultTest {
+
+	private static StrahlerResult result(final String title, final int[] nBranches, final String errorMsg) {
+		final double[] lengths = new double[nBranches.length];
+		return new StrahlerResult(title, "px", nBranches, lengths, Collections.emptyList(), null, true, errorMsg,
+				null, null, Collections.emptyList(), null);
+	}
+
+	@Test
+	public void testErrorsAreNotedInOwnRows() {
+		final ResultsTable rt = new ResultsTable();
+		result("img [Tree 1]", new int[] { 4, 1 }, "").addRows(rt);
+		result("img [Tree 2]", new int[0], "Error! Iteration 1 aborted").addRows(rt);
+		result("img [Tree 3]", new int[] { 1 }, "Error! Iteration 2 aborted").addRows(rt);
+		assertEquals(4, rt.size());
+		assertEquals("", rt.getStringValue("Notes", 1));
+		assertEquals("img [Tree 2]", rt.getStringValue("Image", 2));
+		assertEquals("Error! Iteration 1 aborted", rt.getStringValue("Notes", 2));
+		assertTrue(Double.isNaN(rt.getValue("Strahler Order", 2)));
+		assertTrue(rt.getStringValue("Notes", 3).startsWith("Ignoring single-point arbors"));
+		assertTrue(rt.getStringValue("Notes", 3).endsWith("Error! Iteration 2 aborted"));
+	}
+
+}
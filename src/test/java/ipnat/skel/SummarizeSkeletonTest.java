@@ -0,0 +1,52 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+
+/**
+ * Tests for {@link SummarizeSkeleton}.
+ *
+ * @author Tiago Ferreira
+ */
+public class SummarizeSkeletonTest {
+
+	private static void assertSameTrees(final ImagePlus imp) {
+		final ResultsTable rt = new ResultsTable();
+		SummarizeSkeleton.summarize(imp, rt, false);
+		SummarizeSkeleton.countTrees(imp, rt);
+		assertEquals(rt.getValue("# Trees", 0), rt.getValue("# Trees", 1), 0d);
+		assertEquals(rt.getValue("Sum of voxels", 0), rt.getValue("Sum of voxels", 1), 0d);
+	}
+
+	@Test
+	public void testCountTrees() {
+		assertSameTrees(SyntheticSkeletons.trees(1, 4, 2, 0.001, 6L));
+		assertSameTrees(SyntheticSkeletons.trees(16, 3, 2, 0.0005, 7L));
+	}
+
+}
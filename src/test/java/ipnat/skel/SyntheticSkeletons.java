@@ -0,0 +1,78 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import ij.ImagePlus;
+import ipnat.processing.Binary;
+
+/**
+ * Synthetic skeletons shared by the tests of this package.
+ *
+ * @author Tiago Ferreira
+ */
+class SyntheticSkeletons {
+
+	private SyntheticSkeletons() {
+	}
+
+	/**
+	 * Renders trees with {@link TreeGenerator} and skeletonizes them.
+	 *
+	 * @param depth
+	 *            the number of slices. Set it to 1 for 2D trees
+	 * @param nTrees
+	 *            the number of trees
+	 * @param nLoops
+	 *            the number of loops
+	 * @param noise
+	 *            the fraction of canvas voxels set as random debris. These
+	 *            become isolated voxels of the skeleton
+	 * @param seed
+	 *            the seed of the generator
+	 * @return the 8-bit skeleton
+	 */
+	static ImagePlus trees(final int depth, final int nTrees, final int nLoops, final double noise,
+			final long seed) {
+		final TreeGenerator generator = new TreeGenerator(160 * nTrees, 160, depth);
+		generator.setNumTrees(nTrees);
+		generator.setLevels(5);
+		generator.setNumLoops(nLoops);
+		generator.setNoise(noise);
+		generator.setSeed(seed);
+		final ImagePlus imp = generator.createImage();
+		SkeletonCache.thin(imp, false, 1);
+		if (noise == 0d)
+			Binary.removeIsolatedPixels(imp);
+		return imp;
+	}
+
+	/**
+	 * @return a skeletonized 2D L-system tree
+	 */
+	static ImagePlus lSystemsTree() {
+		final ImagePlus imp = new LSystemsTree().sampleTree();
+		SkeletonCache.thin(imp, false, 1);
+		Binary.removeIsolatedPixels(imp);
+		return imp;
+	}
+
+}
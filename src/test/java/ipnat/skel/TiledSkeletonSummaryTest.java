@@ -0,0 +1,103 @@
+/*
+ * #%L
+ * hIPNAT plugins for Fiji distribution of ImageJ
+ * %%
+ * Copyright (C) 2017 Tiago Ferreira
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package ipnat.skel;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import ipnat.processing.PlaneSource;
+
+/**
+ * Compares {@link TiledSkeletonSummary} against the whole-volume analysis of
+ * {@link SummarizeSkeleton}, using slabs thin enough for junctions to cross
+ * slab seams.
+ *
+ * @author Tiago Ferreira
+ */
+public class TiledSkeletonSummaryTest {
+
+	/* Relative tolerance of the values documented as approximate */
+	private static final double TOLERANCE = 0.05;
+
+	private static void assertMatches(final ImagePlus imp, final int slabDepth, final boolean compareMean) {
+		final ResultsTable expected = new ResultsTable();
+		SummarizeSkeleton.summarize(imp, expected, false);
+		final TiledSkeletonSummary tiled = new TiledSkeletonSummary(PlaneSource.of(imp));
+		tiled.setSlabDepth(slabDepth);
+		tiled.setNumThreads(3);
+		final ResultsTable actual = new ResultsTable();
+		tiled.summarize(actual);
+
+		for (final String column : new String[] { "# Trees", "# Junctions", "# End-points", "Sum of voxels" })
+			assertEquals(column, expected.getValue(column, 0), actual.getValue(column, 0), 0d);
+		final String[] approximate = (compareMean)
+				? new String[] { "# Branches", "# Triple Points", "# Quadruple Points", "Total length",
+						"Mean branch length" }
+				: new String[] { "# Branches", "# Triple Points", "# Quadruple Points", "Total length" };
+		for (final String column : approximate) {
+			final double value = expected.getValue(column, 0);
+			assertEquals(column, value, actual.getValue(column, 0), Math.max(1d, TOLERANCE * value));
+		}
+	}
+
+	@Test
+	public void test2D() {
+		assertMatches(SyntheticSkeletons.trees(1, 3, 0, 0d, 1L), 4, true);
+		assertMatches(SyntheticSkeletons.lSystemsTree(), 3, true);
+	}
+
+	@Test
+	public void test2DLoopsAndIsolatedVoxels() {
+		assertMatches(SyntheticSkeletons.trees(1, 3, 4, 0.001, 2L), 2, false);
+	}
+
+	@Test
+	public void test3D() {
+		assertMatches(SyntheticSkeletons.trees(24, 2, 0, 0d, 3L), 3, true);
+	}
+
+	@Test
+	public void test3DLoopsAndIsolatedVoxels() {
+		assertMatches(SyntheticSkeletons.trees(24, 2, 3, 0.0005, 4L), 1, false);
+	}
+
+	@Test
+	public void testSlabDepthDoesNotChangeResults() {
+		final ImagePlus imp = SyntheticSkeletons.trees(24, 2, 3, 0.0005, 5L);
+		final ResultsTable rt = new ResultsTable();
+		for (final int slabDepth : new int[] { 1, 2, 5, 24 }) {
+			final TiledSkeletonSummary tiled = new TiledSkeletonSummary(PlaneSource.of(imp));
+			tiled.setSlabDepth(slabDepth);
+			tiled.summarize(rt);
+		}
+		for (final String column : SummarizeSkeleton.HEADINGS) {
+			if ("Image".equals(column) || "Unit".equals(column))
+				continue;
+			for (int row = 1; row < rt.size(); row++)
+				assertEquals(column, rt.getValue(column, 0), rt.getValue(column, row), 1e-9);
+		}
+	}
+
+}